@@ -1,7 +1,14 @@
 package kevlar;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Reads consecutive bytes from a sequence of buffers. The buffers are
+ * shared, so the reader works on duplicates and never moves their
+ * positions.
+ */
 class ByteBufferReader {
 
     private ByteBuffer[] buffers;
@@ -15,22 +22,20 @@ class ByteBufferReader {
 
     public void position(long newPosition) {
         bufIndex = 0;
-        buf = buffers[bufIndex];
-        while (newPosition > buf.limit()) {
-            newPosition -= buf.limit();
-            buf = buffers[++bufIndex];
+        while (bufIndex < buffers.length - 1 && newPosition >= buffers[bufIndex].limit()) {
+            newPosition -= buffers[bufIndex].limit();
+            ++bufIndex;
         }
+        buf = buffers[bufIndex].duplicate();
+        buf.position((int) newPosition);
     }
 
     public void skip(int size) {
-        int newPosition = buf.position() + size;
-        int limit = buf.limit();
-        if (newPosition > limit) {
-            buf = buffers[++bufIndex];
-            buf.position(newPosition - limit);
-        } else {
-            buf.position(newPosition);
+        while (size > buf.remaining()) {
+            size -= buf.remaining();
+            nextBuffer();
         }
+        buf.position(buf.position() + size);
     }
 
     public byte[] getBytes(int size) {
@@ -39,18 +44,51 @@ class ByteBufferReader {
         return bytes;
     }
 
-    private void get(byte[] arr) {
+    /**
+     * Returns read-only slices of the next <code>size</code> bytes without
+     * copying them. More than one slice is returned if the bytes span
+     * several buffers.
+     */
+    public ByteBuffer[] slice(int size) {
+        ByteBuffer first = slice(buf, size);
+        if (first.remaining() == size) {
+            buf.position(buf.position() + size);
+            return new ByteBuffer[] { first };
+        }
 
-        int length = arr.length;
-        int available = buf.remaining();
+        List<ByteBuffer> slices = new ArrayList<ByteBuffer>(2);
+        while (size > 0) {
+            if (!buf.hasRemaining()) {
+                nextBuffer();
+            }
+            ByteBuffer slice = slice(buf, size);
+            buf.position(buf.position() + slice.remaining());
+            size -= slice.remaining();
+            slices.add(slice);
+        }
+        return slices.toArray(new ByteBuffer[slices.size()]);
+    }
 
-        buf.get(arr, 0, Math.min(available, length));
+    private static ByteBuffer slice(ByteBuffer buf, int size) {
+        ByteBuffer slice = buf.asReadOnlyBuffer();
+        slice.limit(slice.position() + Math.min(size, slice.remaining()));
+        return slice.slice();
+    }
 
-        if (available < length) {
-            buf = buffers[++bufIndex];
-            buf.position(0);
-            buf.get(arr, available, length - available);
+    private void get(byte[] arr) {
+        int offset = 0;
+        while (offset < arr.length) {
+            if (!buf.hasRemaining()) {
+                nextBuffer();
+            }
+            int length = Math.min(buf.remaining(), arr.length - offset);
+            buf.get(arr, offset, length);
+            offset += length;
         }
+    }
 
+    private void nextBuffer() {
+        buf = buffers[++bufIndex].duplicate();
+        buf.position(0);
     }
 }
@@ -0,0 +1,35 @@
+package kevlar;
+
+/**
+ * Compresses values before they are written. The id of the codec is
+ * recorded with each compressed record, so a codec must keep its id, and be
+ * registered with {@link Codecs#register(Codec)}, for as long as records it
+ * compressed exist.
+ *
+ * @author david
+ */
+public interface Codec {
+
+    /**
+     * @return the id recorded with compressed records, from 1 to 255
+     */
+    int getId();
+
+    /**
+     * @param value the value
+     * @return the compressed value
+     */
+    byte[] compress(byte[] value);
+
+    /**
+     * Decompresses a value into dest, which has room for exactly the
+     * uncompressed value.
+     *
+     * @param src holds the compressed value
+     * @param offset the offset of the compressed value in src
+     * @param length the length of the compressed value
+     * @param dest receives the value
+     */
+    void decompress(byte[] src, int offset, int length, byte[] dest);
+
+}
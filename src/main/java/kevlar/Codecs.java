@@ -0,0 +1,85 @@
+package kevlar;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The codecs records can be read with, by id, and the framing of compressed
+ * values: the length of the uncompressed value (int) followed by the
+ * compressed value.
+ *
+ * @author david
+ */
+public final class Codecs {
+
+    public static final Codec DEFLATE = new DeflateCodec();
+
+    public static final Codec LZ4 = new Lz4Codec();
+
+    /**
+     * Values shorter than this are never compressed.
+     */
+    static final int MIN_LENGTH = 64;
+
+    private static final AtomicReferenceArray<Codec> codecs = new AtomicReferenceArray<Codec>(256);
+
+    static {
+        register(DEFLATE);
+        register(LZ4);
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Makes records compressed by codec readable. A codec registered earlier
+     * with the same id is replaced.
+     */
+    public static void register(Codec codec) {
+        int id = codec.getId();
+        if (id < 1 || id > 255) {
+            throw new IllegalArgumentException("Codec id must be from 1 to 255. Was " + id);
+        }
+        codecs.set(id, codec);
+    }
+
+    /**
+     * @return the codec with id
+     */
+    static Codec forId(int id) {
+        Codec codec = codecs.get(id);
+        if (codec == null) {
+            throw new IllegalStateException("No codec with id " + id);
+        }
+        return codec;
+    }
+
+    /**
+     * @return the value compressed by codec and framed, or null if that
+     *         doesn't make it smaller
+     */
+    static byte[] encode(Codec codec, byte[] value) {
+        if (value.length < MIN_LENGTH) {
+            return null;
+        }
+        byte[] compressed = codec.compress(value);
+        if (4 + compressed.length >= value.length) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + compressed.length);
+        buf.putInt(value.length);
+        buf.put(compressed);
+        return buf.array();
+    }
+
+    /**
+     * @return the value of a framed value compressed by codec id
+     */
+    static byte[] decode(int id, byte[] framed) {
+        int length = ByteBuffer.wrap(framed).getInt();
+        byte[] value = new byte[length];
+        forId(id).decompress(framed, 4, framed.length - 4, value);
+        return value;
+    }
+
+}
@@ -0,0 +1,150 @@
+package kevlar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A handle to a batch of buffered puts. It is completed when the batch has
+ * been written, and forced to disk if the durability mode requires it.
+ *
+ * @author david
+ */
+class Commit implements Future<Void> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Throwable error;
+
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+    /**
+     * @return a commit that is already complete
+     */
+    static Commit completed() {
+        Commit commit = new Commit();
+        commit.complete(null);
+        return commit;
+    }
+
+    /**
+     * @return a commit that completes once all of commits have, failing if
+     *         any of them failed
+     */
+    static Commit all(List<Commit> commits) {
+        final Commit all = new Commit();
+        if (commits.isEmpty()) {
+            all.complete(null);
+            return all;
+        }
+        final AtomicInteger remaining = new AtomicInteger(commits.size());
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (final Commit commit : commits) {
+            commit.whenComplete(new Runnable() {
+                @Override
+                public void run() {
+                    if (commit.getError() != null) {
+                        error.compareAndSet(null, commit.getError());
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        all.complete(error.get());
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    void complete(Throwable error) {
+        this.error = error;
+        List<Runnable> listeners;
+        synchronized (this) {
+            done.countDown();
+            listeners = this.listeners;
+            this.listeners = null;
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs listener when the commit completes, right away if it already has.
+     * Listeners run on the thread that completes the commit, so they must
+     * not block.
+     */
+    void whenComplete(Runnable listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * @return the failure of a completed commit, or null
+     */
+    Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Waits for the commit, rethrowing any failure as a RuntimeException.
+     */
+    void await() {
+        try {
+            get();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(x);
+        } catch (ExecutionException x) {
+            throw new RuntimeException(x.getCause());
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,83 @@
+package kevlar;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values with Deflate, for the best ratio. Deflaters and
+ * inflaters are kept per thread, since creating them is costly.
+ *
+ * @author david
+ */
+public class DeflateCodec implements Codec {
+
+    static final int ID = 1;
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level the compression level, from 0 to 9
+     */
+    public DeflateCodec(final int level) {
+        deflaters = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(level);
+            }
+        };
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] value) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 16);
+        byte[] buf = new byte[Math.max(64, Math.min(value.length, 8192))];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] dest) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        try {
+            int n = 0;
+            while (n < dest.length) {
+                int inflated = inflater.inflate(dest, n, dest.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("Expected " + dest.length + " bytes, got " + n);
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+}
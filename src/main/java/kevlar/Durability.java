@@ -0,0 +1,34 @@
+package kevlar;
+
+/**
+ * Controls when written data is forced to disk.
+ *
+ * @author david
+ */
+public enum Durability {
+
+    /**
+     * Every put is written and forced to disk before it is acknowledged.
+     */
+    SYNC,
+
+    /**
+     * Puts are acknowledged once forced to disk, but concurrent puts share a
+     * single force. The commit interval is how long to wait for more puts
+     * before forcing.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Puts are acknowledged immediately, and written data is forced to disk
+     * once every commit interval.
+     */
+    PERIODIC,
+
+    /**
+     * Puts are acknowledged immediately, and the operating system decides
+     * when written data reaches the disk. Only an explicit flush forces it.
+     */
+    OS
+
+}
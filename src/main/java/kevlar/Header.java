@@ -4,18 +4,61 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
+/**
+ * The header of a record: timestamp (long), key length (byte) and value
+ * length (int). Keys are at most 127 bytes, so the top bit of the key length
+ * is free. It marks an extended header, which is followed by a codec byte
+ * naming how the value is compressed. Uncompressed records keep the plain
+ * header.
+ */
 class Header {
 
     static final int SIZE = 13;
 
+    /**
+     * Size of an extended header.
+     */
+    static final int MAX_SIZE = SIZE + 1;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final int EXTENDED = 0x80;
+
     private long timestamp;
     private byte keyLength;
     private int valueLength;
+    private int codec;
 
+    /**
+     * Creates a header for a record. A <code>null</code> value makes the
+     * record a tombstone.
+     */
     public Header(byte[] key, byte[] value) {
         timestamp = System.currentTimeMillis();
         keyLength = (byte) key.length;
-        valueLength = value.length;
+        valueLength = (value == null) ? TOMBSTONE : value.length;
+    }
+
+    /**
+     * Creates a header for a record whose value has been compressed by codec.
+     * A codec of 0 means the value is stored as is.
+     */
+    public Header(byte[] key, byte[] value, int codec) {
+        this(key, value);
+        this.codec = codec;
+        if (codec != 0) {
+            keyLength |= EXTENDED;
+        }
+    }
+
+    /**
+     * Creates a header for a record whose value of valueLength bytes is
+     * written separately, e.g. streamed.
+     */
+    public Header(byte[] key, int valueLength) {
+        timestamp = System.currentTimeMillis();
+        keyLength = (byte) key.length;
+        this.valueLength = valueLength;
     }
 
     public Header(FileChannel ch) throws IOException {
@@ -23,31 +66,100 @@ class Header {
         ch.read(buf);
         buf.rewind();
         fromByteBuffer(buf);
+        if (isExtended(keyLength)) {
+            buf = ByteBuffer.allocate(1);
+            ch.read(buf);
+            codec = buf.get(0) & 0xFF;
+        }
     }
 
     public Header(ByteBufferReader bufRead) {
         ByteBuffer buf = ByteBuffer.wrap(bufRead.getBytes(SIZE));
         fromByteBuffer(buf);
+        if (isExtended(keyLength)) {
+            codec = bufRead.getBytes(1)[0] & 0xFF;
+        }
     }
 
+    /**
+     * Reads a header from buf, which must hold the codec byte too if the
+     * header is extended.
+     */
     public Header(ByteBuffer buf) {
         fromByteBuffer(buf);
+        if (isExtended(keyLength)) {
+            codec = buf.get() & 0xFF;
+        }
+    }
+
+    /**
+     * @return true if the key length byte of a header marks an extended
+     *         header
+     */
+    static boolean isExtended(byte keyLength) {
+        return (keyLength & EXTENDED) != 0;
     }
 
     public String readKey(FileChannel fc) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(keyLength);
+        ByteBuffer buf = ByteBuffer.allocate(getKeyLength());
         fc.read(buf);
         buf.rewind();
         return new String(buf.array(), "utf8");
     }
 
     public ByteBuffer toByteBuffer() {
-        ByteBuffer buf = ByteBuffer.allocate(SIZE);
+        return toByteBuffer(valueLength);
+    }
+
+    /**
+     * @return the header of a record whose value is still being written.
+     *         The value length is stored as -length - 2, so the record can
+     *         be skipped, and is never read if the write is not committed.
+     */
+    public ByteBuffer toPendingByteBuffer() {
+        return toByteBuffer(-valueLength - 2);
+    }
+
+    private ByteBuffer toByteBuffer(int valueLength) {
+        ByteBuffer buf = ByteBuffer.allocate(getSize());
+        write(buf, valueLength);
+        buf.rewind();
+        return buf;
+    }
+
+    /**
+     * Writes the header at the position of buf, e.g. into a buffer holding
+     * several records.
+     */
+    public void write(ByteBuffer buf) {
+        write(buf, valueLength);
+    }
+
+    private void write(ByteBuffer buf, int valueLength) {
         buf.putLong(timestamp);
         buf.put(keyLength);
         buf.putInt(valueLength);
-        buf.rewind();
-        return buf;
+        if (isExtended(keyLength)) {
+            buf.put((byte) codec);
+        }
+    }
+
+    /**
+     * @return the size of a record on disk, header included
+     */
+    static int recordSize(int keyLength, int valueLength, int codec) {
+        return (codec == 0 ? SIZE : MAX_SIZE) + keyLength + storedLength(valueLength);
+    }
+
+    /**
+     * @return the number of bytes the value takes on disk, given the value
+     *         length as stored in a header
+     */
+    static int storedLength(int valueLength) {
+        if (valueLength < TOMBSTONE) {
+            return -valueLength - 2;
+        }
+        return Math.max(valueLength, 0);
     }
 
     private void fromByteBuffer(ByteBuffer buf) {
@@ -56,6 +168,20 @@ class Header {
         valueLength = buf.getInt();
     }
 
+    /**
+     * @return the size of the header on disk
+     */
+    public int getSize() {
+        return isExtended(keyLength) ? MAX_SIZE : SIZE;
+    }
+
+    /**
+     * @return the codec the value was compressed with, or 0
+     */
+    public int getCodec() {
+        return codec;
+    }
+
     /**
      * @return the timestamp
      */
@@ -67,14 +193,44 @@ class Header {
      * @return the keyLength
      */
     public int getKeyLength() {
-        return keyLength;
+        return keyLength & Byte.MAX_VALUE;
     }
 
     /**
      * @return the valueLength
      */
     public int getValueLength() {
+        return (isDeleted() || isPending()) ? 0 : valueLength;
+    }
+
+    /**
+     * @return the value length as stored, negative for tombstones and
+     *         pending records
+     */
+    int getStoredValueLength() {
         return valueLength;
     }
 
+    /**
+     * @return the size of the record on disk, header included
+     */
+    public int getRecordSize() {
+        return getSize() + getKeyLength() + storedLength(valueLength);
+    }
+
+    /**
+     * @return true if the value of the record was still being written, and
+     *         the record is not part of the bucket
+     */
+    public boolean isPending() {
+        return valueLength < TOMBSTONE;
+    }
+
+    /**
+     * @return true if the record is a tombstone
+     */
+    public boolean isDeleted() {
+        return valueLength == TOMBSTONE;
+    }
+
 }
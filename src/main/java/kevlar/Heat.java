@@ -0,0 +1,217 @@
+package kevlar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * How often the keys of a bucket are read, as a count-min sketch: each key
+ * increments one counter in each of four rows, and its frequency is
+ * estimated as the smallest of them. Collisions only ever make a key look
+ * hotter than it is. All counters are halved now and then, so the sketch
+ * follows recent traffic. Reads update the counters without locking, and a
+ * lost update now and then doesn't matter.
+ *
+ * The sketch is persisted next to the checkpoint of the bucket:
+ *
+ * <pre>
+ * magic (int) | width (int) | counters (int) ... | CRC32 of the above (int)
+ * </pre>
+ *
+ * @author david
+ */
+class Heat {
+
+    private static final int MAGIC = 0x8E7A3001;
+
+    private static final int DEPTH = 4;
+
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    static final int DEFAULT_WIDTH = 8192;
+
+    private final int width;
+
+    /**
+     * Allocated on the first read, so buckets that are never read cost
+     * nothing.
+     */
+    private volatile int[] counters;
+
+    /**
+     * Increments since the counters were last halved.
+     */
+    private int additions;
+
+    Heat() {
+        this(DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param width counters per row, a power of two
+     */
+    Heat(int width) {
+        this.width = width;
+    }
+
+    /**
+     * Counts a read of key.
+     */
+    void record(String key) {
+        int[] counters = this.counters;
+        if (counters == null) {
+            counters = allocate();
+        }
+        int hash = key.hashCode();
+        for (int i = 0; i < DEPTH; ++i) {
+            int index = i * width + slot(hash, i);
+            if (counters[index] < Integer.MAX_VALUE) {
+                ++counters[index];
+            }
+        }
+        if (++additions >= width * 10) {
+            age();
+        }
+    }
+
+    /**
+     * @return how often key has been read recently, possibly overestimated
+     */
+    int estimate(String key) {
+        int[] counters = this.counters;
+        if (counters == null) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; ++i) {
+            min = Math.min(min, counters[i * width + slot(hash, i)]);
+        }
+        return min;
+    }
+
+    /**
+     * @return true if key is read at least twice as often as the average
+     *         key
+     */
+    boolean isHot(String key) {
+        int estimate = estimate(key);
+        return estimate >= 2 && estimate > 2 * additions / width;
+    }
+
+    /**
+     * @return true if no reads have been counted
+     */
+    boolean isEmpty() {
+        return counters == null;
+    }
+
+    private int slot(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (width - 1);
+    }
+
+    private synchronized int[] allocate() {
+        if (counters == null) {
+            counters = new int[DEPTH * width];
+        }
+        return counters;
+    }
+
+    private synchronized void age() {
+        if (additions < width * 10) {
+            return;
+        }
+        int[] counters = this.counters;
+        for (int i = 0; i < counters.length; ++i) {
+            counters[i] >>>= 1;
+        }
+        additions /= 2;
+    }
+
+    /**
+     * Writes the sketch to file, if any reads have been counted.
+     */
+    void save(File file) throws IOException {
+        int[] counters = this.counters;
+        if (counters == null) {
+            return;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(8 + counters.length * 4);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(MAGIC);
+        dos.writeInt(width);
+        for (int counter : counters) {
+            dos.writeInt(counter);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bos.toByteArray());
+        dos.writeInt((int) crc.getValue());
+        dos.close();
+
+        // Write to a temporary file first, so a heat file is either complete
+        // or missing
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            fos.write(bos.toByteArray());
+        } finally {
+            Util.close(fos);
+        }
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the sketch saved in file, or an empty sketch if the file is
+     *         missing or invalid
+     */
+    static Heat load(File file) throws IOException {
+        long length = file.length();
+        if (length < 12 || length > Integer.MAX_VALUE) {
+            return new Heat();
+        }
+
+        byte[] bytes = new byte[(int) length];
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readFully(bytes);
+        } finally {
+            Util.close(dis);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int end = bytes.length - 4;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, end);
+        int width = buf.getInt(4);
+        if (buf.getInt(0) != MAGIC || buf.getInt(end) != (int) crc.getValue() || width <= 0
+                || Integer.bitCount(width) != 1 || 8 + DEPTH * width * 4L != end) {
+            return new Heat();
+        }
+
+        Heat heat = new Heat(width);
+        int[] counters = new int[DEPTH * width];
+        buf.position(8);
+        long total = 0;
+        for (int i = 0; i < counters.length; ++i) {
+            counters[i] = buf.getInt();
+            total += counters[i];
+        }
+        heat.counters = counters;
+        heat.additions = (int) Math.min(total / DEPTH, width * 10 - 1);
+        return heat;
+    }
+
+}
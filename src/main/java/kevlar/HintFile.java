@@ -0,0 +1,169 @@
+package kevlar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The hint file of a sealed segment lists every record in the segment, in
+ * offset order, without the values. The index of a segment can be rebuilt
+ * from its hint file with one sequential read instead of a scan of the
+ * segment.
+ *
+ * <pre>
+ * magic (int) | segment size (long)
+ * { key length (byte) | [codec (byte)] | key | timestamp (long) | offset (long) | value length (int) } ...
+ * CRC32 of the above (int)
+ * </pre>
+ *
+ * As in a record header, the top bit of the key length is set if a codec
+ * byte follows.
+ *
+ * @author david
+ */
+class HintFile {
+
+    private static final int MAGIC = 0x8E7A2001;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int TRAILER_SIZE = 4;
+
+    private HintFile() {
+    }
+
+    /**
+     * @return the hint file of segment
+     */
+    static File of(Segment segment) {
+        String path = segment.getFile().getPath();
+        return new File(path.substring(0, path.length() - 4) + ".hint");
+    }
+
+    /**
+     * Writes the hint file of a sealed segment.
+     */
+    static void write(Segment segment) throws IOException {
+        segment.remap();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(MAGIC);
+        dos.writeLong(segment.getSize());
+
+        final IOException[] error = new IOException[1];
+        segment.scan(0, new Segment.RecordHandler() {
+            @Override
+            public void record(byte[] key, int keyLength, long timestamp, long offset, int valueLength, int codec) {
+                try {
+                    if (codec == 0) {
+                        dos.writeByte(keyLength);
+                    } else {
+                        dos.writeByte(keyLength | 0x80);
+                        dos.writeByte(codec);
+                    }
+                    dos.write(key, 0, keyLength);
+                    dos.writeLong(timestamp);
+                    dos.writeLong(offset);
+                    dos.writeInt(valueLength);
+                } catch (IOException x) {
+                    error[0] = x;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] bytes = bos.toByteArray();
+        crc.update(bytes);
+        dos.writeInt((int) crc.getValue());
+        dos.close();
+
+        // Write to a temporary file first, so a hint file is either complete
+        // or missing
+        File hintFile = of(segment);
+        File tmpFile = new File(hintFile.getPath() + ".tmp");
+        ByteBuffer buf = ByteBuffer.wrap(bos.toByteArray());
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        FileChannel fc = fos.getChannel();
+        try {
+            while (buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            fc.force(true);
+        } finally {
+            Util.close(fc);
+            Util.close(fos);
+        }
+
+        if (!tmpFile.renameTo(hintFile)) {
+            hintFile.delete();
+            if (!tmpFile.renameTo(hintFile)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + hintFile);
+            }
+        }
+    }
+
+    /**
+     * Passes the records of a segment at or after position to handler, if
+     * the segment has a valid hint file.
+     *
+     * @return the end of the segment data covered by the hint file, or
+     *         position if there is no valid hint file
+     */
+    static long read(Segment segment, long position, Segment.RecordHandler handler) throws IOException {
+        File hintFile = of(segment);
+        long length = hintFile.length();
+        if (length < HEADER_SIZE + TRAILER_SIZE) {
+            return position;
+        }
+
+        byte[] bytes = new byte[(int) length];
+        DataInputStream dis = new DataInputStream(new FileInputStream(hintFile));
+        try {
+            dis.readFully(bytes);
+        } finally {
+            Util.close(dis);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int end = bytes.length - TRAILER_SIZE;
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, end);
+        if (buf.getInt(0) != MAGIC || buf.getInt(end) != (int) crc.getValue()) {
+            return position;
+        }
+
+        long covered = buf.getLong(4);
+        if (covered < position || covered > segment.getSize()) {
+            return position;
+        }
+
+        byte[] key = new byte[Byte.MAX_VALUE];
+        buf.position(HEADER_SIZE);
+        while (buf.position() < end) {
+            byte rawKeyLength = buf.get();
+            int codec = Header.isExtended(rawKeyLength) ? buf.get() & 0xFF : 0;
+            int keyLength = rawKeyLength & Byte.MAX_VALUE;
+            buf.get(key, 0, keyLength);
+            long timestamp = buf.getLong();
+            long offset = buf.getLong();
+            int valueLength = buf.getInt();
+            if (offset >= position) {
+                handler.record(key, keyLength, timestamp, offset, valueLength, codec);
+            }
+        }
+
+        return covered;
+    }
+
+}
@@ -0,0 +1,177 @@
+package kevlar;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with log-linear buckets, like an HDR histogram: each
+ * power of two is split into 16 buckets, so a percentile is off by at most
+ * 1/16 of its value. Recording is a few atomic increments, allocates nothing
+ * and takes no lock.
+ *
+ * Samples are in nanoseconds, and are also recorded in the parent histogram,
+ * if any, which sums up several histograms.
+ *
+ * @author david
+ */
+class Histogram implements HistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Samples longer than 2^40 ns, about 18 minutes, go in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final Histogram parent;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() {
+        this(null);
+    }
+
+    Histogram(Histogram parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Records the time since start.
+     *
+     * @param start a {@link System#nanoTime()}
+     */
+    void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+        if (parent != null) {
+            parent.record(nanos);
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the middle of the values that go in bucket index
+     */
+    private static long value(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+
+    /**
+     * @return the number of samples
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean in nanoseconds, or 0 if there are no samples
+     */
+    long mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * @return the longest sample in nanoseconds
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the sample in nanoseconds that percentile of the samples are
+     *         at or below, or 0 if there are no samples
+     */
+    long percentile(double percentile) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(value(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count();
+    }
+
+    @Override
+    public long getMeanMicros() {
+        return mean() / 1000;
+    }
+
+    @Override
+    public long get50thPercentileMicros() {
+        return percentile(50) / 1000;
+    }
+
+    @Override
+    public long get90thPercentileMicros() {
+        return percentile(90) / 1000;
+    }
+
+    @Override
+    public long get99thPercentileMicros() {
+        return percentile(99) / 1000;
+    }
+
+    @Override
+    public long get999thPercentileMicros() {
+        return percentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return max() / 1000;
+    }
+
+}
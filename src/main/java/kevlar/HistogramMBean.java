@@ -0,0 +1,27 @@
+package kevlar;
+
+/**
+ * The latencies of one operation, as exposed through JMX.
+ *
+ * @author david
+ */
+public interface HistogramMBean {
+
+    /**
+     * @return the number of operations
+     */
+    public long getCount();
+
+    public long getMeanMicros();
+
+    public long get50thPercentileMicros();
+
+    public long get90thPercentileMicros();
+
+    public long get99thPercentileMicros();
+
+    public long get999thPercentileMicros();
+
+    public long getMaxMicros();
+
+}
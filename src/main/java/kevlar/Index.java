@@ -1,67 +1,197 @@
 package kevlar;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+/**
+ * The in-memory key index of a bucket.
+ *
+ * The index is persisted as a checkpoint (<code>.index</code>) holding every
+ * entry, plus an append-only journal (<code>.journal</code>) holding the
+ * entries added since the checkpoint was written. Both files carry a
+ * generation number, and a journal is only replayed on top of the checkpoint
+ * of the same generation. Records appended to the segments after the last
+ * one recorded, whether still indexed or since removed, are recovered by
+ * scanning the segments.
+ *
+ * @author david
+ */
 class Index implements Map<String, Index.Entry> {
 
-    private File dataFile;
+    private static final int CHECKPOINT_MAGIC_V1 = 0x8E7A0001;
+    private static final int CHECKPOINT_MAGIC_V2 = 0x8E7A0002;
+    private static final int CHECKPOINT_MAGIC = 0x8E7A0003;
+    private static final int JOURNAL_MAGIC_V1 = 0x8E7A1001;
+    private static final int JOURNAL_MAGIC_V2 = 0x8E7A1002;
+    private static final int JOURNAL_MAGIC = 0x8E7A1003;
+
+    private static final int VERSION = 3;
+
+    private static final int JOURNAL_HEADER_SIZE = 12;
+
+    /**
+     * A journal entry that removes its key has a negative segment. From
+     * version 3 on, it holds the record it removed, with the segment stored
+     * as <code>REMOVED - segment</code>.
+     */
+    private static final int REMOVED = -1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The journal is folded into a new checkpoint when it grows larger than
+     * the checkpoint itself, but never before it reaches this size.
+     */
+    private static final long MIN_CHECKPOINT_INTERVAL = 1024 * 1024;
+
     private File indexFile;
+    private File journalFile;
+
+    private final SortedMap<Integer, Segment> segments;
+
+    private final IndexType type;
+    private final SegmentReader reader;
+    private final Metrics metrics;
+
+    private long generation;
+
+    /**
+     * The end of the furthest record the checkpoint and journal have
+     * recorded, including records whose keys were removed since. Records
+     * after it are found by scanning.
+     */
+    private int endSegment = -1;
+    private long endOffset;
+
+    /**
+     * False if the journal on disk is in an older format, in which case the
+     * next append writes a checkpoint first.
+     */
+    private boolean journalCurrent;
 
-    private Map<String, Entry> entries;
+    private volatile Map<String, Entry> entries;
 
+    private volatile SortedKeys sortedKeys;
+
+    /**
+     * Creates an index of a single data file, with the checkpoint and journal
+     * next to it.
+     */
     public Index(File dataFile) {
-        this.dataFile = dataFile;
-        indexFile = new File(dataFile.getAbsolutePath().substring(0, dataFile.getAbsolutePath().length() - 4)
-                + ".index");
+        this(dataFile, IndexType.HEAP);
+    }
+
+    public Index(File dataFile, IndexType type) {
+        this(baseFile(dataFile), singleSegment(dataFile), type);
+    }
+
+    /**
+     * Creates an index of a bucket.
+     *
+     * @param base path of the checkpoint and journal, without extension
+     * @param segments the segments of the bucket, oldest first
+     * @param type how entries are stored
+     */
+    public Index(File base, SortedMap<Integer, Segment> segments, IndexType type) {
+        this(base, segments, type, new Metrics());
+    }
+
+    /**
+     * @param metrics records how long saves and forces take
+     */
+    public Index(File base, SortedMap<Integer, Segment> segments, IndexType type, Metrics metrics) {
+        this.segments = segments;
+        this.type = type;
+        this.metrics = metrics;
+        reader = new SegmentReader();
+        indexFile = new File(base.getPath() + ".index");
+        journalFile = new File(base.getPath() + ".journal");
 
         load();
     }
 
+    private static File baseFile(File dataFile) {
+        String path = dataFile.getAbsolutePath();
+        return new File(path.substring(0, path.length() - 4));
+    }
+
+    private static SortedMap<Integer, Segment> singleSegment(File dataFile) {
+        SortedMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+        segments.put(0, new Segment(0, dataFile));
+        return segments;
+    }
+
     public void load() {
         try {
 
-            entries = new HashMap<String, Entry>();
+            entries = createMap();
+            sortedKeys = new SortedKeys(entries.keySet(), type != IndexType.HEAP);
+            generation = 0;
+            journalCurrent = false;
+            endSegment = -1;
+            endOffset = 0;
 
-            long position = 0;
+            boolean sizesKnown = true;
             if (indexFile.exists()) {
-                FileInputStream fis = new FileInputStream(indexFile);
-                DataInputStream dis = new DataInputStream(fis);
-                int numEntries = dis.readInt();
-                for (int i = 0; i < numEntries; ++i) {
-                    String key = dis.readUTF();
-                    long timestamp = dis.readLong();
-                    long offset = dis.readLong();
-                    entries.put(key, new Entry(timestamp, offset));
-                    position = Math.max(position, offset);
-                }
-                dis.close();
-                fis.close();
+                sizesKnown &= readCheckpoint();
             }
 
-            FileInputStream fis = new FileInputStream(dataFile);
-            FileChannel fc = fis.getChannel();
-            fc.position(position);
+            if (journalFile.exists()) {
+                sizesKnown &= replayJournal();
+            }
 
-            while (fc.position() < fc.size()) {
-                Header header = new Header(fc);
-                String key = header.readKey(fc);
-                entries.put(key, new Entry(header.getTimestamp(), position));
-                fc.position(fc.position() + header.getValueLength());
+            if (!sizesKnown) {
+                readSizes();
             }
 
-            fc.close();
-            fis.close();
+            dropTorn();
+
+            // Records lost in a crash are appended to again
+            if (!segments.isEmpty() && endSegment > segments.lastKey()) {
+                endSegment = segments.lastKey();
+                endOffset = Long.MAX_VALUE;
+            }
+            Segment end = segments.get(endSegment);
+            if (end != null && endOffset > end.getSize()) {
+                endOffset = end.getSize();
+            }
+
+            // Scan records appended after the last recorded one. An expired
+            // key whose removal was journaled must not come back.
+            int segment = endSegment;
+            long position = endOffset;
+            for (Segment s : segments.values()) {
+                if (s.getId() >= segment) {
+                    scan(s, s.getId() == segment ? position : 0);
+                    advance(s.getId(), s.getSize());
+                }
+            }
 
         } catch (Exception x) {
             throw new RuntimeException(x);
@@ -69,39 +199,454 @@ class Index implements Map<String, Index.Entry> {
 
     }
 
+    /**
+     * Indexes the records of a segment from position onwards. Records listed
+     * in the hint file of the segment are read from there, and only the rest
+     * of the segment is scanned.
+     */
+    private void scan(final Segment segment, long position) throws IOException {
+        Segment.RecordHandler handler = new Segment.RecordHandler() {
+            @Override
+            public void record(byte[] key, int keyLength, long timestamp, long offset, int valueLength, int codec) {
+                String k = new String(key, 0, keyLength, UTF8);
+                if (valueLength < 0) {
+                    remove(k);
+                    return;
+                }
+                int size = Header.recordSize(keyLength, valueLength, codec);
+                entries.put(k, new Entry(timestamp, segment.getId(), offset, size));
+            }
+        };
+
+        position = HintFile.read(segment, position, handler);
+        if (position == segment.getSize()) {
+            return;
+        }
+
+        segment.remap();
+        long end = segment.scan(position, handler);
+
+        // A record torn by a crash is not part of the segment
+        if (end < segment.getSize()) {
+            segment.setSize(end);
+        }
+    }
+
+    /**
+     * Moves the end of the recorded records past the record of entry.
+     */
+    private void advance(Entry entry) {
+        advance(entry.getSegment(), entry.getOffset() + entry.getSize());
+    }
+
+    private void advance(int segment, long end) {
+        if (segment > endSegment || (segment == endSegment && end > endOffset)) {
+            endSegment = segment;
+            endOffset = end;
+        }
+    }
+
+    /**
+     * Removes the entries of records that didn't reach the disk before a
+     * crash, though their journal entries did. Appends would otherwise
+     * overwrite the records they point at. Entries of unknown size are
+     * kept.
+     */
+    private void dropTorn() {
+        List<String> torn = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            Segment segment = segments.get(entry.getSegment());
+            if (segment != null && entry.getSize() > 0
+                    && entry.getOffset() + entry.getSize() > segment.getSize()) {
+                torn.add(e.getKey());
+            }
+        }
+        for (String key : torn) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Fills in the record sizes of entries loaded from an older format.
+     */
+    private void readSizes() throws IOException {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.getSize() == 0 && segments.containsKey(entry.getSegment())) {
+                Header header = reader.readHeader(entry.getSegment(), entry.getOffset());
+                int size = header.getRecordSize();
+                entries.put(e.getKey(), new Entry(entry.getTimestamp(), entry.getSegment(), entry.getOffset(), size));
+            }
+        }
+    }
+
+    /**
+     * Writes a checkpoint of all entries and starts a new, empty journal.
+     */
     public void save() {
+        long start = System.nanoTime();
         try {
 
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             DataOutputStream dos = new DataOutputStream(bos);
 
+            dos.writeInt(CHECKPOINT_MAGIC);
+            dos.writeLong(generation + 1);
+            dos.writeInt(endSegment);
+            dos.writeLong(endOffset);
             dos.writeInt(entries.size());
             for (Map.Entry<String, Entry> e : entries.entrySet()) {
-                dos.writeUTF(e.getKey());
-                dos.writeLong(e.getValue().getTimestamp());
-                dos.writeLong(e.getValue().getOffset());
+                writeEntry(dos, e.getKey(), e.getValue());
             }
 
             ByteBuffer buf = ByteBuffer.wrap(bos.toByteArray());
             dos.close();
             bos.close();
 
-            FileOutputStream fos = new FileOutputStream(indexFile);
+            // Write to a temporary file first so a crash never leaves a
+            // half-written checkpoint behind
+            File tmpFile = new File(indexFile.getAbsolutePath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmpFile);
             FileChannel fc = fos.getChannel();
 
             while (buf.hasRemaining()) {
                 fc.write(buf);
             }
 
-            fc.force(true);
+            force(fc);
             fc.close();
             fos.close();
 
+            if (!tmpFile.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tmpFile.renameTo(indexFile)) {
+                    throw new IOException("Failed to rename " + tmpFile + " to " + indexFile);
+                }
+            }
+
+            ++generation;
+            resetJournal();
+
+        } catch (Exception x) {
+            throw new RuntimeException(x);
+        } finally {
+            metrics.record(Metrics.Op.INDEX_SAVE, start);
+        }
+    }
+
+    /**
+     * Adds entries to the index and appends them to the journal, which is
+     * forced to disk.
+     *
+     * @param m the entries to add, where a null entry removes its key
+     * @return the entries that were replaced or removed
+     */
+    public List<Entry> append(Map<String, Entry> m) {
+        return append(m, true);
+    }
+
+    /**
+     * Adds entries to the index and appends them to the journal. The cost
+     * depends on the number of entries added, not on the size of the index.
+     * Once the journal has grown larger than the checkpoint, a new checkpoint
+     * is written.
+     *
+     * @param m the entries to add, where a null entry removes its key
+     * @param force true to force the journal to disk. Only records already
+     *        forced to disk should be journaled with force, or the journal
+     *        could outlive them in a crash.
+     * @return the entries that were replaced or removed
+     */
+    public List<Entry> append(Map<String, Entry> m, boolean force) {
+        try {
+
+            List<Entry> replaced = new ArrayList<Entry>();
+            Map<String, Entry> removed = new HashMap<String, Entry>();
+            for (Map.Entry<String, Entry> e : m.entrySet()) {
+                Entry previous;
+                if (e.getValue() == null) {
+                    previous = remove(e.getKey());
+                    removed.put(e.getKey(), previous);
+                } else {
+                    previous = put(e.getKey(), e.getValue());
+                    advance(e.getValue());
+                }
+                if (previous != null) {
+                    replaced.add(previous);
+                    advance(previous);
+                }
+            }
+
+            if (!journalCurrent) {
+                // Fold whatever an older journal held into a checkpoint
+                save();
+            } else if (!journalFile.exists() || journalFile.length() < JOURNAL_HEADER_SIZE) {
+                resetJournal();
+            }
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            for (Map.Entry<String, Entry> e : m.entrySet()) {
+                if (e.getValue() == null) {
+                    writeRemoval(dos, e.getKey(), removed.get(e.getKey()));
+                } else {
+                    writeEntry(dos, e.getKey(), e.getValue());
+                }
+            }
+            dos.close();
+
+            ByteBuffer buf = ByteBuffer.wrap(bos.toByteArray());
+
+            FileOutputStream fos = new FileOutputStream(journalFile, true);
+            FileChannel fc = fos.getChannel();
+            try {
+                while (buf.hasRemaining()) {
+                    fc.write(buf);
+                }
+                if (force) {
+                    force(fc);
+                }
+            } finally {
+                Util.close(fc);
+                Util.close(fos);
+            }
+
+            if (journalFile.length() > Math.max(MIN_CHECKPOINT_INTERVAL, indexFile.length())) {
+                save();
+            }
+
+            return replaced;
+
         } catch (Exception x) {
             throw new RuntimeException(x);
         }
     }
 
+    /**
+     * The first call sorts every key, see {@link SortedKeys}.
+     *
+     * @param prefix only keys starting with prefix, or null for all keys
+     * @param startAfter only keys after this one, or null
+     * @return the keys in order, read as the iterator advances
+     */
+    public Iterator<String> keys(String prefix, String startAfter) {
+        return sortedKeys.iterator(prefix, startAfter);
+    }
+
+    /**
+     * @return the keys in order, built on the first call of
+     *         {@link #keys(String, String)}
+     */
+    SortedKeys getSortedKeys() {
+        return sortedKeys;
+    }
+
+    /**
+     * @return the entries of the index, read as the spliterator advances. The
+     *         traversal is weakly consistent and can be split for parallel
+     *         consumption.
+     */
+    public Spliterator<Map.Entry<String, Entry>> entrySpliterator() {
+        return entries.entrySet().spliterator();
+    }
+
+    /**
+     * @return the keys of the index, see {@link #entrySpliterator()}
+     */
+    public Spliterator<String> keySpliterator() {
+        Map<String, Entry> entries = this.entries;
+        if (entries instanceof ConcurrentHashMap) {
+            return entries.keySet().spliterator();
+        }
+        return KeySpliterators.map(entries.entrySet().spliterator(), new Function<Map.Entry<String, Entry>, String>() {
+            @Override
+            public String apply(Map.Entry<String, Entry> e) {
+                return e.getKey();
+            }
+        });
+    }
+
+    /**
+     * Closes any file handles to a segment, e.g. before it is deleted.
+     */
+    public void release(int segment) {
+        reader.release(segment);
+    }
+
+    /**
+     * Closes the file handles to all segments.
+     */
+    public void close() {
+        reader.releaseAll();
+    }
+
+    /**
+     * Deletes the checkpoint and journal files.
+     */
+    public void delete() {
+        indexFile.delete();
+        journalFile.delete();
+    }
+
+    private Map<String, Entry> createMap() {
+        switch (type) {
+        case OFF_HEAP:
+            return new OffHeapIndexMap();
+        case HASH_ONLY:
+            return new OffHeapIndexMap(reader);
+        default:
+            return new ConcurrentHashMap<String, Entry>();
+        }
+    }
+
+    /**
+     * @return false if the checkpoint is in an older format without record
+     *         sizes
+     */
+    private boolean readCheckpoint() throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            int version = 0;
+            int numEntries = dis.readInt();
+            if (numEntries == CHECKPOINT_MAGIC || numEntries == CHECKPOINT_MAGIC_V2
+                    || numEntries == CHECKPOINT_MAGIC_V1) {
+                version = (numEntries == CHECKPOINT_MAGIC) ? 3 : (numEntries == CHECKPOINT_MAGIC_V2) ? 2 : 1;
+                generation = dis.readLong();
+                if (version >= 3) {
+                    advance(dis.readInt(), dis.readLong());
+                }
+                numEntries = dis.readInt();
+            }
+            for (int i = 0; i < numEntries; ++i) {
+                String key = dis.readUTF();
+                Entry entry = readEntry(dis, version);
+                entries.put(key, entry);
+                advance(entry);
+            }
+            return version >= 2;
+        } finally {
+            Util.close(dis);
+        }
+    }
+
+    /**
+     * @return false if the journal is in an older format without record sizes
+     */
+    private boolean replayJournal() throws IOException {
+        // The journal never grows much larger than the checkpoint, so it is
+        // read in one go
+        byte[] bytes = new byte[(int) journalFile.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(journalFile));
+        try {
+            dis.readFully(bytes);
+        } finally {
+            Util.close(dis);
+        }
+
+        ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+        dis = new DataInputStream(bis);
+
+        long validLength = 0;
+        int version = VERSION;
+        try {
+            // A journal from another generation predates the checkpoint and
+            // is discarded
+            int magic = dis.readInt();
+            if ((magic == JOURNAL_MAGIC || magic == JOURNAL_MAGIC_V2 || magic == JOURNAL_MAGIC_V1)
+                    && dis.readLong() == generation) {
+                version = (magic == JOURNAL_MAGIC) ? 3 : (magic == JOURNAL_MAGIC_V2) ? 2 : 1;
+                validLength = JOURNAL_HEADER_SIZE;
+                while (bis.available() > 0) {
+                    String key = dis.readUTF();
+                    Entry entry = readEntry(dis, version);
+                    if (entry.getSegment() <= REMOVED) {
+                        entries.remove(key);
+                        if (version >= 3) {
+                            advance(REMOVED - entry.getSegment(), entry.getOffset() + entry.getSize());
+                        }
+                    } else {
+                        entries.put(key, entry);
+                        advance(entry);
+                    }
+                    validLength = bytes.length - bis.available();
+                }
+            }
+        } catch (EOFException x) {
+            // Torn write from a crash, drop the partial entry
+        }
+
+        if (validLength < bytes.length) {
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+
+        journalCurrent = (version == VERSION);
+        return version >= 2;
+    }
+
+    private void force(FileChannel fc) throws IOException {
+        long start = System.nanoTime();
+        fc.force(true);
+        metrics.record(Metrics.Op.FSYNC, start);
+    }
+
+    private void resetJournal() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+        buf.putInt(JOURNAL_MAGIC);
+        buf.putLong(generation);
+        buf.rewind();
+
+        FileOutputStream fos = new FileOutputStream(journalFile);
+        FileChannel fc = fos.getChannel();
+        try {
+            while (buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            force(fc);
+        } finally {
+            Util.close(fc);
+            Util.close(fos);
+        }
+
+        journalCurrent = true;
+    }
+
+    /**
+     * @param removed the entry that was removed, or null if there was none
+     */
+    private static void writeRemoval(DataOutputStream dos, String key, Entry removed) throws IOException {
+        if (removed == null) {
+            writeEntry(dos, key, new Entry(0, REMOVED, 0, 0));
+        } else {
+            writeEntry(dos, key, new Entry(removed.getTimestamp(), REMOVED - removed.getSegment(),
+                    removed.getOffset(), removed.getSize()));
+        }
+    }
+
+    private static void writeEntry(DataOutputStream dos, String key, Entry entry) throws IOException {
+        dos.writeUTF(key);
+        dos.writeLong(entry.getTimestamp());
+        dos.writeInt(entry.getSegment());
+        dos.writeLong(entry.getOffset());
+        dos.writeInt(entry.getSize());
+    }
+
+    private static Entry readEntry(DataInputStream dis, int version) throws IOException {
+        long timestamp = dis.readLong();
+        if (version < 2) {
+            return new Entry(timestamp, dis.readLong());
+        }
+        int segment = dis.readInt();
+        long offset = dis.readLong();
+        int size = dis.readInt();
+        return new Entry(timestamp, segment, offset, size);
+    }
+
     @Override
     public int size() {
         return entries.size();
@@ -110,6 +655,7 @@ class Index implements Map<String, Index.Entry> {
     @Override
     public void clear() {
         entries.clear();
+        sortedKeys = new SortedKeys(entries.keySet(), type != IndexType.HEAP);
     }
 
     @Override
@@ -144,17 +690,27 @@ class Index implements Map<String, Index.Entry> {
 
     @Override
     public Entry put(String key, Entry value) {
-        return entries.put(key, value);
+        Entry previous = entries.put(key, value);
+        if (previous == null) {
+            sortedKeys.add(key);
+        }
+        return previous;
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends Entry> m) {
-        entries.putAll(m);
+        for (Map.Entry<? extends String, ? extends Entry> e : m.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
     }
 
     @Override
     public Entry remove(Object key) {
-        return entries.remove(key);
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            sortedKeys.remove((String) key);
+        }
+        return previous;
     }
 
     @Override
@@ -162,14 +718,92 @@ class Index implements Map<String, Index.Entry> {
         return entries.values();
     }
 
+    /**
+     * Reads record headers and keys straight from the segment files, for
+     * hash-only mode and for upgrading entries from older formats.
+     */
+    private class SegmentReader implements OffHeapIndexMap.KeyReader {
+
+        private final ConcurrentMap<Integer, FileChannel> channels = new ConcurrentHashMap<Integer, FileChannel>();
+
+        @Override
+        public byte[] readKey(int segment, long offset) {
+            try {
+                Header header = readHeader(segment, offset);
+                ByteBuffer key = ByteBuffer.allocate(header.getKeyLength());
+                read(open(segment), key, offset + header.getSize());
+                return key.array();
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+
+        Header readHeader(int segment, long offset) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(Header.SIZE);
+            read(open(segment), buf, offset);
+            if (Header.isExtended(buf.get(8))) {
+                buf = ByteBuffer.allocate(Header.MAX_SIZE);
+                read(open(segment), buf, offset);
+            }
+            buf.flip();
+            return new Header(buf);
+        }
+
+        private FileChannel open(int segment) throws IOException {
+            FileChannel ch = channels.get(segment);
+            if (ch == null) {
+                Segment s = segments.get(segment);
+                if (s == null) {
+                    throw new FileNotFoundException("No segment " + segment);
+                }
+                synchronized (this) {
+                    ch = channels.get(segment);
+                    if (ch == null) {
+                        ch = new RandomAccessFile(s.getFile(), "r").getChannel();
+                        channels.put(segment, ch);
+                    }
+                }
+            }
+            return ch;
+        }
+
+        private void read(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, position + buf.position()) < 0) {
+                    throw new EOFException("No record at " + position);
+                }
+            }
+        }
+
+        synchronized void release(int segment) {
+            Util.close(channels.remove(segment));
+        }
+
+        synchronized void releaseAll() {
+            for (FileChannel ch : channels.values()) {
+                Util.close(ch);
+            }
+            channels.clear();
+        }
+
+    }
+
     public static class Entry {
 
         private long timestamp;
+        private int segment;
         private long offset;
+        private int size;
 
         public Entry(long timestamp, long offset) {
+            this(timestamp, 0, offset, 0);
+        }
+
+        public Entry(long timestamp, int segment, long offset, int size) {
             this.timestamp = timestamp;
+            this.segment = segment;
             this.offset = offset;
+            this.size = size;
         }
 
         /**
@@ -180,12 +814,40 @@ class Index implements Map<String, Index.Entry> {
         }
 
         /**
-         * @return the offset
+         * @return the segment holding the record
+         */
+        public int getSegment() {
+            return segment;
+        }
+
+        /**
+         * @return the offset of the record within its segment
          */
         public long getOffset() {
             return offset;
         }
 
+        /**
+         * @return the size of the record, header included
+         */
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry) o;
+            return timestamp == e.timestamp && segment == e.segment && offset == e.offset && size == e.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (offset ^ (offset >>> 32)) * 31 + segment;
+        }
+
     }
 
 }
@@ -0,0 +1,28 @@
+package kevlar;
+
+/**
+ * How the in-memory key index of a bucket is stored.
+ *
+ * @author david
+ */
+public enum IndexType {
+
+    /**
+     * Keys and entries are objects on the heap.
+     */
+    HEAP,
+
+    /**
+     * Keys and entries are stored in a hash table in direct memory, outside
+     * the heap.
+     */
+    OFF_HEAP,
+
+    /**
+     * Only a 64-bit hash of each key is kept, in direct memory. Keys are
+     * verified against the record on disk, which makes lookups of present
+     * keys touch the data file.
+     */
+    HASH_ONLY
+
+}
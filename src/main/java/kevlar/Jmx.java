@@ -0,0 +1,95 @@
+package kevlar;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the stats and latencies of stores and buckets with the platform
+ * MBean server, under
+ * <code>kevlar:type=Store|Bucket,store=&lt;dir&gt;[,bucket=&lt;bucket&gt;]</code>
+ * and <code>kevlar:type=Latency,store=&lt;dir&gt;[,bucket=&lt;bucket&gt;],op=&lt;op&gt;</code>.
+ *
+ * @author david
+ */
+class Jmx {
+
+    private static final Logger log = LoggerFactory.getLogger(Jmx.class);
+
+    private Jmx() {
+    }
+
+    /**
+     * @param store the directory of the store
+     * @param bucket the bucket, or null for the store itself
+     */
+    static void register(String store, String bucket, StatsMBean stats, Metrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, statsName(store, bucket), new StandardMBean(stats, StatsMBean.class));
+            for (Metrics.Op op : Metrics.Op.values()) {
+                register(server, latencyName(store, bucket, op),
+                        new StandardMBean(metrics.get(op), HistogramMBean.class));
+            }
+        } catch (JMException x) {
+            log.warn("Failed to register MBeans of " + store + (bucket == null ? "" : "/" + bucket), x);
+        }
+    }
+
+    /**
+     * Unregisters the MBeans of a closed store or bucket.
+     *
+     * @param store the directory of the store
+     * @param bucket the bucket, or null for the store itself
+     */
+    static void unregister(String store, String bucket) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            unregister(server, statsName(store, bucket));
+            for (Metrics.Op op : Metrics.Op.values()) {
+                unregister(server, latencyName(store, bucket, op));
+            }
+        } catch (JMException x) {
+            log.warn("Failed to unregister MBeans of " + store + (bucket == null ? "" : "/" + bucket), x);
+        }
+    }
+
+    private static String scope(String store, String bucket) {
+        String scope = ",store=" + ObjectName.quote(store);
+        if (bucket != null) {
+            scope += ",bucket=" + ObjectName.quote(bucket);
+        }
+        return scope;
+    }
+
+    private static ObjectName statsName(String store, String bucket) throws JMException {
+        return new ObjectName("kevlar:type=" + (bucket == null ? "Store" : "Bucket") + scope(store, bucket));
+    }
+
+    private static ObjectName latencyName(String store, String bucket, Metrics.Op op) throws JMException {
+        return new ObjectName("kevlar:type=Latency" + scope(store, bucket) + ",op=" + op.label());
+    }
+
+    /**
+     * Replaces an MBean of the same name, e.g. of a store opened again.
+     */
+    private static void register(MBeanServer server, ObjectName name, Object mbean) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(mbean, name);
+    }
+
+    private static void unregister(MBeanServer server, ObjectName name) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+}
@@ -1,97 +1,599 @@
 package kevlar;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Serves a store over HTTP.
+ *
+ * <ul>
+ * <li><code>GET /&lt;bucket&gt;/&lt;key&gt;</code> gets a value. Values carry an
+ * ETag and Last-Modified, which <code>If-None-Match</code>,
+ * <code>If-Modified-Since</code> and <code>If-Range</code> are checked
+ * against, and single or multiple byte ranges are served as slices of the
+ * mapped value.</li>
+ * <li><code>POST</code> or <code>PUT /&lt;bucket&gt;/&lt;key&gt;</code> puts a value. A
+ * value too large for a segment gets 413.</li>
+ * <li><code>DELETE /&lt;bucket&gt;/&lt;key&gt;</code> deletes a value.</li>
+ * <li><code>GET /&lt;bucket&gt;/?key=a&amp;key=b</code> gets several values at once.</li>
+ * <li><code>GET /&lt;bucket&gt;/?prefix=a&amp;startAfter=b&amp;limit=100</code> lists
+ * keys in order, all parameters optional.</li>
+ * <li><code>POST /&lt;bucket&gt;/</code> puts several values at once.</li>
+ * <li><code>GET /stats</code> gets the stats and latencies of the store and
+ * its buckets as JSON.</li>
+ * </ul>
+ *
+ * Batch bodies are a sequence of entries, each a key and a value prefixed by
+ * their lengths in bytes as 4-byte big-endian ints. A value that doesn't
+ * exist has length -1. The empty key is reserved for batches. A bucket name
+ * that is empty, <code>.</code> or <code>..</code>, or holds a slash or
+ * backslash gets 400.
+ *
+ * Requests are processed asynchronously, and bodies are read and written
+ * without blocking, so a slow client doesn't hold a container thread while
+ * its body is transferred.
+ *
+ * @author david
+ */
 @SuppressWarnings("serial")
 public class KevlarServlet extends HttpServlet {
 
+    static final String BATCH_CONTENT_TYPE = "application/x-kevlar-batch";
+
+    /**
+     * Bytes read or written per call on a request or response stream.
+     */
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Range requests asking for more ranges than this get the whole value.
+     */
+    static final int MAX_RANGES = 16;
+
+    /**
+     * Keys listed per page, unless the request asks for fewer or more.
+     */
+    static final int DEFAULT_LIST_LIMIT = 1000;
+
+    static final int MAX_LIST_LIMIT = 10000;
+
     private WritableStore store;
 
+    public KevlarServlet() {
+    }
+
+    /**
+     * @param store serves this store rather than one opened by
+     *        {@link #init(ServletConfig)}
+     */
+    KevlarServlet(WritableStore store) {
+        this.store = store;
+    }
+
     @Override
     public void init(ServletConfig config) {
-        File dir = new File(config.getInitParameter("dirPath"));
-        store = new WritableStore(dir);
+        if (store == null) {
+            File dir = new File(config.getInitParameter("dirPath"));
+            store = new WritableStore(dir);
+        }
     }
 
+    /**
+     * Closes the store, so a redeployed servlet can open it again.
+     */
     @Override
-    public long getLastModified(HttpServletRequest req) {
-        return store.getTimestamp(bucket(req), key(req));
+    public void destroy() {
+        store.close();
     }
 
     @Override
     public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        get(req, res, true);
+    }
+
+    @Override
+    public void doHead(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        get(req, res, false);
+    }
+
+    /**
+     * Serves a value, or the requested ranges of it, from a single lookup.
+     * The lookup also gives the ETag and Last-Modified of the value, which
+     * conditional requests are checked against.
+     */
+    private void get(HttpServletRequest req, HttpServletResponse res, boolean body) throws IOException {
         try {
 
+            if ("/stats".equals(req.getPathInfo())) {
+                doStats(req, res);
+                return;
+            }
+
             String bucket = bucket(req);
             String key = key(req);
 
-            if (!store.contains(bucket, key)) {
+            if (key.length() == 0) {
+                doGetAll(req, res, bucket);
+                return;
+            }
+
+            MappedValue value = store.getValue(bucket, key);
+            if (value == null) {
                 res.sendError(HttpServletResponse.SC_NOT_FOUND);
                 return;
             }
 
-            byte[] value = store.get(bucket, key);
+            String etag = value.getETag();
+            long timestamp = value.getTimestamp();
+            if (etag != null) {
+                res.setHeader("ETag", etag);
+            }
+            if (timestamp >= 0) {
+                res.setDateHeader("Last-Modified", timestamp);
+            }
+            res.setHeader("Accept-Ranges", "bytes");
 
-            res.setContentLength(value.length);
+            if (isNotModified(req, etag, timestamp)) {
+                res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
 
             String contentType = req.getHeader("Content-Type");
             if (contentType != null) {
                 res.setContentType(contentType);
             }
 
-            OutputStream out = res.getOutputStream();
-            out.write(value);
-            out.flush();
-            out.close();
+            int length = value.getLength();
+            List<long[]> ranges = null;
+            if (isCurrent(req, "If-Range", etag, timestamp)) {
+                ranges = ranges(req.getHeader("Range"), length);
+            }
+
+            List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+            if (ranges == null) {
+                res.setContentLengthLong(length);
+                buffers.addAll(Arrays.asList(value.getBuffers()));
+            } else if (ranges.isEmpty()) {
+                res.setHeader("Content-Range", "bytes */" + length);
+                res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else if (ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", contentRange(range, length));
+                res.setContentLengthLong(range[1] - range[0] + 1);
+                buffers.addAll(Arrays.asList(slice(value, range).getBuffers()));
+            } else {
+                String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+                String partType = contentType != null ? contentType : "application/octet-stream";
+                long contentLength = 0;
+                for (long[] range : ranges) {
+                    ByteBuffer head = ascii("\r\n--" + boundary + "\r\nContent-Type: " + partType
+                            + "\r\nContent-Range: " + contentRange(range, length) + "\r\n\r\n");
+                    buffers.add(head);
+                    buffers.addAll(Arrays.asList(slice(value, range).getBuffers()));
+                    contentLength += head.remaining() + range[1] - range[0] + 1;
+                }
+                ByteBuffer tail = ascii("\r\n--" + boundary + "--\r\n");
+                buffers.add(tail);
+                contentLength += tail.remaining();
+
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setContentType("multipart/byteranges; boundary=" + boundary);
+                res.setContentLengthLong(contentLength);
+            }
+
+            if (body) {
+                write(req, res, buffers);
+            }
 
         } catch (IllegalArgumentException x) {
             res.sendError(HttpServletResponse.SC_BAD_REQUEST, x.getMessage());
         }
     }
 
+    /**
+     * @return true if If-None-Match, or else If-Modified-Since, shows that
+     *         the client has the current version of the value
+     */
+    private static boolean isNotModified(HttpServletRequest req, String etag, long timestamp) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (etag == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long ifModifiedSince = dateHeader(req, "If-Modified-Since");
+        return ifModifiedSince >= 0 && timestamp >= 0 && timestamp / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * @return true if the header is missing, or names the current version of
+     *         the value by its strong ETag or its exact Last-Modified date
+     */
+    private static boolean isCurrent(HttpServletRequest req, String header, String etag, long timestamp) {
+        String value = req.getHeader(header);
+        if (value == null) {
+            return true;
+        }
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return value.equals(etag);
+        }
+        long date = dateHeader(req, header);
+        return date >= 0 && timestamp >= 0 && timestamp / 1000 == date / 1000;
+    }
+
+    /**
+     * @return the date of a header, or -1 if it is missing or malformed
+     */
+    private static long dateHeader(HttpServletRequest req, String header) {
+        try {
+            return req.getDateHeader(header);
+        } catch (IllegalArgumentException x) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses the byte ranges of a Range header.
+     *
+     * @return the first and last byte of each satisfiable range, in the
+     *         order requested, an empty list if no range is satisfiable, or
+     *         null if the header is missing, malformed or asks for too many
+     *         ranges, in which case the whole value is served
+     */
+    static List<long[]> ranges(String header, long length) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                long first;
+                long last;
+                if (dash == 0) {
+                    // The last bytes of the value
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = length - 1;
+                    if (dash < spec.length() - 1) {
+                        long end = Long.parseLong(spec.substring(dash + 1));
+                        if (end < first) {
+                            return null;
+                        }
+                        last = Math.min(end, last);
+                    }
+                }
+                if (first < length) {
+                    ranges.add(new long[] { first, last });
+                }
+            } catch (NumberFormatException x) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    private static MappedValue slice(MappedValue value, long[] range) {
+        return value.slice((int) range[0], (int) (range[1] - range[0] + 1));
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    private static ByteBuffer ascii(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void doGetAll(HttpServletRequest req, HttpServletResponse res, String bucket) throws IOException {
+        String[] keys = req.getParameterValues("key");
+        if (keys == null) {
+            doList(req, res, bucket);
+            return;
+        }
+
+        Map<String, MappedValue> values = store.getAll(bucket, new LinkedHashSet<String>(Arrays.asList(keys)));
+
+        // Found values in the order they are stored, then the missing keys
+        Map<String, MappedValue> entries = new LinkedHashMap<String, MappedValue>(values);
+        for (String key : keys) {
+            if (!entries.containsKey(key)) {
+                entries.put(key, null);
+            }
+        }
+
+        long length = 0;
+        for (Map.Entry<String, MappedValue> e : entries.entrySet()) {
+            MappedValue value = e.getValue();
+            length += 8 + e.getKey().getBytes("utf8").length + (value == null ? 0 : value.getLength());
+        }
+
+        res.setContentType(BATCH_CONTENT_TYPE);
+        res.setContentLengthLong(length);
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (Map.Entry<String, MappedValue> e : entries.entrySet()) {
+            byte[] keyBytes = e.getKey().getBytes("utf8");
+            MappedValue value = e.getValue();
+            ByteBuffer head = ByteBuffer.allocate(8 + keyBytes.length);
+            head.putInt(keyBytes.length);
+            head.put(keyBytes);
+            head.putInt(value == null ? -1 : value.getLength());
+            head.flip();
+            buffers.add(head);
+            if (value != null) {
+                buffers.addAll(Arrays.asList(value.getBuffers()));
+            }
+        }
+        write(req, res, buffers);
+    }
+
+    /**
+     * Serves the stats and latencies of the store and its buckets as JSON,
+     * see {@link StatsJson}.
+     */
+    private void doStats(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        byte[] bytes = StatsJson.of(store).getBytes(StandardCharsets.UTF_8);
+        res.setContentType("application/json; charset=UTF-8");
+        res.setHeader("Cache-Control", "no-cache");
+        res.setContentLength(bytes.length);
+        write(req, res, Collections.singletonList(ByteBuffer.wrap(bytes)));
+    }
+
+    /**
+     * Lists a page of keys, one per line. If there are more keys, the
+     * response carries a <code>X-Kevlar-Truncated</code> header and the next
+     * page starts after the last key of this one.
+     */
+    private void doList(HttpServletRequest req, HttpServletResponse res, String bucket) throws IOException {
+        int limit = DEFAULT_LIST_LIMIT;
+        String limitParam = req.getParameter("limit");
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException x) {
+                throw new IllegalArgumentException("Invalid limit: " + limitParam);
+            }
+            if (limit < 1 || limit > MAX_LIST_LIMIT) {
+                throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIST_LIMIT);
+            }
+        }
+
+        // One more than asked for tells if there is another page
+        List<String> keys = store.keys(bucket, req.getParameter("prefix"), req.getParameter("startAfter"),
+                limit + 1);
+        if (keys.size() > limit) {
+            keys = keys.subList(0, limit);
+            res.setHeader("X-Kevlar-Truncated", "true");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            sb.append(key).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        res.setContentType("text/plain; charset=UTF-8");
+        res.setContentLength(bytes.length);
+        write(req, res, Collections.singletonList(ByteBuffer.wrap(bytes)));
+    }
+
+    /**
+     * Writes buffers to the response without blocking, and completes the
+     * request when done.
+     */
+    private void write(HttpServletRequest req, HttpServletResponse res, List<ByteBuffer> buffers)
+            throws IOException {
+        AsyncContext ctx = req.startAsync();
+        ServletOutputStream out = res.getOutputStream();
+        out.setWriteListener(new BufferWriter(ctx, out, buffers));
+    }
+
     @Override
     public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
         try {
 
+            final String bucket = bucket(req);
+            final String key = key(req);
+
+            final AsyncContext ctx = req.startAsync();
             ServletInputStream in = req.getInputStream();
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
 
-            byte[] bytes = new byte[2048];
-            int read = 0;
-            while ((read = in.read(bytes)) > 0) {
-                bout.write(bytes, 0, read);
+            if (key.length() == 0) {
+                in.setReadListener(new BodyReader(ctx, in) {
+                    @Override
+                    void onBody(byte[] body) throws IOException {
+                        acknowledge(ctx, store.putAllAcknowledged(bucket, readBatch(new ByteArrayInputStream(body))));
+                    }
+                });
+                return;
             }
-            bout.flush();
-            bout.close();
 
-            store.put(bucket(req), key(req), bout.toByteArray());
+            // Write the body straight into the log when its length is known,
+            // unless it has to be compressed first
+            int length = req.getContentLength();
+            if (length >= 0 && !store.isCompressed(bucket)) {
+                WritableBucket.StreamingPut put;
+                try {
+                    put = store.beginPut(bucket, key, length);
+                } catch (WritableBucket.TooLargeException x) {
+                    fail(ctx, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, x.getMessage());
+                    return;
+                } catch (IllegalArgumentException x) {
+                    fail(ctx, HttpServletResponse.SC_BAD_REQUEST, x.getMessage());
+                    return;
+                }
+                in.setReadListener(new StreamReader(ctx, in, put));
+                return;
+            }
+
+            in.setReadListener(new BodyReader(ctx, in) {
+                @Override
+                void onBody(byte[] body) {
+                    acknowledge(ctx, store.putAllAcknowledged(bucket, Collections.singletonMap(key, body)));
+                }
+            });
 
         } catch (IllegalArgumentException x) {
             res.sendError(HttpServletResponse.SC_BAD_REQUEST, x.getMessage());
         }
     }
 
+    @Override
+    public void doDelete(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        try {
+
+            String bucket = bucket(req);
+            String key = key(req);
+            if (key.length() == 0) {
+                throw new IllegalArgumentException("No key");
+            }
+
+            Commit commit = store.deleteAcknowledged(bucket, key);
+            if (commit == null) {
+                res.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            acknowledge(req.startAsync(), commit);
+
+        } catch (IllegalArgumentException x) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, x.getMessage());
+        }
+    }
+
+    /**
+     * Completes the request once commit completes.
+     */
+    private static void acknowledge(final AsyncContext ctx, final Commit commit) {
+        commit.whenComplete(new Runnable() {
+            @Override
+            public void run() {
+                if (commit.getError() != null) {
+                    fail(ctx, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, commit.getError().getMessage());
+                } else {
+                    ctx.complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends an error and completes the request.
+     */
+    private static void fail(AsyncContext ctx, int status, String message) {
+        try {
+            ((HttpServletResponse) ctx.getResponse()).sendError(status, message);
+        } catch (IOException x) {
+            // The client is gone
+        } catch (IllegalStateException x) {
+            // The response has been committed
+        }
+        ctx.complete();
+    }
+
+    /**
+     * Reads the entries of a batch put.
+     */
+    private Map<String, byte[]> readBatch(InputStream in) throws IOException {
+        Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+        DataInputStream din = new DataInputStream(in);
+        while (true) {
+            int keyLength;
+            try {
+                keyLength = din.readInt();
+            } catch (EOFException x) {
+                return values;
+            }
+
+            try {
+                if (keyLength <= 0 || keyLength > Byte.MAX_VALUE) {
+                    throw new IllegalArgumentException("Bad key length " + keyLength);
+                }
+                byte[] keyBytes = new byte[keyLength];
+                din.readFully(keyBytes);
+
+                int valueLength = din.readInt();
+                if (valueLength < 0) {
+                    throw new IllegalArgumentException("Bad value length " + valueLength);
+                }
+                byte[] value = new byte[valueLength];
+                din.readFully(value);
+
+                values.put(new String(keyBytes, "utf8"), value);
+            } catch (EOFException x) {
+                throw new IllegalArgumentException("Truncated batch");
+            }
+        }
+    }
+
     @Override
     public void doPut(HttpServletRequest req, HttpServletResponse res) throws IOException {
         doPost(req, res);
     }
 
     private String bucket(HttpServletRequest req) {
+        String bucket;
         try {
             String pathInfo = req.getPathInfo().substring(1);
-            return pathInfo.substring(0, pathInfo.indexOf("/"));
+            bucket = pathInfo.substring(0, pathInfo.indexOf("/"));
         } catch (Exception x) {
             throw new IllegalArgumentException("Expected " + req.getServletPath() + "/<bucket>/<key>");
         }
+        return WritableStore.checkBucketName(bucket);
     }
 
     private String key(HttpServletRequest req) {
@@ -103,4 +605,169 @@ public class KevlarServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Writes buffers to a response as fast as the client takes them.
+     */
+    private static class BufferWriter implements WriteListener {
+
+        private final AsyncContext ctx;
+        private final ServletOutputStream out;
+        private final List<ByteBuffer> buffers;
+        private final byte[] bytes = new byte[IO_BUFFER_SIZE];
+        private int next = 0;
+
+        BufferWriter(AsyncContext ctx, ServletOutputStream out, List<ByteBuffer> buffers) {
+            this.ctx = ctx;
+            this.out = out;
+            this.buffers = buffers;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while (out.isReady()) {
+                if (next == buffers.size()) {
+                    ctx.complete();
+                    return;
+                }
+                ByteBuffer buf = buffers.get(next);
+                if (!buf.hasRemaining()) {
+                    ++next;
+                    continue;
+                }
+                int length = Math.min(bytes.length, buf.remaining());
+                buf.get(bytes, 0, length);
+                out.write(bytes, 0, length);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            ctx.complete();
+        }
+
+    }
+
+    /**
+     * Reads a whole request body into memory, then passes it on.
+     */
+    private abstract static class BodyReader implements ReadListener {
+
+        private final AsyncContext ctx;
+        private final ServletInputStream in;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final byte[] bytes = new byte[IO_BUFFER_SIZE];
+
+        BodyReader(AsyncContext ctx, ServletInputStream in) {
+            this.ctx = ctx;
+            this.in = in;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            int read;
+            while (in.isReady() && (read = in.read(bytes)) >= 0) {
+                body.write(bytes, 0, read);
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            try {
+                onBody(body.toByteArray());
+            } catch (IllegalArgumentException x) {
+                fail(ctx, HttpServletResponse.SC_BAD_REQUEST, x.getMessage());
+            } catch (Exception x) {
+                fail(ctx, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, x.getMessage());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // The body ended early, or the client is gone
+            fail(ctx, HttpServletResponse.SC_BAD_REQUEST, t.getMessage());
+        }
+
+        /**
+         * Handles the body, and completes the request.
+         */
+        abstract void onBody(byte[] body) throws IOException;
+
+    }
+
+    /**
+     * Writes a request body into its reserved record as it arrives.
+     */
+    private static class StreamReader implements ReadListener {
+
+        private final AsyncContext ctx;
+        private final ServletInputStream in;
+        private final WritableBucket.StreamingPut put;
+        private final byte[] bytes = new byte[IO_BUFFER_SIZE];
+        private boolean failed = false;
+
+        StreamReader(AsyncContext ctx, ServletInputStream in, WritableBucket.StreamingPut put) {
+            this.ctx = ctx;
+            this.in = in;
+            this.put = put;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            try {
+                int read;
+                while (in.isReady() && (read = in.read(bytes)) >= 0) {
+                    // Drain the rest of a rejected body
+                    if (!failed) {
+                        put.write(bytes, 0, read);
+                    }
+                }
+            } catch (IllegalArgumentException x) {
+                // More than Content-Length
+                failed = true;
+                put.abort();
+                fail(ctx, HttpServletResponse.SC_BAD_REQUEST, x.getMessage());
+            } catch (IOException x) {
+                // Failed to write, or timed out waiting for the body
+                put.abort();
+                throw x;
+            }
+        }
+
+        /**
+         * Commits the put off the container thread, as it forces the value
+         * to disk.
+         */
+        @Override
+        public void onAllDataRead() {
+            if (failed) {
+                return;
+            }
+            final Commit commit = put.commitAsync();
+            commit.whenComplete(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable error = commit.getError();
+                    if (error == null) {
+                        ctx.complete();
+                    } else if (error instanceof EOFException) {
+                        // The body was shorter than its Content-Length
+                        put.abort();
+                        fail(ctx, HttpServletResponse.SC_BAD_REQUEST, error.getMessage());
+                    } else {
+                        put.abort();
+                        fail(ctx, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, error.getMessage());
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // The body ended early, or the client is gone
+            put.abort();
+            fail(ctx, HttpServletResponse.SC_BAD_REQUEST, t.getMessage());
+        }
+
+    }
+
 }
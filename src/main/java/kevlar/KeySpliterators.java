@@ -0,0 +1,152 @@
+package kevlar;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Builds the spliterators over buckets and stores out of the spliterators of
+ * their indexes. Nothing is copied: each spliterator reads from the one it
+ * wraps as it advances, and splits where the one it wraps splits.
+ *
+ * @author david
+ */
+class KeySpliterators {
+
+    private KeySpliterators() {
+    }
+
+    /**
+     * @param mapper maps an element, or returns null to skip it
+     * @return the mapped elements of source
+     */
+    static <S, T> Spliterator<T> map(Spliterator<S> source, Function<? super S, ? extends T> mapper) {
+        return new Mapped<S, T>(source, mapper);
+    }
+
+    /**
+     * @param sources opened one after another as the spliterator advances
+     * @return the elements of all sources
+     */
+    static <T> Spliterator<T> concat(List<Supplier<Spliterator<T>>> sources) {
+        return new Concat<T>(sources);
+    }
+
+    private static class Mapped<S, T> implements Spliterator<T> {
+
+        private final Spliterator<S> source;
+        private final Function<? super S, ? extends T> mapper;
+
+        Mapped(Spliterator<S> source, Function<? super S, ? extends T> mapper) {
+            this.source = source;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            final boolean[] mapped = { false };
+            Consumer<S> consumer = new Consumer<S>() {
+                @Override
+                public void accept(S s) {
+                    T t = mapper.apply(s);
+                    if (t != null) {
+                        mapped[0] = true;
+                        action.accept(t);
+                    }
+                }
+            };
+            while (source.tryAdvance(consumer)) {
+                if (mapped[0]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Spliterator<S> prefix = source.trySplit();
+            return prefix == null ? null : new Mapped<S, T>(prefix, mapper);
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return source.characteristics() & (Spliterator.CONCURRENT | Spliterator.NONNULL);
+        }
+
+    }
+
+    /**
+     * Splits the sources not yet opened in halves, and the source being
+     * traversed once it is the last one.
+     */
+    private static class Concat<T> implements Spliterator<T> {
+
+        private final List<Supplier<Spliterator<T>>> sources;
+        private int next;
+        private Spliterator<T> current;
+
+        Concat(List<Supplier<Spliterator<T>>> sources) {
+            this.sources = sources;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (true) {
+                if (current == null) {
+                    if (next == sources.size()) {
+                        return false;
+                    }
+                    current = sources.get(next++).get();
+                }
+                if (current.tryAdvance(action)) {
+                    return true;
+                }
+                current = null;
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int remaining = sources.size() - next;
+            if (current == null && remaining == 1) {
+                current = sources.get(next++).get();
+                remaining = 0;
+            }
+            if (remaining == 0) {
+                return current == null ? null : current.trySplit();
+            }
+            if (current == null) {
+                int mid = next + remaining / 2;
+                Concat<T> prefix = new Concat<T>(sources.subList(next, mid));
+                next = mid;
+                return prefix;
+            }
+
+            // Hand over what is left of the current source, keep the rest
+            Spliterator<T> prefix = current;
+            current = null;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            // Sources are only opened when traversed
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.NONNULL;
+        }
+
+    }
+
+}
@@ -0,0 +1,41 @@
+package kevlar;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * Compresses values with LZ4, which trades some ratio for much faster
+ * compression and decompression than Deflate.
+ *
+ * @author david
+ */
+public class Lz4Codec implements Codec {
+
+    static final int ID = 2;
+
+    private final LZ4Compressor compressor;
+    private final LZ4FastDecompressor decompressor;
+
+    public Lz4Codec() {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        compressor = factory.fastCompressor();
+        decompressor = factory.fastDecompressor();
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] value) {
+        return compressor.compress(value);
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] dest) {
+        decompressor.decompress(src, offset, dest, 0, dest.length);
+    }
+
+}
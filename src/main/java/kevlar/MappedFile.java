@@ -0,0 +1,110 @@
+package kevlar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A file that is memory mapped in fixed-size chunks. When the file grows,
+ * only the last, partially mapped chunk and any new chunks are mapped. Full
+ * chunks are mapped once and reused.
+ *
+ * @author david
+ */
+class MappedFile {
+
+    static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+    /**
+     * System property overriding the default chunk size, e.g. to exercise
+     * values that span chunks.
+     */
+    static final String CHUNK_SIZE_PROPERTY = "kevlar.chunkSize";
+
+    private final File file;
+    private final int chunkSize;
+
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private long size;
+
+    public MappedFile(File file) {
+        this(file, Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE));
+    }
+
+    public MappedFile(File file, int chunkSize) {
+        this.file = file;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Maps data appended to the file since the last call.
+     */
+    public synchronized void remap() {
+        FileInputStream fis = null;
+        FileChannel fc = null;
+        try {
+
+            fis = new FileInputStream(file);
+            fc = fis.getChannel();
+
+            long newSize = fc.size();
+            if (newSize == size && chunks.length > 0) {
+                return;
+            }
+
+            int numChunks = (int) (newSize / chunkSize) + 1;
+            MappedByteBuffer[] newChunks = new MappedByteBuffer[numChunks];
+
+            // Reuse every chunk that is already mapped in full
+            int reused = 0;
+            while (reused < chunks.length && reused < numChunks && chunks[reused].capacity() == chunkSize) {
+                newChunks[reused] = chunks[reused];
+                ++reused;
+            }
+
+            for (int i = reused; i < numChunks; ++i) {
+                long offset = (long) i * chunkSize;
+                long length = Math.min(newSize - offset, chunkSize);
+                newChunks[i] = fc.map(MapMode.READ_ONLY, offset, length);
+            }
+
+            chunks = newChunks;
+            size = newSize;
+
+        } catch (Exception x) {
+            throw new RuntimeException(x);
+        } finally {
+            Util.close(fc);
+            Util.close(fis);
+        }
+    }
+
+    /**
+     * Drops all mappings and maps the file from scratch, e.g. after it has
+     * been replaced.
+     */
+    public synchronized void reset() {
+        chunks = new MappedByteBuffer[0];
+        size = 0;
+        remap();
+    }
+
+    /**
+     * @return the mapped chunks. Callers must not modify the position or
+     *         limit of the returned buffers.
+     */
+    public ByteBuffer[] chunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+}
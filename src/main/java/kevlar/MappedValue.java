@@ -0,0 +1,164 @@
+package kevlar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A value read straight from the memory mapped data file, without copying
+ * it to the heap. A value that crosses a chunk boundary of the mapping is
+ * made up of more than one buffer.
+ *
+ * @author david
+ */
+public class MappedValue {
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final ByteBuffer[] buffers;
+    private final int length;
+
+    private final long timestamp;
+    private final String etag;
+
+    MappedValue(ByteBuffer[] buffers) {
+        this(buffers, -1, null);
+    }
+
+    MappedValue(ByteBuffer[] buffers, long timestamp, String etag) {
+        this.buffers = buffers;
+        int length = 0;
+        for (ByteBuffer buf : buffers) {
+            length += buf.remaining();
+        }
+        this.length = length;
+        this.timestamp = timestamp;
+        this.etag = etag;
+    }
+
+    /**
+     * @return the entity tag of a stored record. A record is never written
+     *         twice at the same place with the same timestamp, so the tag
+     *         changes whenever the value may have.
+     */
+    static String etag(int segment, long offset, long timestamp) {
+        return "\"" + Integer.toHexString(segment) + "-" + Long.toHexString(offset) + "-"
+                + Long.toHexString(timestamp) + "\"";
+    }
+
+    /**
+     * @return the entity tag of a put that has not been written yet
+     */
+    static String etag(Object put, long timestamp) {
+        return "\"b" + Integer.toHexString(System.identityHashCode(put)) + "-" + Long.toHexString(timestamp)
+                + "\"";
+    }
+
+    /**
+     * @return the time when the mapping was created or updated, or -1 if
+     *         unknown
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return a quoted strong entity tag for this version of the value, or
+     *         null if unknown
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return the length of the value in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return read-only buffers holding the value, in order. Each call returns
+     *         new buffers, so their positions may be changed freely.
+     */
+    public ByteBuffer[] getBuffers() {
+        ByteBuffer[] bufs = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; ++i) {
+            bufs[i] = buffers[i].duplicate();
+        }
+        return bufs;
+    }
+
+    /**
+     * @return the bytes [offset, offset + length) of the value, backed by
+     *         the same buffers
+     */
+    public MappedValue slice(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IndexOutOfBoundsException("Slice " + offset + "+" + length + " of " + this.length);
+        }
+        List<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+        for (ByteBuffer buf : getBuffers()) {
+            int size = buf.remaining();
+            if (offset < size && length > 0) {
+                int end = Math.min(size, offset + length);
+                buf.limit(buf.position() + end);
+                buf.position(buf.position() + offset);
+                slices.add(buf.slice());
+                length -= end - offset;
+            }
+            offset = Math.max(0, offset - size);
+        }
+        return new MappedValue(slices.toArray(new ByteBuffer[slices.size()]), timestamp, etag);
+    }
+
+    /**
+     * Writes the value to a channel.
+     *
+     * @param ch the channel
+     * @throws IOException on write errors
+     */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+        for (ByteBuffer buf : getBuffers()) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Writes the value to a stream through a small copy buffer, so the value
+     * is never materialized on the heap as a whole.
+     *
+     * @param out the stream
+     * @throws IOException on write errors
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] bytes = new byte[Math.min(COPY_BUFFER_SIZE, length)];
+        for (ByteBuffer buf : getBuffers()) {
+            while (buf.hasRemaining()) {
+                int size = Math.min(bytes.length, buf.remaining());
+                buf.get(bytes, 0, size);
+                out.write(bytes, 0, size);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the value
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (ByteBuffer buf : getBuffers()) {
+            int size = buf.remaining();
+            buf.get(bytes, offset, size);
+            offset += size;
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,59 @@
+package kevlar;
+
+/**
+ * The latencies of the operations of a bucket, or of a whole store. The
+ * metrics of a bucket also record into the metrics of its store.
+ *
+ * @author david
+ */
+class Metrics {
+
+    /**
+     * The timed operations.
+     */
+    enum Op {
+
+        GET, GET_ALL, PUT, DELETE, FLUSH, FSYNC, MMAP, INDEX_SAVE, COMPACT;
+
+        /**
+         * @return the name of the operation in JMX and /stats
+         */
+        String label() {
+            StringBuilder sb = new StringBuilder();
+            for (String word : name().toLowerCase().split("_")) {
+                sb.append(sb.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+            }
+            return sb.toString();
+        }
+
+    }
+
+    private final Histogram[] histograms = new Histogram[Op.values().length];
+
+    Metrics() {
+        this(null);
+    }
+
+    /**
+     * @param parent also records every sample, or null
+     */
+    Metrics(Metrics parent) {
+        for (Op op : Op.values()) {
+            histograms[op.ordinal()] = new Histogram(parent == null ? null : parent.get(op));
+        }
+    }
+
+    /**
+     * Records the time an operation took.
+     *
+     * @param start the {@link System#nanoTime()} when the operation started
+     */
+    void record(Op op, long start) {
+        histograms[op.ordinal()].recordSince(start);
+    }
+
+    Histogram get(Op op) {
+        return histograms[op.ordinal()];
+    }
+
+}
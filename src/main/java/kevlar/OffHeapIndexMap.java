@@ -0,0 +1,713 @@
+package kevlar;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * An open-addressing hash table of index entries stored in direct memory,
+ * so the index adds no objects to the heap no matter how many keys it holds.
+ *
+ * In full mode, each slot holds a 32-bit hash and a reference to a record in
+ * an arena of direct pages: the entry, the key length and the UTF-8 key
+ * bytes. In hash-only mode, each slot holds a 64-bit hash and the entry, and
+ * keys are verified against the record on disk through a {@link KeyReader}.
+ *
+ * Lookups take no lock. They read the table optimistically and check that no
+ * write happened meanwhile, so they never write to memory shared between
+ * cores and scale with the number of readers. Only a lookup that raced with
+ * a write is retried under the read lock.
+ *
+ * @author david
+ */
+class OffHeapIndexMap extends AbstractMap<String, Index.Entry> {
+
+    /**
+     * Reads keys from the data file, for hash-only mode.
+     */
+    interface KeyReader {
+
+        /**
+         * @return the UTF-8 key of the record at offset
+         */
+        byte[] readKey(int segment, long offset);
+
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Timestamp, offset, segment and record size.
+     */
+    private static final int ENTRY_SIZE = 24;
+
+    private static final int FULL_SLOT_SIZE = 12;
+    private static final int HASH_ONLY_SLOT_SIZE = 8 + ENTRY_SIZE;
+
+    private static final long REMOVED = -1;
+
+    private static final int FIRST_PAGE_SIZE = 64 * 1024;
+    private static final int MAX_PAGE_SIZE = 64 * 1024 * 1024;
+    private static final int KEY_LENGTH_OFFSET = ENTRY_SIZE;
+    private static final int RECORD_HEADER_SIZE = ENTRY_SIZE + 1;
+
+    private final KeyReader keyReader;
+    private final int slotSize;
+
+    /**
+     * The table is a single direct buffer, which bounds the number of slots.
+     */
+    private final int maxCapacity;
+
+    /**
+     * Mixed into the probe position, so that entries copied in the slot
+     * order of another map, e.g. from a checkpoint, do not pile up in one
+     * long cluster while the table is still small.
+     */
+    private final int seed = (int) hash(String.valueOf(System.nanoTime()).getBytes());
+
+    private final StampedLock lock = new StampedLock();
+
+    private ByteBuffer table;
+    private int capacity;
+    private int size;
+    private int removed;
+
+    private List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+    private long liveBytes;
+    private long deadBytes;
+
+    /**
+     * Creates a map in full mode.
+     */
+    public OffHeapIndexMap() {
+        this(null);
+    }
+
+    /**
+     * Creates a map in hash-only mode if keyReader is not null, otherwise in
+     * full mode.
+     */
+    public OffHeapIndexMap(KeyReader keyReader) {
+        this.keyReader = keyReader;
+        this.slotSize = (keyReader == null) ? FULL_SLOT_SIZE : HASH_ONLY_SLOT_SIZE;
+        this.maxCapacity = Integer.highestOneBit(Integer.MAX_VALUE / slotSize);
+        init(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = this.size;
+        if (lock.validate(stamp)) {
+            return size;
+        }
+        stamp = lock.readLock();
+        try {
+            return this.size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Index.Entry get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        byte[] keyBytes = utf8((String) key);
+        long hash = hash(keyBytes);
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                ByteBuffer table = this.table;
+                int slot = find(table, keyBytes, hash);
+                Index.Entry entry = slot < 0 ? null : entryAt(table, slot);
+                if (lock.validate(stamp)) {
+                    return entry;
+                }
+            } catch (RuntimeException x) {
+                // Read a slot or page while it was being written
+                if (lock.validate(stamp)) {
+                    throw x;
+                }
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            int slot = find(table, keyBytes, hash);
+            if (slot < 0) {
+                return null;
+            }
+            return entryAt(slot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Index.Entry put(String key, Index.Entry value) {
+        byte[] keyBytes = utf8(key);
+        long hash = hash(keyBytes);
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(table, keyBytes, hash);
+            if (slot >= 0) {
+                Index.Entry previous = entryAt(slot);
+                update(slot, value);
+                return previous;
+            }
+
+            if (size + removed + 1 > capacity * LOAD_FACTOR) {
+                resize(size + 1 > capacity * LOAD_FACTOR / 2 ? capacity * 2 : capacity);
+            }
+
+            insert(keyBytes, hash, value);
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Index.Entry> m) {
+        for (Map.Entry<? extends String, ? extends Index.Entry> e : m.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public Index.Entry remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        byte[] keyBytes = utf8((String) key);
+        long hash = hash(keyBytes);
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(table, keyBytes, hash);
+            if (slot < 0) {
+                return null;
+            }
+            Index.Entry previous = entryAt(slot);
+            if (keyReader == null) {
+                long ref = table.getLong(slot * slotSize + 4);
+                int recordSize = RECORD_HEADER_SIZE + page(ref).get(pageOffset(ref) + KEY_LENGTH_OFFSET);
+                liveBytes -= recordSize;
+                deadBytes += recordSize;
+                table.putLong(slot * slotSize + 4, REMOVED);
+            } else {
+                table.putLong(slot * slotSize, REMOVED);
+            }
+            --size;
+            ++removed;
+
+            if (deadBytes > liveBytes && deadBytes > MAX_PAGE_SIZE) {
+                resize(capacity);
+            }
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            init(INITIAL_CAPACITY);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Index.Entry>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Index.Entry>>() {
+            @Override
+            public Iterator<Map.Entry<String, Index.Entry>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public Spliterator<Map.Entry<String, Index.Entry>> spliterator() {
+                return new EntrySpliterator(0, -1);
+            }
+
+            @Override
+            public int size() {
+                return OffHeapIndexMap.this.size();
+            }
+        };
+    }
+
+    private void init(int newCapacity) {
+        capacity = newCapacity;
+        table = ByteBuffer.allocateDirect(capacity * slotSize);
+        size = 0;
+        removed = 0;
+        pages = new ArrayList<ByteBuffer>();
+        liveBytes = 0;
+        deadBytes = 0;
+    }
+
+    /**
+     * Rebuilds the table with a new capacity, dropping removed slots and
+     * dead arena records.
+     */
+    private void resize(int newCapacity) {
+        if (newCapacity > maxCapacity) {
+            throw new IllegalStateException("Off-heap index is full: " + size + " keys");
+        }
+
+        ByteBuffer oldTable = table;
+        int oldCapacity = capacity;
+        List<ByteBuffer> oldPages = pages;
+
+        init(newCapacity);
+
+        for (int slot = 0; slot < oldCapacity; ++slot) {
+            int position = slot * slotSize;
+            if (keyReader == null) {
+                long ref = oldTable.getLong(position + 4);
+                if (ref != 0 && ref != REMOVED) {
+                    ByteBuffer page = oldPages.get((int) ((ref - 1) >>> 32));
+                    int offset = pageOffset(ref);
+                    byte[] keyBytes = new byte[page.get(offset + KEY_LENGTH_OFFSET)];
+                    for (int i = 0; i < keyBytes.length; ++i) {
+                        keyBytes[i] = page.get(offset + RECORD_HEADER_SIZE + i);
+                    }
+                    Index.Entry entry = readEntry(page, offset);
+                    insert(keyBytes, oldTable.getInt(position), entry);
+                }
+            } else {
+                long hash = oldTable.getLong(position);
+                if (hash != 0 && hash != REMOVED) {
+                    int newSlot = probeStart(hash);
+                    while (table.getLong(newSlot * slotSize) != 0) {
+                        newSlot = (newSlot + 1) & (capacity - 1);
+                    }
+                    for (int i = 0; i < slotSize; i += 8) {
+                        table.putLong(newSlot * slotSize + i, oldTable.getLong(position + i));
+                    }
+                    ++size;
+                }
+            }
+        }
+    }
+
+    /**
+     * Probes at most every slot, so a lookup racing with a resize always
+     * ends. The capacity is taken from the table, which may be a new one.
+     *
+     * @return the slot holding key, or -1
+     */
+    private int find(ByteBuffer table, byte[] keyBytes, long hash) {
+        int capacity = table.capacity() / slotSize;
+        int slot = probeStart(hash, capacity);
+        for (int probes = 0; probes < capacity; ++probes) {
+            int position = slot * slotSize;
+            if (keyReader == null) {
+                long ref = table.getLong(position + 4);
+                if (ref == 0) {
+                    return -1;
+                }
+                if (ref != REMOVED && table.getInt(position) == (int) hash && keyEquals(ref, keyBytes)) {
+                    return slot;
+                }
+            } else {
+                long slotHash = table.getLong(position);
+                if (slotHash == 0) {
+                    return -1;
+                }
+                if (slotHash == hash && keyEquals(readEntry(table, position + 8), keyBytes)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    private void insert(byte[] keyBytes, long hash, Index.Entry value) {
+        int slot = probeStart(hash);
+        while (!isFree(slot)) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        if (isRemoved(slot)) {
+            --removed;
+        }
+
+        int position = slot * slotSize;
+        if (keyReader == null) {
+            table.putInt(position, (int) hash);
+            table.putLong(position + 4, allocate(keyBytes, value));
+        } else {
+            table.putLong(position, hash);
+            writeEntry(table, position + 8, value);
+        }
+        ++size;
+    }
+
+    private void update(int slot, Index.Entry value) {
+        int position = slot * slotSize;
+        if (keyReader == null) {
+            long ref = table.getLong(position + 4);
+            writeEntry(page(ref), pageOffset(ref), value);
+        } else {
+            writeEntry(table, position + 8, value);
+        }
+    }
+
+    private Index.Entry entryAt(int slot) {
+        return entryAt(table, slot);
+    }
+
+    private Index.Entry entryAt(ByteBuffer table, int slot) {
+        int position = slot * slotSize;
+        if (keyReader == null) {
+            long ref = table.getLong(position + 4);
+            return readEntry(page(ref), pageOffset(ref));
+        }
+        return readEntry(table, position + 8);
+    }
+
+    private String keyAt(int slot) {
+        try {
+            long ref = table.getLong(slot * slotSize + 4);
+            ByteBuffer page = page(ref);
+            int offset = pageOffset(ref);
+            byte[] keyBytes = new byte[page.get(offset + KEY_LENGTH_OFFSET)];
+            for (int i = 0; i < keyBytes.length; ++i) {
+                keyBytes[i] = page.get(offset + RECORD_HEADER_SIZE + i);
+            }
+            return new String(keyBytes, "utf8");
+        } catch (UnsupportedEncodingException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    private boolean isFree(int slot) {
+        if (keyReader == null) {
+            long ref = table.getLong(slot * slotSize + 4);
+            return ref == 0 || ref == REMOVED;
+        }
+        long hash = table.getLong(slot * slotSize);
+        return hash == 0 || hash == REMOVED;
+    }
+
+    private boolean isRemoved(int slot) {
+        if (keyReader == null) {
+            return table.getLong(slot * slotSize + 4) == REMOVED;
+        }
+        return table.getLong(slot * slotSize) == REMOVED;
+    }
+
+    /**
+     * Only the low 32 bits are used, since that is all full mode keeps.
+     */
+    private int probeStart(long hash) {
+        return probeStart(hash, capacity);
+    }
+
+    private int probeStart(long hash, int capacity) {
+        int h = ((int) hash ^ seed) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    /**
+     * Appends a record to the arena.
+     *
+     * @return a reference to the record, never 0
+     */
+    private long allocate(byte[] keyBytes, Index.Entry value) {
+        int recordSize = RECORD_HEADER_SIZE + keyBytes.length;
+
+        ByteBuffer page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (page == null || page.remaining() < recordSize) {
+            int pageSize = (page == null) ? FIRST_PAGE_SIZE : Math.min(page.capacity() * 2, MAX_PAGE_SIZE);
+            page = ByteBuffer.allocateDirect(pageSize);
+            pages.add(page);
+        }
+
+        int offset = page.position();
+        writeEntry(page, offset, value);
+        page.position(offset + ENTRY_SIZE);
+        page.put((byte) keyBytes.length);
+        page.put(keyBytes);
+        liveBytes += recordSize;
+
+        return (((long) (pages.size() - 1) << 32) | offset) + 1;
+    }
+
+    private ByteBuffer page(long ref) {
+        return pages.get((int) ((ref - 1) >>> 32));
+    }
+
+    private static int pageOffset(long ref) {
+        return (int) (ref - 1);
+    }
+
+    private boolean keyEquals(long ref, byte[] keyBytes) {
+        ByteBuffer page = page(ref);
+        int offset = pageOffset(ref);
+        if (page.get(offset + KEY_LENGTH_OFFSET) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyBytes.length; ++i) {
+            if (page.get(offset + RECORD_HEADER_SIZE + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifies a key against the record on disk, in hash-only mode.
+     */
+    private boolean keyEquals(Index.Entry entry, byte[] keyBytes) {
+        return Arrays.equals(keyBytes, keyReader.readKey(entry.getSegment(), entry.getOffset()));
+    }
+
+    private static Index.Entry readEntry(ByteBuffer buf, int position) {
+        return new Index.Entry(buf.getLong(position), buf.getInt(position + 16), buf.getLong(position + 8),
+                buf.getInt(position + 20));
+    }
+
+    private static void writeEntry(ByteBuffer buf, int position, Index.Entry entry) {
+        buf.putLong(position, entry.getTimestamp());
+        buf.putLong(position + 8, entry.getOffset());
+        buf.putInt(position + 16, entry.getSegment());
+        buf.putInt(position + 20, entry.getSize());
+    }
+
+    /**
+     * 64-bit FNV-1a followed by a finalizer to spread the bits. Never
+     * returns 0 or {@link #REMOVED}, which mark free slots in hash-only mode.
+     */
+    private static long hash(byte[] keyBytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        if (h == 0 || h == REMOVED) {
+            h = 1;
+        }
+        return h;
+    }
+
+    private static byte[] utf8(String key) {
+        try {
+            return key.getBytes("utf8");
+        } catch (UnsupportedEncodingException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    /**
+     * Iterates over the slots. The iterator is weakly consistent: it never
+     * fails on concurrent modification, but may miss concurrent changes. In
+     * hash-only mode, keys are only read from disk when asked for.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, Index.Entry>> {
+
+        private int slot = -1;
+        private String nextKey;
+        private Index.Entry nextEntry;
+
+        private String currentKey;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            long stamp = lock.readLock();
+            try {
+                nextEntry = null;
+                while (++slot < capacity) {
+                    if (!isFree(slot)) {
+                        nextEntry = entryAt(slot);
+                        nextKey = (keyReader == null) ? keyAt(slot) : null;
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Map.Entry<String, Index.Entry> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Index.Entry entry = nextEntry;
+            final String[] key = { nextKey };
+            currentKey = nextKey;
+            advance();
+
+            return new Map.Entry<String, Index.Entry>() {
+
+                @Override
+                public String getKey() {
+                    if (key[0] == null) {
+                        try {
+                            key[0] = new String(keyReader.readKey(entry.getSegment(), entry.getOffset()), "utf8");
+                        } catch (UnsupportedEncodingException x) {
+                            throw new RuntimeException(x);
+                        }
+                        currentKey = key[0];
+                    }
+                    return key[0];
+                }
+
+                @Override
+                public Index.Entry getValue() {
+                    return entry;
+                }
+
+                @Override
+                public Index.Entry setValue(Index.Entry value) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (currentKey == null) {
+                throw new IllegalStateException();
+            }
+            OffHeapIndexMap.this.remove(currentKey);
+            currentKey = null;
+        }
+    }
+
+    /**
+     * Traverses a range of slots, and splits by halving the range. Like the
+     * iterator, it is weakly consistent: a resize while it runs, when the
+     * table fills up or is compacted, moves entries to other slots, so it may
+     * see some of them twice or not at all.
+     */
+    private class EntrySpliterator implements Spliterator<Map.Entry<String, Index.Entry>> {
+
+        private int slot;
+
+        /**
+         * The end of the range, or -1 for the capacity at first use.
+         */
+        private int end;
+
+        EntrySpliterator(int slot, int end) {
+            this.slot = slot;
+            this.end = end;
+        }
+
+        private int end() {
+            if (end < 0) {
+                long stamp = lock.readLock();
+                try {
+                    end = capacity;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<String, Index.Entry>> action) {
+            int end = end();
+            Index.Entry entry = null;
+            String key = null;
+            long stamp = lock.readLock();
+            try {
+                while (slot < Math.min(end, capacity)) {
+                    int current = slot++;
+                    if (!isFree(current)) {
+                        entry = entryAt(current);
+                        key = (keyReader == null) ? keyAt(current) : null;
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (entry == null) {
+                return false;
+            }
+
+            // Hash-only keys are read from disk without holding the lock
+            if (key == null) {
+                try {
+                    key = new String(keyReader.readKey(entry.getSegment(), entry.getOffset()), "utf8");
+                } catch (UnsupportedEncodingException x) {
+                    throw new RuntimeException(x);
+                }
+            }
+            action.accept(new AbstractMap.SimpleImmutableEntry<String, Index.Entry>(key, entry));
+            return true;
+        }
+
+        @Override
+        public Spliterator<Map.Entry<String, Index.Entry>> trySplit() {
+            int end = end();
+            int mid = (slot + end) >>> 1;
+            if (mid <= slot) {
+                return null;
+            }
+            EntrySpliterator prefix = new EntrySpliterator(slot, mid);
+            slot = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            int end = end();
+            long stamp = lock.readLock();
+            try {
+                return (long) size * Math.max(0, Math.min(end, capacity) - slot) / capacity;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.NONNULL;
+        }
+
+    }
+
+}
@@ -0,0 +1,467 @@
+package kevlar;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options for opening a store.
+ *
+ * @author david
+ */
+public class Options {
+
+    private static final long DEFAULT_PERIODIC_INTERVAL = 1000;
+
+    static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    static final int DEFAULT_BUFFER_LIMIT = 4096;
+
+    static final long DEFAULT_WARMUP_SIZE = 64L << 20;
+
+    static final long DEFAULT_WARMUP_RATE = 32L << 20;
+
+    static final long DEFAULT_COMPACTION_INTERVAL = 60 * 1000;
+
+    static final double DEFAULT_COMPACTION_GARBAGE_RATIO = 0.5;
+
+    static final int DEFAULT_COMPACTION_THREADS = 2;
+
+    static final long DEFAULT_COMPACTION_RATE = 64L << 20;
+
+    static final long DEFAULT_STREAM_TIMEOUT = 60 * 1000;
+
+    static final long DEFAULT_EXPIRY_INTERVAL = 10 * 60 * 1000;
+
+    private Durability durability = Durability.OS;
+    private long commitInterval = -1;
+    private IndexType indexType = IndexType.HEAP;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private int bufferLimit = DEFAULT_BUFFER_LIMIT;
+    private int loadThreads = Runtime.getRuntime().availableProcessors();
+    private Codec codec;
+    private Map<String, Codec> bucketCodecs = new HashMap<String, Codec>();
+    private long cacheSize = 0;
+    private long warmupSize = DEFAULT_WARMUP_SIZE;
+    private long warmupRate = DEFAULT_WARMUP_RATE;
+    private boolean jmxEnabled = true;
+    private long ttl = 0;
+    private Map<String, Long> bucketTtls = new HashMap<String, Long>();
+    private long expiryInterval = DEFAULT_EXPIRY_INTERVAL;
+    private int partitions = 1;
+    private Map<String, Integer> bucketPartitions = new HashMap<String, Integer>();
+    private long compactionInterval = DEFAULT_COMPACTION_INTERVAL;
+    private double compactionGarbageRatio = DEFAULT_COMPACTION_GARBAGE_RATIO;
+    private int compactionThreads = DEFAULT_COMPACTION_THREADS;
+    private long compactionRate = DEFAULT_COMPACTION_RATE;
+    private long streamTimeout = DEFAULT_STREAM_TIMEOUT;
+
+    /**
+     * @return when written data is forced to disk
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @param durability when written data is forced to disk
+     * @return these options
+     */
+    public Options setDurability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * @return milliseconds between forces in {@link Durability#PERIODIC}
+     *         mode, or to wait for more puts to share a force in
+     *         {@link Durability#GROUP_COMMIT} mode. Defaults to one second
+     *         and zero respectively.
+     * @throws IllegalArgumentException if the interval is zero in
+     *         {@link Durability#PERIODIC} mode
+     */
+    public long getCommitInterval() {
+        if (commitInterval < 0) {
+            return durability == Durability.PERIODIC ? DEFAULT_PERIODIC_INTERVAL : 0;
+        }
+        if (commitInterval == 0 && durability == Durability.PERIODIC) {
+            throw new IllegalArgumentException("The commit interval must be positive in PERIODIC mode");
+        }
+        return commitInterval;
+    }
+
+    /**
+     * @param commitInterval see {@link #getCommitInterval()}
+     * @return these options
+     */
+    public Options setCommitInterval(long commitInterval) {
+        this.commitInterval = commitInterval;
+        return this;
+    }
+
+    /**
+     * @return how the key index of each bucket is stored
+     */
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * @param indexType how the key index of each bucket is stored
+     * @return these options
+     */
+    public Options setIndexType(IndexType indexType) {
+        this.indexType = indexType;
+        return this;
+    }
+
+    /**
+     * @return the size in bytes at which a bucket rolls over to a new segment
+     *         file. Defaults to 1 GB.
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @param segmentSize see {@link #getSegmentSize()}
+     * @return these options
+     */
+    public Options setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * @return the number of threads that open buckets when a store is
+     *         opened. Defaults to the number of processors.
+     */
+    public int getLoadThreads() {
+        return loadThreads;
+    }
+
+    /**
+     * @param loadThreads see {@link #getLoadThreads()}
+     * @return these options
+     */
+    public Options setLoadThreads(int loadThreads) {
+        this.loadThreads = loadThreads;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes of puts a bucket buffers before writing
+     *         them. Buffered puts are visible to reads, so a large buffer
+     *         only costs memory, and the puts lost if the process dies before
+     *         a flush. Defaults to 4 KB.
+     */
+    public int getBufferLimit() {
+        return bufferLimit;
+    }
+
+    /**
+     * @param bufferLimit see {@link #getBufferLimit()}
+     * @return these options
+     */
+    public Options setBufferLimit(int bufferLimit) {
+        this.bufferLimit = bufferLimit;
+        return this;
+    }
+
+    /**
+     * @return the codec that compresses values written to buckets without a
+     *         codec of their own, or null to store values as they are, which
+     *         is the default
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @param codec see {@link #getCodec()}
+     * @return these options
+     */
+    public Options setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * @return the codec that compresses values written to bucket, or null
+     */
+    public Codec getCodec(String bucket) {
+        return bucketCodecs.containsKey(bucket) ? bucketCodecs.get(bucket) : codec;
+    }
+
+    /**
+     * @param bucket the bucket
+     * @param codec the codec that compresses values written to bucket, or
+     *        null to store them as they are
+     * @return these options
+     */
+    public Options setCodec(String bucket, Codec codec) {
+        bucketCodecs.put(bucket, codec);
+        return this;
+    }
+
+    /**
+     * @return the number of bytes of decompressed values the store caches.
+     *         Defaults to 0, which disables the cache.
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @param cacheSize see {@link #getCacheSize()}
+     * @return these options
+     */
+    public Options setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes of the most read records of each bucket
+     *         that are faulted into the page cache in the background when
+     *         the store is opened and after compaction. Defaults to 64 MB. 0
+     *         disables warmup.
+     */
+    public long getWarmupSize() {
+        return warmupSize;
+    }
+
+    /**
+     * @param warmupSize see {@link #getWarmupSize()}
+     * @return these options
+     */
+    public Options setWarmupSize(long warmupSize) {
+        this.warmupSize = warmupSize;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes per second warmup reads at most, so it
+     *         doesn't starve live traffic. Defaults to 32 MB.
+     */
+    public long getWarmupRate() {
+        return warmupRate;
+    }
+
+    /**
+     * @param warmupRate see {@link #getWarmupRate()}
+     * @return these options
+     */
+    public Options setWarmupRate(long warmupRate) {
+        this.warmupRate = warmupRate;
+        return this;
+    }
+
+    /**
+     * @return the milliseconds after which the records of buckets without a
+     *         TTL of their own expire, counted from when they were put.
+     *         Expired records are gone for reads, and their space is
+     *         reclaimed by compaction. Defaults to 0, which means records
+     *         never expire.
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @param ttl see {@link #getTtl()}
+     * @return these options
+     */
+    public Options setTtl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    /**
+     * @return the milliseconds after which the records of bucket expire, or
+     *         0 if they never do
+     */
+    public long getTtl(String bucket) {
+        return bucketTtls.containsKey(bucket) ? bucketTtls.get(bucket) : ttl;
+    }
+
+    /**
+     * @param bucket the bucket
+     * @param ttl the milliseconds after which the records of bucket expire,
+     *        or 0 if they never do
+     * @return these options
+     */
+    public Options setTtl(String bucket, long ttl) {
+        bucketTtls.put(bucket, ttl);
+        return this;
+    }
+
+    /**
+     * @return the number of partitions new buckets without a count of their
+     *         own are split into by key hash. Each partition has its own
+     *         segments, index and flush, so puts to a hot bucket are written
+     *         in parallel. Defaults to 1, which means buckets are not
+     *         partitioned.
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @param partitions see {@link #getPartitions()}
+     * @return these options
+     */
+    public Options setPartitions(int partitions) {
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * @return the number of partitions bucket is split into when it is
+     *         created. An existing bucket keeps the count it was created
+     *         with.
+     */
+    public int getPartitions(String bucket) {
+        return bucketPartitions.containsKey(bucket) ? bucketPartitions.get(bucket) : partitions;
+    }
+
+    /**
+     * @param bucket the bucket
+     * @param partitions the number of partitions bucket is split into when it
+     *        is created
+     * @return these options
+     */
+    public Options setPartitions(String bucket, int partitions) {
+        bucketPartitions.put(bucket, partitions);
+        return this;
+    }
+
+    /**
+     * @return the minimum milliseconds between scans of a bucket with a TTL
+     *         for expired entries not read since they expired. A scan walks
+     *         the whole index, and only happens once the oldest entry can
+     *         have expired. Expired entries are hidden from reads either way,
+     *         this only delays reclaiming their space. Defaults to ten
+     *         minutes.
+     */
+    public long getExpiryInterval() {
+        return expiryInterval;
+    }
+
+    /**
+     * @param expiryInterval see {@link #getExpiryInterval()}
+     * @return these options
+     */
+    public Options setExpiryInterval(long expiryInterval) {
+        this.expiryInterval = expiryInterval;
+        return this;
+    }
+
+    /**
+     * @return milliseconds between checks for buckets to compact in the
+     *         background. Defaults to one minute. 0 disables background
+     *         compaction.
+     */
+    public long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    /**
+     * @param compactionInterval see {@link #getCompactionInterval()}
+     * @return these options
+     */
+    public Options setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+        return this;
+    }
+
+    /**
+     * @return the fraction of a bucket that must be dead before it is
+     *         compacted in the background. Only its segments above the same
+     *         ratio are compacted. Defaults to 0.5.
+     */
+    public double getCompactionGarbageRatio() {
+        return compactionGarbageRatio;
+    }
+
+    /**
+     * @param compactionGarbageRatio see {@link #getCompactionGarbageRatio()}
+     * @return these options
+     */
+    public Options setCompactionGarbageRatio(double compactionGarbageRatio) {
+        this.compactionGarbageRatio = compactionGarbageRatio;
+        return this;
+    }
+
+    /**
+     * @return the number of buckets compacted in the background at the same
+     *         time. Defaults to 2.
+     */
+    public int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    /**
+     * @param compactionThreads see {@link #getCompactionThreads()}
+     * @return these options
+     */
+    public Options setCompactionThreads(int compactionThreads) {
+        this.compactionThreads = compactionThreads;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes per second all compactions of the store
+     *         copy at most together, so they don't starve reads. Defaults
+     *         to 64 MB. 0 means no limit.
+     */
+    public long getCompactionRate() {
+        return compactionRate;
+    }
+
+    /**
+     * @param compactionRate see {@link #getCompactionRate()}
+     * @return these options
+     */
+    public Options setCompactionRate(long compactionRate) {
+        this.compactionRate = compactionRate;
+        return this;
+    }
+
+    /**
+     * @return milliseconds a streamed put may go without receiving any of its
+     *         value before it is aborted, so a stalled client doesn't keep
+     *         its segment from being compacted. Defaults to one minute. 0
+     *         means streamed puts never time out.
+     */
+    public long getStreamTimeout() {
+        return streamTimeout;
+    }
+
+    /**
+     * @param streamTimeout see {@link #getStreamTimeout()}
+     * @return these options
+     */
+    public Options setStreamTimeout(long streamTimeout) {
+        this.streamTimeout = streamTimeout;
+        return this;
+    }
+
+    /**
+     * @return true if the stats and latencies of the store and its buckets
+     *         are registered with the platform MBean server. Defaults to
+     *         true.
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * @param jmxEnabled see {@link #isJmxEnabled()}
+     * @return these options
+     */
+    public Options setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+        return this;
+    }
+
+}
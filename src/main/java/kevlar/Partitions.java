@@ -0,0 +1,293 @@
+package kevlar;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Supplier;
+
+/**
+ * The partitions of a bucket split by key hash, and the operations that
+ * read-only and writable partitioned buckets share. Operations on a key go
+ * to its partition, and operations on all keys combine the partitions.
+ *
+ * The bucket directory holds a <code>partitions</code> file with the number
+ * of partitions, and a directory per partition laid out like a bucket. The
+ * number of partitions is fixed when the bucket is created, as the partition
+ * of a key depends on it.
+ *
+ * @author david
+ */
+class Partitions {
+
+    private static final String COUNT_FILE = "partitions";
+
+    private final ReadOnlyBucket[] buckets;
+
+    Partitions(ReadOnlyBucket[] buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * @return true if dir is the directory of a partitioned bucket
+     */
+    static boolean exist(File dir) {
+        return new File(dir, COUNT_FILE).isFile();
+    }
+
+    /**
+     * @return the directory of a partition of the bucket in dir
+     */
+    static File dir(File dir, int partition) {
+        return new File(dir, "p" + partition);
+    }
+
+    /**
+     * @return the number of partitions of the bucket in dir
+     */
+    static int readCount(File dir) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(dir, COUNT_FILE)));
+            int count = in.readInt();
+            if (count < 1) {
+                throw new IOException("Bad partition count " + count + " in " + dir);
+            }
+            return count;
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        } finally {
+            Util.close(in);
+        }
+    }
+
+    /**
+     * Makes dir the directory of a bucket with count partitions.
+     */
+    static void writeCount(File dir, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Bad partition count " + count);
+        }
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        try {
+
+            // Write to a temporary file first so a crash never leaves a
+            // partial count behind
+            File tmpFile = new File(dir, COUNT_FILE + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                DataOutputStream dos = new DataOutputStream(fos);
+                dos.writeInt(count);
+                dos.flush();
+                fos.getChannel().force(true);
+            } finally {
+                Util.close(fos);
+            }
+
+            File countFile = new File(dir, COUNT_FILE);
+            if (!tmpFile.renameTo(countFile)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + countFile);
+            }
+
+            // Make the rename durable too
+            FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                dirChannel.force(true);
+            } finally {
+                Util.close(dirChannel);
+            }
+
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    /**
+     * @return the partition of key. The hash is part of the file format, so
+     *         it must never change.
+     */
+    ReadOnlyBucket get(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return buckets[((h ^ (h >>> 16)) & 0x7fffffff) % buckets.length];
+    }
+
+    /**
+     * @return the partitions
+     */
+    ReadOnlyBucket[] all() {
+        return buckets;
+    }
+
+    /**
+     * @return the values grouped by partition, in the order of values
+     */
+    <V> Map<ReadOnlyBucket, Map<String, V>> split(Map<String, V> values) {
+        Map<ReadOnlyBucket, Map<String, V>> split = new LinkedHashMap<ReadOnlyBucket, Map<String, V>>();
+        for (Map.Entry<String, V> e : values.entrySet()) {
+            ReadOnlyBucket partition = get(e.getKey());
+            Map<String, V> part = split.get(partition);
+            if (part == null) {
+                part = new LinkedHashMap<String, V>();
+                split.put(partition, part);
+            }
+            part.put(e.getKey(), e.getValue());
+        }
+        return split;
+    }
+
+    int size() {
+        int size = 0;
+        for (ReadOnlyBucket partition : buckets) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    /**
+     * Reads the keys of each partition together, one partition after
+     * another.
+     */
+    Map<String, MappedValue> readAll(Collection<String> keys) {
+        Map<ReadOnlyBucket, List<String>> split = new LinkedHashMap<ReadOnlyBucket, List<String>>();
+        for (String key : keys) {
+            ReadOnlyBucket partition = get(key);
+            List<String> part = split.get(partition);
+            if (part == null) {
+                part = new ArrayList<String>();
+                split.put(partition, part);
+            }
+            part.add(key);
+        }
+        Map<String, MappedValue> values = new LinkedHashMap<String, MappedValue>();
+        for (Map.Entry<ReadOnlyBucket, List<String>> e : split.entrySet()) {
+            values.putAll(e.getKey().readAll(e.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * @return the keys of one partition after another
+     */
+    Spliterator<String> keySpliterator() {
+        List<Supplier<Spliterator<String>>> sources = new ArrayList<Supplier<Spliterator<String>>>();
+        for (final ReadOnlyBucket partition : buckets) {
+            sources.add(new Supplier<Spliterator<String>>() {
+                @Override
+                public Spliterator<String> get() {
+                    return partition.keySpliterator();
+                }
+            });
+        }
+        return KeySpliterators.concat(sources);
+    }
+
+    /**
+     * @return the ordered keys of the partitions, merged as the iterator
+     *         advances
+     */
+    Iterator<String> keys(String prefix, String startAfter) {
+        List<Iterator<String>> keys = new ArrayList<Iterator<String>>(buckets.length);
+        for (ReadOnlyBucket partition : buckets) {
+            keys.add(partition.keys(prefix, startAfter));
+        }
+        return merge(keys, 0, keys.size());
+    }
+
+    /**
+     * Merges the iterators from to to in pairs, so each key is compared
+     * about log2 of the number of partitions times.
+     */
+    private static Iterator<String> merge(List<Iterator<String>> keys, int from, int to) {
+        if (to - from == 1) {
+            return keys.get(from);
+        }
+        int middle = (from + to) >>> 1;
+        return SortedKeys.merge(merge(keys, from, middle), merge(keys, middle, to));
+    }
+
+    void setTtl(long ttl) {
+        for (ReadOnlyBucket partition : buckets) {
+            partition.setTtl(ttl);
+        }
+    }
+
+    void saveHeat() {
+        for (ReadOnlyBucket partition : buckets) {
+            partition.saveHeat();
+        }
+    }
+
+    void close() {
+        for (ReadOnlyBucket partition : buckets) {
+            partition.close();
+        }
+    }
+
+    /**
+     * Warms up each partition with its share of maxBytes.
+     */
+    long warm(long maxBytes, long bytesPerSecond) throws InterruptedException {
+        long warmed = 0;
+        for (ReadOnlyBucket partition : buckets) {
+            warmed += partition.warm(maxBytes / buckets.length, bytesPerSecond);
+        }
+        return warmed;
+    }
+
+    long getBufferSize() {
+        long bytes = 0;
+        for (ReadOnlyBucket partition : buckets) {
+            bytes += partition.getBufferSize();
+        }
+        return bytes;
+    }
+
+    long getLiveBytes() {
+        long bytes = 0;
+        for (ReadOnlyBucket partition : buckets) {
+            bytes += partition.getLiveBytes();
+        }
+        return bytes;
+    }
+
+    long getDeadBytes() {
+        long bytes = 0;
+        for (ReadOnlyBucket partition : buckets) {
+            bytes += partition.getDeadBytes();
+        }
+        return bytes;
+    }
+
+    int getSegmentCount() {
+        int count = 0;
+        for (ReadOnlyBucket partition : buckets) {
+            count += partition.getSegmentCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the segments of one partition after another
+     */
+    Collection<Segment> segments() {
+        List<Segment> segments = new ArrayList<Segment>();
+        for (ReadOnlyBucket partition : buckets) {
+            segments.addAll(partition.segments());
+        }
+        return segments;
+    }
+
+}
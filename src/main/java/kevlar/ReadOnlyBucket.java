@@ -1,42 +1,110 @@
 package kevlar;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * A read-only bucket.
  *
+ * A bucket is a directory of segment files, with its checkpoint and journal
+ * next to the directory. A bucket from before segments were introduced is a
+ * single data file, which is opened as segment 0.
+ *
  * @author david
  */
-class ReadOnlyBucket {
-
-    private final static int MAX_MMAP_SIZE = Integer.MAX_VALUE;
+class ReadOnlyBucket implements StatsMBean {
 
     protected Index index;
 
-    protected File dataFile;
+    /**
+     * Decompressed values, or null.
+     */
+    protected ValueCache cache;
 
-    private MappedByteBuffer[] buffers;
+    /**
+     * The latencies of the operations on the bucket.
+     */
+    protected Metrics metrics = new Metrics();
 
-    public ReadOnlyBucket(File dataFile) {
-        try {
+    /**
+     * How often keys are read, and where it is saved.
+     */
+    protected Heat heat = new Heat();
+    private File heatFile;
 
-            this.dataFile = dataFile;
+    /**
+     * Milliseconds after which records expire, or 0 if they never do.
+     */
+    protected long ttl;
 
-            if (!dataFile.exists()) {
-                throw new FileNotFoundException(dataFile.getAbsolutePath());
-            }
+    /**
+     * At most the timestamp of the oldest entry in the index, so no entry
+     * expires before it plus the TTL.
+     */
+    protected volatile long oldestTimestamp = Long.MAX_VALUE;
+
+    /**
+     * Bytes of records prefaulted per check of the warmup rate.
+     */
+    private static final int WARMUP_BATCH_SIZE = 1024 * 1024;
 
-            // Read index entries
-            index = new Index(dataFile);
+    private static final int PAGE_SIZE = 4096;
 
-            // Memory map dataFile
-            mmap();
+    /**
+     * Keeps the page touches of {@link #warm(long, long)} from being
+     * optimized away.
+     */
+    @SuppressWarnings("unused")
+    private volatile int touched;
+
+    /**
+     * The segments of the bucket, oldest first.
+     */
+    protected final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+
+    public ReadOnlyBucket(File file) {
+        this(file, IndexType.HEAP);
+    }
+
+    public ReadOnlyBucket(File file, IndexType indexType) {
+        this(file, indexType, null);
+    }
+
+    public ReadOnlyBucket(File file, IndexType indexType, ValueCache cache) {
+        this(file, indexType, cache, new Metrics());
+    }
+
+    /**
+     * @param cache caches decompressed values, or null
+     * @param metrics records the latencies of the operations on the bucket
+     */
+    public ReadOnlyBucket(File file, IndexType indexType, ValueCache cache, Metrics metrics) {
+        this.cache = cache;
+        this.metrics = metrics;
+        try {
+
+            if (!file.exists()) {
+                throw new FileNotFoundException(file.getAbsolutePath());
+            }
+
+            open(file, indexType);
 
         } catch (Exception x) {
             throw new RuntimeException(x);
@@ -47,20 +115,199 @@ class ReadOnlyBucket {
 
     }
 
+    /**
+     * Finds the segments of a bucket, loads its index and maps the segments.
+     *
+     * @param file the bucket directory, or the data file of a bucket from
+     *        before segments were introduced
+     */
+    protected void open(File file, IndexType indexType) {
+        String name = file.getName();
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    int id = Segment.parseId(f.getName());
+                    if (id >= 0) {
+                        segments.put(id, new Segment(id, f));
+                    }
+                }
+            }
+        } else {
+            segments.put(0, new Segment(0, file));
+            name = name.substring(0, name.length() - 4);
+        }
+
+        // Memory map segments, which the index scans for records it has
+        // not journaled
+        mmap();
+
+        // Read index entries
+        File base = new File(file.getAbsoluteFile().getParentFile(), name);
+        index = new Index(base, segments, indexType, metrics);
+
+        countDeadBytes();
+
+        heatFile = new File(base.getPath() + ".heat");
+        try {
+            heat = Heat.load(heatFile);
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    /**
+     * Counts the bytes of each segment that the index no longer points at,
+     * and finds the oldest entry.
+     */
+    private void countDeadBytes() {
+        Map<Integer, Long> live = new HashMap<Integer, Long>();
+        long oldest = Long.MAX_VALUE;
+        for (Index.Entry entry : index.values()) {
+            Long bytes = live.get(entry.getSegment());
+            live.put(entry.getSegment(), (bytes == null ? 0 : bytes) + entry.getSize());
+            oldest = Math.min(oldest, entry.getTimestamp());
+        }
+        oldestTimestamp = oldest;
+        for (Segment segment : segments.values()) {
+            Long bytes = live.get(segment.getId());
+            segment.addDeadBytes(segment.getSize() - (bytes == null ? 0 : bytes));
+        }
+    }
+
     public int size() {
         return index.size();
     }
 
     public boolean contains(String key) {
-        return index.containsKey(key);
+        return live(key, index.get(key)) != null;
     }
 
-    public Collection<String> keys() {
-        return index.keySet();
+    /**
+     * @param ttl milliseconds after which records expire, counted from when
+     *        they were put, or 0 if they never do
+     */
+    void setTtl(long ttl) {
+        this.ttl = ttl;
     }
 
-    public long getTimestamp(String key) {
+    /**
+     * @return true if a record put at timestamp has expired
+     */
+    protected boolean isExpired(long timestamp) {
+        return ttl > 0 && timestamp + ttl <= System.currentTimeMillis();
+    }
+
+    /**
+     * @return entry, or null if it is null or has expired
+     */
+    private Index.Entry live(String key, Index.Entry entry) {
+        if (entry != null && isExpired(entry.getTimestamp())) {
+            expire(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Drops an expired entry from the index. The index of a read-only bucket
+     * is never saved, so the entry is only dropped from memory.
+     */
+    protected void expire(String key, Index.Entry entry) {
+        if (index.remove(key, entry)) {
+            Segment segment = segments.get(entry.getSegment());
+            if (segment != null) {
+                segment.addDeadBytes(entry.getSize());
+            }
+        }
+    }
+
+    /**
+     * @return the keys of the bucket, read as the spliterator advances. The
+     *         traversal never copies the key set and doesn't hold up puts. It
+     *         is weakly consistent, and can be split for parallel
+     *         consumption.
+     */
+    public Spliterator<String> keySpliterator() {
+        Spliterator<String> keys = index.keySpliterator();
+        if (ttl == 0) {
+            return keys;
+        }
+        return KeySpliterators.map(keys, new Function<String, String>() {
+            @Override
+            public String apply(String key) {
+                return hasExpired(key) ? null : key;
+            }
+        });
+    }
+
+    /**
+     * @return the keys and values of the bucket, see
+     *         {@link #keySpliterator()}. Values are read as the spliterator
+     *         advances, and don't count as reads of hot keys.
+     */
+    public Spliterator<Map.Entry<String, MappedValue>> entrySpliterator() {
+        return KeySpliterators.map(keySpliterator(), new Function<String, Map.Entry<String, MappedValue>>() {
+            @Override
+            public Map.Entry<String, MappedValue> apply(String key) {
+                MappedValue value = getValue(key, false);
+                if (value == null) {
+                    return null;
+                }
+                return new AbstractMap.SimpleImmutableEntry<String, MappedValue>(key, value);
+            }
+        });
+    }
+
+    /**
+     * @param prefix only keys starting with prefix, or null for all keys
+     * @param startAfter only keys after this one, or null
+     * @return the keys in order, read as the iterator advances
+     */
+    public Iterator<String> keys(String prefix, String startAfter) {
+        Iterator<String> keys = index.keys(prefix, startAfter);
+        if (ttl == 0) {
+            return keys;
+        }
+        return SortedKeys.skip(keys, new Predicate<String>() {
+            @Override
+            public boolean test(String key) {
+                return hasExpired(key);
+            }
+        });
+    }
+
+    /**
+     * @return true if the entry of key has expired, in which case it is
+     *         dropped
+     */
+    private boolean hasExpired(String key) {
         Index.Entry entry = index.get(key);
+        return entry != null && live(key, entry) == null;
+    }
+
+    /**
+     * Lists a page of keys. The first listing of a bucket sorts all of its
+     * keys, see {@link SortedKeys}. From then on, the cost depends on the
+     * size of the page, not on the number of keys in the bucket.
+     *
+     * @param prefix only keys starting with prefix, or null for all keys
+     * @param startAfter only keys after this one, e.g. the last key of the
+     *        previous page, or null
+     * @param limit the maximum number of keys
+     * @return the keys in order
+     */
+    public List<String> keys(String prefix, String startAfter, int limit) {
+        List<String> keys = new ArrayList<String>();
+        Iterator<String> it = keys(prefix, startAfter);
+        while (keys.size() < limit && it.hasNext()) {
+            keys.add(it.next());
+        }
+        return keys;
+    }
+
+    public long getTimestamp(String key) {
+        Index.Entry entry = live(key, index.get(key));
         if (entry == null) {
             return -1;
         }
@@ -68,49 +315,327 @@ class ReadOnlyBucket {
     }
 
     public byte[] get(String key) {
+        MappedValue value = getValue(key);
+        if (value == null) {
+            return null;
+        }
+        return value.toByteArray();
+    }
+
+    public MappedValue getValue(String key) {
+        long start = System.nanoTime();
         try {
+            return getValue(key, true);
+        } finally {
+            metrics.record(Metrics.Op.GET, start);
+        }
+    }
+
+    /**
+     * @param counted true if the read counts towards how hot key is
+     */
+    protected MappedValue getValue(String key, boolean counted) {
+        while (true) {
 
-            if (!index.containsKey(key)) {
+            Index.Entry entry = live(key, index.get(key));
+            if (entry == null) {
                 return null;
             }
+            if (counted) {
+                heat.record(key);
+            }
 
-            Index.Entry entry = index.get(key);
+            MappedValue value = read(entry);
+            if (value != null) {
+                return value;
+            }
 
-            ByteBufferReader bufReader = new ByteBufferReader(buffers, entry.getOffset());
+            // Compacted away since the lookup, the index points at the
+            // moved record by now
+            Index.Entry current = index.get(key);
+            if (current != null && current.getSegment() == entry.getSegment()) {
+                throw new RuntimeException("No segment " + entry.getSegment());
+            }
+        }
+    }
 
-            Header header = new Header(bufReader);
+    /**
+     * Gets the values of several keys. The records are read in the order
+     * they are stored, so the mapped pages are touched sequentially.
+     *
+     * @return the values of the keys that exist, in the order they are
+     *         stored
+     */
+    public Map<String, MappedValue> getAll(Collection<String> keys) {
+        long start = System.nanoTime();
+        try {
+            return readAll(keys);
+        } finally {
+            metrics.record(Metrics.Op.GET_ALL, start);
+        }
+    }
 
-            bufReader.skip(header.getKeyLength());
-            return bufReader.getBytes(header.getValueLength());
+    protected Map<String, MappedValue> readAll(Collection<String> keys) {
+        List<Map.Entry<String, Index.Entry>> entries = new ArrayList<Map.Entry<String, Index.Entry>>(keys.size());
+        for (String key : keys) {
+            Index.Entry entry = live(key, index.get(key));
+            if (entry != null) {
+                heat.record(key);
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, Index.Entry>(key, entry));
+            }
+        }
 
-        } catch (Exception x) {
-            throw new RuntimeException(x);
+        Collections.sort(entries, new Comparator<Map.Entry<String, Index.Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Index.Entry> a, Map.Entry<String, Index.Entry> b) {
+                Index.Entry x = a.getValue();
+                Index.Entry y = b.getValue();
+                if (x.getSegment() != y.getSegment()) {
+                    return x.getSegment() < y.getSegment() ? -1 : 1;
+                }
+                return x.getOffset() < y.getOffset() ? -1 : (x.getOffset() == y.getOffset() ? 0 : 1);
+            }
+        });
+
+        Map<String, MappedValue> values = new LinkedHashMap<String, MappedValue>();
+        for (Map.Entry<String, Index.Entry> e : entries) {
+            MappedValue value = read(e.getValue());
+            if (value == null) {
+                value = getValue(e.getKey(), true);
+            }
+            if (value != null) {
+                values.put(e.getKey(), value);
+            }
         }
+        return values;
     }
 
-    protected void mmap() {
-        FileInputStream fis = null;
-        FileChannel fc = null;
+    /**
+     * @return the value of the record entry points at, decompressed if need
+     *         be, or null if its segment has been compacted away
+     */
+    private MappedValue read(Index.Entry entry) {
+        Segment segment = segments.get(entry.getSegment());
+        if (segment == null) {
+            return null;
+        }
+
+        String etag = MappedValue.etag(entry.getSegment(), entry.getOffset(), entry.getTimestamp());
+        if (cache != null) {
+            byte[] value = cache.get(this, entry.getSegment(), entry.getOffset());
+            if (value != null) {
+                return new MappedValue(new ByteBuffer[] { ByteBuffer.wrap(value).asReadOnlyBuffer() },
+                        entry.getTimestamp(), etag);
+            }
+        }
+
+        ByteBufferReader bufReader = new ByteBufferReader(segment.getMappedFile().chunks(), entry.getOffset());
+
+        Header header = new Header(bufReader);
+
+        bufReader.skip(header.getKeyLength());
+        ByteBuffer[] stored = bufReader.slice(header.getValueLength());
+        if (header.getCodec() == 0) {
+            return new MappedValue(stored, entry.getTimestamp(), etag);
+        }
+
+        byte[] value = Codecs.decode(header.getCodec(), new MappedValue(stored).toByteArray());
+        if (cache != null) {
+            cache.put(this, entry.getSegment(), entry.getOffset(), value);
+        }
+        return new MappedValue(new ByteBuffer[] { ByteBuffer.wrap(value).asReadOnlyBuffer() }, entry.getTimestamp(),
+                etag);
+    }
+
+    /**
+     * Saves how often keys have been read, so the hot records can be warmed
+     * up after a restart.
+     */
+    void saveHeat() {
         try {
+            heat.save(heatFile);
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    /**
+     * Closes the files of the bucket. Mapped segments are released once
+     * they are garbage collected.
+     */
+    void close() {
+        index.close();
+    }
 
-            fis = new FileInputStream(dataFile);
-            fc = fis.getChannel();
+    /**
+     * Faults in the pages of the most read records, so they are served from
+     * the page cache rather than the disk. The records are touched in the
+     * order they are stored, at most bytesPerSecond at a time, so live
+     * traffic keeps most of the disk.
+     *
+     * @param maxBytes the total size of the records to warm up
+     * @param bytesPerSecond the warmup rate
+     * @return the number of bytes warmed up
+     */
+    long warm(long maxBytes, long bytesPerSecond) throws InterruptedException {
+        if (heat.isEmpty()) {
+            return 0;
+        }
 
-            int numBuffers = (int) (fc.size() / MAX_MMAP_SIZE) + 1;
+        // The hottest records that fit in maxBytes
+        PriorityQueue<HotRecord> hottest = new PriorityQueue<HotRecord>();
+        long total = 0;
+        for (Map.Entry<String, Index.Entry> e : index.entrySet()) {
+            int estimate = heat.estimate(e.getKey());
+            if (estimate == 0) {
+                continue;
+            }
+            Index.Entry entry = e.getValue();
+            hottest.add(new HotRecord(estimate, entry));
+            total += entry.getSize();
+            while (total > maxBytes) {
+                total -= hottest.poll().entry.getSize();
+            }
+        }
 
-            buffers = new MappedByteBuffer[numBuffers];
-            for (int i = 0; i < numBuffers; ++i) {
-                long offset = i * MAX_MMAP_SIZE;
-                long size = Math.min(fc.size() - offset, MAX_MMAP_SIZE);
-                buffers[i] = fc.map(MapMode.READ_ONLY, offset, size);
+        List<Index.Entry> entries = new ArrayList<Index.Entry>(hottest.size());
+        for (HotRecord record : hottest) {
+            entries.add(record.entry);
+        }
+        Collections.sort(entries, new Comparator<Index.Entry>() {
+            @Override
+            public int compare(Index.Entry x, Index.Entry y) {
+                if (x.getSegment() != y.getSegment()) {
+                    return x.getSegment() < y.getSegment() ? -1 : 1;
+                }
+                return x.getOffset() < y.getOffset() ? -1 : (x.getOffset() == y.getOffset() ? 0 : 1);
             }
+        });
 
-        } catch (Exception x) {
-            throw new RuntimeException(x);
-        } finally {
-            Util.close(fc);
-            Util.close(fis);
+        long warmed = 0;
+        long batch = 0;
+        long start = System.nanoTime();
+        int sum = 0;
+        for (Index.Entry entry : entries) {
+            Segment segment = segments.get(entry.getSegment());
+            if (segment == null) {
+                continue;
+            }
+            ByteBuffer[] chunks = segment.getMappedFile().chunks();
+            long chunkSize = segment.getMappedFile().getChunkSize();
+            long end = Math.min(entry.getOffset() + entry.getSize(), chunks.length * chunkSize);
+            for (long position = entry.getOffset(); position < end; position += PAGE_SIZE) {
+                ByteBuffer chunk = chunks[(int) (position / chunkSize)];
+                int offset = (int) (position % chunkSize);
+                if (offset < chunk.limit()) {
+                    sum += chunk.get(offset);
+                }
+            }
+            warmed += entry.getSize();
+            batch += entry.getSize();
+
+            if (batch >= WARMUP_BATCH_SIZE) {
+                batch = 0;
+                long due = start + warmed * 1000000000L / bytesPerSecond;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+        }
+        touched = sum;
+        return warmed;
+    }
+
+    @Override
+    public int getKeyCount() {
+        return size();
+    }
+
+    @Override
+    public long getBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public long getLiveBytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.getSize() - segment.getDeadBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getDeadBytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.getDeadBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the fraction of the segments of the bucket that is dead
+     */
+    public double getGarbageRatio() {
+        long dead = getDeadBytes();
+        long total = dead + getLiveBytes();
+        return total == 0 ? 0 : (double) dead / total;
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the latencies of the operations on the bucket
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the segments of the bucket, oldest first
+     */
+    Collection<Segment> segments() {
+        return segments.values();
+    }
+
+    protected void mmap() {
+        for (Segment segment : segments.values()) {
+            remap(segment);
+        }
+    }
+
+    /**
+     * Maps the data written to a segment since it was last mapped.
+     */
+    protected void remap(Segment segment) {
+        long start = System.nanoTime();
+        segment.remap();
+        metrics.record(Metrics.Op.MMAP, start);
+    }
+
+    /**
+     * A record and how often its key has been read, least read first.
+     */
+    private static class HotRecord implements Comparable<HotRecord> {
+
+        final int estimate;
+        final Index.Entry entry;
+
+        HotRecord(int estimate, Index.Entry entry) {
+            this.estimate = estimate;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(HotRecord o) {
+            return estimate < o.estimate ? -1 : (estimate == o.estimate ? 0 : 1);
         }
+
     }
 
 }
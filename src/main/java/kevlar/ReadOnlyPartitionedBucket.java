@@ -0,0 +1,117 @@
+package kevlar;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+
+/**
+ * A read-only bucket split into partitions by key hash, see
+ * {@link Partitions}.
+ *
+ * @author david
+ */
+class ReadOnlyPartitionedBucket extends ReadOnlyBucket {
+
+    private final Partitions partitions;
+
+    /**
+     * Opens an existing partitioned bucket.
+     *
+     * @param dir the bucket directory
+     * @param cache caches decompressed values, or null
+     * @param metrics records the latencies of the operations on the bucket
+     */
+    ReadOnlyPartitionedBucket(File dir, IndexType indexType, ValueCache cache, Metrics metrics) {
+        this.cache = cache;
+        this.metrics = metrics;
+        ReadOnlyBucket[] buckets = new ReadOnlyBucket[Partitions.readCount(dir)];
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = new ReadOnlyBucket(Partitions.dir(dir, i), indexType, cache, new Metrics(metrics));
+        }
+        partitions = new Partitions(buckets);
+    }
+
+    @Override
+    protected MappedValue getValue(String key, boolean counted) {
+        return partitions.get(key).getValue(key, counted);
+    }
+
+    @Override
+    protected Map<String, MappedValue> readAll(Collection<String> keys) {
+        return partitions.readAll(keys);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return partitions.get(key).contains(key);
+    }
+
+    @Override
+    public long getTimestamp(String key) {
+        return partitions.get(key).getTimestamp(key);
+    }
+
+    @Override
+    public int size() {
+        return partitions.size();
+    }
+
+    @Override
+    public Spliterator<String> keySpliterator() {
+        return partitions.keySpliterator();
+    }
+
+    @Override
+    public Iterator<String> keys(String prefix, String startAfter) {
+        return partitions.keys(prefix, startAfter);
+    }
+
+    @Override
+    void setTtl(long ttl) {
+        super.setTtl(ttl);
+        partitions.setTtl(ttl);
+    }
+
+    @Override
+    void saveHeat() {
+        partitions.saveHeat();
+    }
+
+    @Override
+    void close() {
+        partitions.close();
+    }
+
+    @Override
+    long warm(long maxBytes, long bytesPerSecond) throws InterruptedException {
+        return partitions.warm(maxBytes, bytesPerSecond);
+    }
+
+    @Override
+    public long getBufferSize() {
+        return partitions.getBufferSize();
+    }
+
+    @Override
+    public long getLiveBytes() {
+        return partitions.getLiveBytes();
+    }
+
+    @Override
+    public long getDeadBytes() {
+        return partitions.getDeadBytes();
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return partitions.getSegmentCount();
+    }
+
+    @Override
+    Collection<Segment> segments() {
+        return partitions.segments();
+    }
+
+}
@@ -1,20 +1,40 @@
 package kevlar;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A read-only store.
  *
  * @author david
  */
-public class ReadOnlyStore implements Store {
+public class ReadOnlyStore implements Store, StatsMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ReadOnlyStore.class);
 
     /**
      * All the buckets.
@@ -26,6 +46,26 @@ public class ReadOnlyStore implements Store {
      */
     protected File dir;
 
+    /**
+     * The options the store was opened with.
+     */
+    protected Options options;
+
+    /**
+     * Decompressed values of all buckets, or null.
+     */
+    protected ValueCache cache;
+
+    /**
+     * The latencies of the operations on all buckets.
+     */
+    protected Metrics metrics = new Metrics();
+
+    /**
+     * Warms up buckets in the background, one at a time.
+     */
+    private ExecutorService warmer;
+
     /**
      * Creates a new read-only store.
      *
@@ -33,14 +73,29 @@ public class ReadOnlyStore implements Store {
      * @throws FileNotFoundException if directory doesn't exist.
      */
     public ReadOnlyStore(File dir) throws FileNotFoundException {
+        this(dir, new Options());
+    }
+
+    /**
+     * Creates a new read-only store.
+     *
+     * @param dir path to the directory where files should be stored.
+     * @param options the options. Only the index type and cache size apply to
+     *        a read-only store.
+     * @throws FileNotFoundException if directory doesn't exist.
+     */
+    public ReadOnlyStore(File dir, Options options) throws FileNotFoundException {
         this.dir = dir;
+        this.options = options;
+        this.cache = options.getCacheSize() > 0 ? new ValueCache(options.getCacheSize()) : null;
 
         if (!dir.isDirectory()) {
             throw new IllegalArgumentException("Not a directory: " + dir);
         }
 
         buckets = new HashMap<String, ReadOnlyBucket>();
-        readBuckets(true);
+        readBuckets();
+        register(null, this, metrics);
     }
 
     protected ReadOnlyStore() {
@@ -80,6 +135,28 @@ public class ReadOnlyStore implements Store {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MappedValue getValue(String bucket, String key) {
+        if (buckets.containsKey(bucket)) {
+            return buckets.get(bucket).getValue(key);
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, MappedValue> getAll(String bucket, Collection<String> keys) {
+        if (buckets.containsKey(bucket)) {
+            return buckets.get(bucket).getAll(keys);
+        }
+        return Collections.emptyMap();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -103,33 +180,364 @@ public class ReadOnlyStore implements Store {
      * {@inheritDoc}
      */
     @Override
-    public List<String> keys() {
-        List<String> keys = new ArrayList<String>();
-        for (Map.Entry<String, ReadOnlyBucket> e : buckets.entrySet()) {
-            for (String key : e.getValue().keys()) {
-                keys.add(e.getKey() + "/" + key);
+    public void put(String bucket, String key, InputStream in, int length) {
+        throw new UnsupportedOperationException("Store is read-only");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putAll(String bucket, Map<String, byte[]> values) {
+        throw new UnsupportedOperationException("Store is read-only");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete(String bucket, String key) {
+        throw new UnsupportedOperationException("Store is read-only");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> keys() {
+        return new AbstractCollection<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new KeyIterator();
+            }
+
+            @Override
+            public int size() {
+                return ReadOnlyStore.this.size();
             }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Spliterator<String> keySpliterator() {
+        List<Supplier<Spliterator<String>>> sources = new ArrayList<Supplier<Spliterator<String>>>();
+        for (Map.Entry<String, ReadOnlyBucket> e : buckets.entrySet()) {
+            final String prefix = e.getKey() + "/";
+            final ReadOnlyBucket bucket = e.getValue();
+            sources.add(new Supplier<Spliterator<String>>() {
+                @Override
+                public Spliterator<String> get() {
+                    return KeySpliterators.map(bucket.keySpliterator(), new Function<String, String>() {
+                        @Override
+                        public String apply(String key) {
+                            return prefix + key;
+                        }
+                    });
+                }
+            });
+        }
+        return KeySpliterators.concat(sources);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Spliterator<String> keySpliterator(String bucket) {
+        if (buckets.containsKey(bucket)) {
+            return buckets.get(bucket).keySpliterator();
         }
-        Collections.sort(keys);
-        return keys;
+        return Spliterators.emptySpliterator();
     }
 
-    protected void readBuckets(boolean readOnly) {
-        FilenameFilter filter = new FilenameFilter() {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Spliterator<Map.Entry<String, MappedValue>> entrySpliterator(String bucket) {
+        if (buckets.containsKey(bucket)) {
+            return buckets.get(bucket).entrySpliterator();
+        }
+        return Spliterators.emptySpliterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> keys(String bucket, String prefix, String startAfter, int limit) {
+        if (buckets.containsKey(bucket)) {
+            return buckets.get(bucket).keys(prefix, startAfter, limit);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Opens every bucket in the store directory, spread over
+     * {@link Options#getLoadThreads()} threads. A bucket is a directory of
+     * segments, or a single data file if it was written before segments were
+     * introduced.
+     */
+    protected void readBuckets() {
+        FileFilter filter = new FileFilter() {
             @Override
-            public boolean accept(File file, String name) {
-                return name.endsWith(".dat");
+            public boolean accept(File file) {
+                return file.isDirectory() || file.getName().endsWith(".dat");
             }
         };
 
-        for (File dataFile : dir.listFiles(filter)) {
-            String bucketName = dataFile.getName().substring(0, dataFile.getName().length() - 4);
-            if (readOnly) {
-                buckets.put(bucketName, new ReadOnlyBucket(dataFile));
-            } else {
-                buckets.put(bucketName, new WritableBucket(dataFile));
+        File[] files = dir.listFiles(filter);
+        if (files.length == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        int threads = Math.max(1, Math.min(files.length, options.getLoadThreads()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "kevlar-load");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+
+            Map<String, Future<ReadOnlyBucket>> futures = new HashMap<String, Future<ReadOnlyBucket>>();
+            for (final File file : files) {
+                String bucketName = file.getName();
+                if (!file.isDirectory()) {
+                    bucketName = bucketName.substring(0, bucketName.length() - 4);
+                }
+                final String name = bucketName;
+                futures.put(name, executor.submit(new Callable<ReadOnlyBucket>() {
+                    @Override
+                    public ReadOnlyBucket call() {
+                        long start = System.nanoTime();
+                        ReadOnlyBucket bucket = openBucket(file);
+                        log.info("Opened bucket {} with {} keys in {} ms", new Object[] { name, bucket.size(),
+                                (System.nanoTime() - start) / 1000000 });
+                        return bucket;
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<ReadOnlyBucket>> e : futures.entrySet()) {
+                buckets.put(e.getKey(), e.getValue().get());
+            }
+            for (Map.Entry<String, ReadOnlyBucket> e : buckets.entrySet()) {
+                register(e.getKey(), e.getValue(), e.getValue().getMetrics());
+                warm(e.getKey(), e.getValue());
+            }
+
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) x.getCause();
             }
+            throw new RuntimeException(x.getCause());
+        } catch (InterruptedException x) {
+            throw new RuntimeException(x);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        log.info("Opened {} buckets in {} ms", buckets.size(), (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Registers the stats and latencies of the store, or of one of its
+     * buckets, with JMX unless disabled.
+     *
+     * @param bucket the bucket, or null for the store
+     */
+    protected void register(String bucket, StatsMBean stats, Metrics metrics) {
+        if (options.isJmxEnabled()) {
+            Jmx.register(dir.getAbsolutePath(), bucket, stats, metrics);
+        }
+    }
+
+    /**
+     * Stops warming up buckets, closes their files and unregisters the
+     * MBeans of the store. The store can't be used afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            if (warmer != null) {
+                warmer.shutdownNow();
+            }
+        }
+        for (Map.Entry<String, ReadOnlyBucket> e : buckets.entrySet()) {
+            e.getValue().close();
+            if (options.isJmxEnabled()) {
+                Jmx.unregister(dir.getAbsolutePath(), e.getKey());
+            }
+        }
+        if (options.isJmxEnabled()) {
+            Jmx.unregister(dir.getAbsolutePath(), null);
+        }
+    }
+
+    @Override
+    public int getKeyCount() {
+        return size();
+    }
+
+    @Override
+    public long getBufferSize() {
+        long bytes = 0;
+        for (ReadOnlyBucket bucket : buckets.values()) {
+            bytes += bucket.getBufferSize();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getLiveBytes() {
+        long bytes = 0;
+        for (ReadOnlyBucket bucket : buckets.values()) {
+            bytes += bucket.getLiveBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getDeadBytes() {
+        long bytes = 0;
+        for (ReadOnlyBucket bucket : buckets.values()) {
+            bytes += bucket.getDeadBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int getSegmentCount() {
+        int count = 0;
+        for (ReadOnlyBucket bucket : buckets.values()) {
+            count += bucket.getSegmentCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the latencies of the operations on all buckets
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Faults in the most read records of a bucket in the background, see
+     * {@link Options#getWarmupSize()}.
+     */
+    protected void warm(final String name, final ReadOnlyBucket bucket) {
+        if (options.getWarmupSize() <= 0) {
+            return;
+        }
+        synchronized (this) {
+            if (warmer == null) {
+                warmer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "kevlar-warmup");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+        }
+        warmer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    long bytes = bucket.warm(options.getWarmupSize(), options.getWarmupRate());
+                    if (bytes > 0) {
+                        log.info("Warmed up {} bytes of bucket {} in {} ms", new Object[] { bytes, name,
+                                (System.nanoTime() - start) / 1000000 });
+                    }
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException x) {
+                    log.warn("Failed to warm up bucket " + name, x);
+                }
+            }
+        });
+    }
+
+    /**
+     * Iterates over the ordered keys of one bucket after another, with the
+     * buckets in the order of their keys.
+     */
+    private class KeyIterator implements Iterator<String> {
+
+        private final Iterator<String> names;
+        private String prefix;
+        private Iterator<String> keys = Collections.<String> emptyList().iterator();
+
+        KeyIterator() {
+            List<String> names = new ArrayList<String>();
+            for (String name : buckets.keySet()) {
+                names.add(name + "/");
+            }
+            Collections.sort(names);
+            this.names = names.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!keys.hasNext()) {
+                if (!names.hasNext()) {
+                    return false;
+                }
+                prefix = names.next();
+                ReadOnlyBucket bucket = buckets.get(prefix.substring(0, prefix.length() - 1));
+                if (bucket != null) {
+                    keys = bucket.keys(null, null);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return prefix + keys.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * Opens an existing bucket.
+     *
+     * @param file the bucket directory, or the data file of an older bucket
+     * @return the bucket, split into partitions if it was created with more
+     *         than one
+     */
+    protected ReadOnlyBucket openBucket(File file) {
+        ReadOnlyBucket bucket;
+        if (file.isDirectory() && Partitions.exist(file)) {
+            bucket = new ReadOnlyPartitionedBucket(file, options.getIndexType(), cache, new Metrics(metrics));
+        } else {
+            bucket = new ReadOnlyBucket(file, options.getIndexType(), cache, new Metrics(metrics));
+        }
+        String name = file.getName();
+        if (!file.isDirectory()) {
+            name = name.substring(0, name.length() - 4);
         }
+        bucket.setTtl(options.getTtl(name));
+        return bucket;
     }
 
 }
@@ -0,0 +1,211 @@
+package kevlar;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One data file of a bucket. A bucket appends to its newest segment, and
+ * rolls over to a new one when it reaches the segment size. Older segments
+ * are never written again, except by being compacted away.
+ *
+ * @author david
+ */
+class Segment {
+
+    private final int id;
+    private final File file;
+    private final MappedFile mappedFile;
+
+    private volatile long size;
+    private final AtomicLong deadBytes = new AtomicLong();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    public Segment(int id, File file) {
+        this.id = id;
+        this.file = file;
+        this.mappedFile = new MappedFile(file);
+        this.size = file.length();
+    }
+
+    /**
+     * @return the name of the data file of segment id
+     */
+    static String fileName(int id) {
+        return String.format("%08d.dat", id);
+    }
+
+    /**
+     * @return the segment id parsed from a data file name, or -1
+     */
+    static int parseId(String fileName) {
+        if (!fileName.matches("\\d{8}\\.dat")) {
+            return -1;
+        }
+        return Integer.parseInt(fileName.substring(0, 8));
+    }
+
+    /**
+     * Reads the records of the mapped segment from position onwards. Headers
+     * are parsed straight from the mapped chunks, and keys are copied into a
+     * buffer that is reused between records.
+     *
+     * @return the end of the last complete record
+     */
+    long scan(long position, RecordHandler handler) {
+        ByteBuffer[] chunks = mappedFile.chunks();
+        long chunkSize = mappedFile.getChunkSize();
+        long end = size;
+        byte[] keyBytes = new byte[Byte.MAX_VALUE];
+
+        while (position + Header.SIZE <= end) {
+
+            ByteBuffer chunk = chunks[(int) (position / chunkSize)];
+            int offset = (int) (position % chunkSize);
+
+            long timestamp;
+            int keyLength;
+            int valueLength;
+            int codec = 0;
+            int headerSize = Header.SIZE;
+            if (offset + Header.MAX_SIZE + Byte.MAX_VALUE <= chunk.limit()) {
+                timestamp = chunk.getLong(offset);
+                byte rawKeyLength = chunk.get(offset + 8);
+                valueLength = chunk.getInt(offset + 9);
+                if (Header.isExtended(rawKeyLength)) {
+                    codec = chunk.get(offset + Header.SIZE) & 0xFF;
+                    headerSize = Header.MAX_SIZE;
+                    if (codec == 0) {
+                        break;
+                    }
+                }
+                keyLength = rawKeyLength & Byte.MAX_VALUE;
+                for (int i = 0; i < keyLength; ++i) {
+                    keyBytes[i] = chunk.get(offset + headerSize + i);
+                }
+            } else {
+                // The record may span two chunks
+                boolean extended = Header.isExtended(new ByteBufferReader(chunks, position + 8).getBytes(1)[0]);
+                if (extended && position + Header.MAX_SIZE > end) {
+                    break;
+                }
+                ByteBufferReader reader = new ByteBufferReader(chunks, position);
+                Header header = new Header(reader);
+                timestamp = header.getTimestamp();
+                keyLength = header.getKeyLength();
+                valueLength = header.getStoredValueLength();
+                codec = header.getCodec();
+                headerSize = header.getSize();
+                if (position + headerSize + keyLength > end || (headerSize > Header.SIZE && codec == 0)) {
+                    break;
+                }
+                System.arraycopy(reader.getBytes(keyLength), 0, keyBytes, 0, keyLength);
+            }
+
+            int recordSize = headerSize + keyLength + Header.storedLength(valueLength);
+            if (position + recordSize > end) {
+                break;
+            }
+
+            // Skip values that were never completely written
+            if (valueLength >= -1) {
+                handler.record(keyBytes, keyLength, timestamp, position, valueLength, codec);
+            }
+            position += recordSize;
+        }
+
+        return position;
+    }
+
+    /**
+     * Maps data appended since the last call.
+     */
+    public void remap() {
+        mappedFile.remap();
+    }
+
+    /**
+     * @return the id, which orders segments from oldest to newest
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the data file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the mapped data
+     */
+    public MappedFile getMappedFile() {
+        return mappedFile;
+    }
+
+    /**
+     * @return the number of bytes written to the segment
+     */
+    public long getSize() {
+        return size;
+    }
+
+    void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * @return the number of bytes taken by records that are no longer
+     *         referenced by the index
+     */
+    public long getDeadBytes() {
+        return deadBytes.get();
+    }
+
+    void addDeadBytes(long bytes) {
+        deadBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return true while values are being streamed into the segment, which
+     *         must not be compacted away until they are done
+     */
+    public boolean hasPendingWrites() {
+        return pendingWrites.get() > 0;
+    }
+
+    void beginWrite() {
+        pendingWrites.incrementAndGet();
+    }
+
+    void endWrite() {
+        pendingWrites.decrementAndGet();
+    }
+
+    /**
+     * @return the fraction of the segment taken by dead records
+     */
+    public double getGarbageRatio() {
+        long size = this.size;
+        return (size == 0) ? 0 : (double) getDeadBytes() / size;
+    }
+
+    /**
+     * Receives the records read by {@link Segment#scan(long, RecordHandler)}.
+     */
+    interface RecordHandler {
+
+        /**
+         * @param key holds the key in its first keyLength bytes, and is
+         *        overwritten by the next record
+         * @param valueLength the value length, negative for a tombstone
+         * @param codec the codec the value was compressed with, or 0
+         */
+        void record(byte[] key, int keyLength, long timestamp, long offset, int valueLength, int codec);
+
+    }
+
+}
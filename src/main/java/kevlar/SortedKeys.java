@@ -0,0 +1,577 @@
+package kevlar;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+/**
+ * The keys of a bucket in order, as a sorted array of keys plus skip lists
+ * of the keys added and removed since the array was built. The skip lists are
+ * merged into a new array once they grow past an eighth of the array, so
+ * adding or removing a key costs a skip list update plus a few array copies
+ * amortized, and the array costs one reference per key.
+ *
+ * The array is built on first use, so buckets that are never listed don't
+ * pay for it. Iteration is lazy and weakly consistent: it sees every key
+ * added before it started, and may or may not see keys added since.
+ *
+ * Building the array reads every key of the source once, which for a
+ * {@link IndexType#HASH_ONLY} index means reading every key back from the
+ * segments. For the indexes that keep their keys out of the heap, the array
+ * is kept in direct memory as UTF-8, and only the skip lists hold keys on
+ * the heap. It is built by sorting the keys a chunk at a time into runs in
+ * direct memory and merging the runs, so a build holds at most a chunk of
+ * keys on the heap.
+ *
+ * @author david
+ */
+class SortedKeys {
+
+    private static final int MIN_MERGE_SIZE = 4096;
+
+    private static final String[] NO_KEYS = new String[0];
+
+    /**
+     * Keys sorted on the heap at a time when building an array in direct
+     * memory.
+     */
+    static final int BUILD_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The keys to build the array from.
+     */
+    private final Collection<String> source;
+
+    /**
+     * True if the array is kept in direct memory.
+     */
+    private final boolean offHeap;
+
+    private final Object buildLock = new Object();
+
+    /**
+     * The current array and skip list, or null until first use.
+     */
+    private volatile Run run;
+
+    /**
+     * Collect the keys added and removed while the array is being built.
+     */
+    private ConcurrentSkipListSet<String> building;
+    private ConcurrentSkipListSet<String> buildingRemoved;
+
+    /**
+     * @param source the keys to build the array from when it is first needed.
+     *        Keys added to and removed from source later must be passed to
+     *        {@link #add(String)} and {@link #remove(String)}.
+     */
+    SortedKeys(Collection<String> source) {
+        this(source, false);
+    }
+
+    /**
+     * @param offHeap true to keep the array in direct memory
+     */
+    SortedKeys(Collection<String> source, boolean offHeap) {
+        this.source = source;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Adds a key that wasn't in the bucket before.
+     */
+    synchronized void add(String key) {
+        Run run = this.run;
+        if (run == null) {
+            if (building != null) {
+                building.add(key);
+                buildingRemoved.remove(key);
+            }
+            return;
+        }
+        run.delta.add(key);
+        run.removed.remove(key);
+        mergeIfLarge(run);
+    }
+
+    /**
+     * Removes a key that was in the bucket.
+     */
+    synchronized void remove(String key) {
+        Run run = this.run;
+        if (run == null) {
+            if (building != null) {
+                building.remove(key);
+                buildingRemoved.add(key);
+            }
+            return;
+        }
+        run.delta.remove(key);
+        if (run.keys.search(key) >= 0) {
+            run.removed.add(key);
+            mergeIfLarge(run);
+        }
+    }
+
+    private void mergeIfLarge(Run run) {
+        if (run.delta.size() + run.removed.size() > Math.max(MIN_MERGE_SIZE, run.keys.length() / 8)) {
+            this.run = new Run(merge(run), new ConcurrentSkipListSet<String>(), new ConcurrentSkipListSet<String>());
+        }
+    }
+
+    /**
+     * @param prefix only keys starting with prefix, or null for all keys
+     * @param startAfter only keys after this one, or null
+     * @return the keys in order, read as the iterator advances
+     */
+    Iterator<String> iterator(String prefix, String startAfter) {
+        String from = startAfter;
+        boolean inclusive = false;
+        if (prefix != null && (from == null || from.compareTo(prefix) < 0)) {
+            from = prefix;
+            inclusive = true;
+        }
+
+        Run run = run();
+        Iterator<String> keys;
+        if (from == null) {
+            keys = merge(run.keys.iterator(0), run.delta.iterator());
+        } else {
+            int start = run.keys.search(from);
+            if (start < 0) {
+                start = -start - 1;
+            } else if (!inclusive) {
+                ++start;
+            }
+            keys = merge(run.keys.iterator(start), run.delta.tailSet(from, inclusive).iterator());
+        }
+        if (!run.removed.isEmpty()) {
+            final ConcurrentSkipListSet<String> removed = run.removed;
+            keys = skip(keys, new Predicate<String>() {
+                @Override
+                public boolean test(String key) {
+                    return removed.contains(key);
+                }
+            });
+        }
+        return prefix == null ? keys : new PrefixIterator(keys, prefix);
+    }
+
+    private Run run() {
+        Run run = this.run;
+        if (run != null) {
+            return run;
+        }
+        synchronized (buildLock) {
+            run = this.run;
+            if (run == null) {
+                run = build();
+            }
+            return run;
+        }
+    }
+
+    /**
+     * Sorts the keys of source without holding up {@link #add(String)}, which
+     * collects the keys added meanwhile.
+     */
+    private Run build() {
+        ConcurrentSkipListSet<String> delta = new ConcurrentSkipListSet<String>();
+        ConcurrentSkipListSet<String> removed = new ConcurrentSkipListSet<String>();
+        synchronized (this) {
+            building = delta;
+            buildingRemoved = removed;
+        }
+
+        Keys sorted;
+        if (offHeap) {
+            sorted = sortOffHeap();
+        } else {
+            String[] keys = source.toArray(NO_KEYS);
+            Arrays.sort(keys);
+            sorted = new HeapKeys(keys);
+        }
+
+        synchronized (this) {
+            building = null;
+            buildingRemoved = null;
+            run = new Run(sorted, delta, removed);
+            return run;
+        }
+    }
+
+    /**
+     * Sorts the keys of source a chunk at a time into runs in direct memory,
+     * then merges the runs into one array.
+     */
+    private Keys sortOffHeap() {
+        List<Keys> runs = new ArrayList<Keys>();
+        int length = 0;
+        String[] chunk = new String[Math.max(1, Math.min(BUILD_CHUNK_SIZE, source.size()))];
+        Iterator<String> it = source.iterator();
+        while (it.hasNext()) {
+            int size = 0;
+            while (size < chunk.length && it.hasNext()) {
+                chunk[size++] = it.next();
+            }
+            Arrays.sort(chunk, 0, size);
+            runs.add(keys(Arrays.asList(chunk).subList(0, size).iterator(), size));
+            length += size;
+        }
+        if (runs.size() == 1) {
+            return runs.get(0);
+        }
+        return keys(merge(runs, 0, runs.size()), length);
+    }
+
+    /**
+     * @return the keys of runs from index from to index to in order
+     */
+    private static Iterator<String> merge(List<Keys> runs, int from, int to) {
+        if (to - from == 0) {
+            return Collections.<String> emptyList().iterator();
+        }
+        if (to - from == 1) {
+            return runs.get(from).iterator(0);
+        }
+        int middle = (from + to) >>> 1;
+        return merge(merge(runs, from, middle), merge(runs, middle, to));
+    }
+
+    /**
+     * @return the keys of run in one sorted array
+     */
+    private Keys merge(final Run run) {
+        Iterator<String> it = skip(merge(run.keys.iterator(0), run.delta.iterator()), new Predicate<String>() {
+            @Override
+            public boolean test(String key) {
+                return run.removed.contains(key);
+            }
+        });
+        return keys(it, run.keys.length() + run.delta.size());
+    }
+
+    /**
+     * @param maxLength at least the number of keys
+     * @return the keys of a sorted iterator in an array
+     */
+    private Keys keys(Iterator<String> sorted, int maxLength) {
+        if (offHeap) {
+            OffHeapKeys keys = new OffHeapKeys(maxLength);
+            while (sorted.hasNext()) {
+                keys.add(sorted.next());
+            }
+            return keys;
+        }
+        String[] keys = new String[maxLength];
+        int size = 0;
+        while (sorted.hasNext()) {
+            keys[size++] = sorted.next();
+        }
+        return new HeapKeys(size == keys.length ? keys : Arrays.copyOf(keys, size));
+    }
+
+    /**
+     * @return the number of keys held on the heap, 0 until first use
+     */
+    int getHeapKeyCount() {
+        Run run = this.run;
+        if (run == null) {
+            return 0;
+        }
+        return run.delta.size() + run.removed.size() + (offHeap ? 0 : run.keys.length());
+    }
+
+    /**
+     * @return the keys of two sorted iterators in order, each key once
+     */
+    static Iterator<String> merge(final Iterator<String> a, final Iterator<String> b) {
+        return new Iterator<String>() {
+
+            private String nextA = a.hasNext() ? a.next() : null;
+            private String nextB = b.hasNext() ? b.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return nextA != null || nextB != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int c = nextA == null ? 1 : (nextB == null ? -1 : nextA.compareTo(nextB));
+                String key = c <= 0 ? nextA : nextB;
+                if (c <= 0) {
+                    nextA = a.hasNext() ? a.next() : null;
+                }
+                if (c >= 0) {
+                    nextB = b.hasNext() ? b.next() : null;
+                }
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
+    private static class Run {
+
+        final Keys keys;
+        final ConcurrentSkipListSet<String> delta;
+        final ConcurrentSkipListSet<String> removed;
+
+        Run(Keys keys, ConcurrentSkipListSet<String> delta, ConcurrentSkipListSet<String> removed) {
+            this.keys = keys;
+            this.delta = delta;
+            this.removed = removed;
+        }
+
+    }
+
+    /**
+     * A sorted array of keys, never changed once built.
+     */
+    private abstract static class Keys {
+
+        abstract int length();
+
+        abstract String get(int i);
+
+        /**
+         * @return the index of key, or (-(insertion point) - 1) like
+         *         {@link Arrays#binarySearch(Object[], Object)}
+         */
+        int search(String key) {
+            int low = 0;
+            int high = length() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int c = get(middle).compareTo(key);
+                if (c < 0) {
+                    low = middle + 1;
+                } else if (c > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        /**
+         * @return the keys from index from on
+         */
+        Iterator<String> iterator(final int from) {
+            return new Iterator<String>() {
+
+                private int next = from;
+
+                @Override
+                public boolean hasNext() {
+                    return next < length();
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return get(next++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+            };
+        }
+
+    }
+
+    private static class HeapKeys extends Keys {
+
+        private final String[] keys;
+
+        HeapKeys(String[] keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        int length() {
+            return keys.length;
+        }
+
+        @Override
+        String get(int i) {
+            return keys[i];
+        }
+
+        @Override
+        int search(String key) {
+            return Arrays.binarySearch(keys, key);
+        }
+
+    }
+
+    /**
+     * Keys as UTF-8 in direct memory, each prefixed by its length, and the
+     * position of each key as a long: the chunk in the high half, the offset
+     * in the chunk in the low half. Keys are decoded as they are read.
+     */
+    private static class OffHeapKeys extends Keys {
+
+        private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+        private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+        private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        private final ByteBuffer positions;
+        private int length;
+
+        /**
+         * @param capacity the maximum number of keys
+         */
+        OffHeapKeys(int capacity) {
+            positions = ByteBuffer.allocateDirect(Math.max(1, capacity) * 8);
+        }
+
+        void add(String key) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || chunk.remaining() < 2 + bytes.length) {
+                int size = chunk == null ? MIN_CHUNK_SIZE : Math.min(MAX_CHUNK_SIZE, 2 * chunk.capacity());
+                chunk = ByteBuffer.allocateDirect(Math.max(size, 2 + bytes.length));
+                chunks.add(chunk);
+            }
+            positions.putLong(length * 8, ((long) (chunks.size() - 1) << 32) | chunk.position());
+            chunk.putShort((short) bytes.length);
+            chunk.put(bytes);
+            ++length;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        String get(int i) {
+            long position = positions.getLong(i * 8);
+            ByteBuffer chunk = chunks.get((int) (position >>> 32));
+            int offset = (int) position;
+            byte[] bytes = new byte[chunk.getShort(offset) & 0xffff];
+            for (int j = 0; j < bytes.length; ++j) {
+                bytes[j] = chunk.get(offset + 2 + j);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+    }
+
+    /**
+     * @return the keys of an iterator, except those skipped
+     */
+    static Iterator<String> skip(Iterator<String> keys, Predicate<String> skipped) {
+        return new SkipIterator(keys, skipped);
+    }
+
+    private static class SkipIterator implements Iterator<String> {
+
+        private final Iterator<String> keys;
+        private final Predicate<String> skipped;
+        private String next;
+
+        SkipIterator(Iterator<String> keys, Predicate<String> skipped) {
+            this.keys = keys;
+            this.skipped = skipped;
+            advance();
+        }
+
+        private void advance() {
+            do {
+                next = keys.hasNext() ? keys.next() : null;
+            } while (next != null && skipped.test(next));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String key = next;
+            advance();
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * Ends a sorted iteration at the first key without the prefix.
+     */
+    private static class PrefixIterator implements Iterator<String> {
+
+        private final Iterator<String> keys;
+        private final String prefix;
+        private String next;
+
+        PrefixIterator(Iterator<String> keys, String prefix) {
+            this.keys = keys;
+            this.prefix = prefix;
+            advance();
+        }
+
+        private void advance() {
+            next = keys.hasNext() ? keys.next() : null;
+            if (next != null && !next.startsWith(prefix)) {
+                next = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String key = next;
+            advance();
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+package kevlar;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders the stats and latencies of a store and its buckets as JSON:
+ *
+ * <pre>
+ * { "keyCount": 2, "bufferSize": 0, "liveBytes": 52, "deadBytes": 0, "segmentCount": 1,
+ *   "latencies": { "get": { "count": 1, "meanMicros": 3, "p50Micros": 3, ... }, ... },
+ *   "buckets": { "bucket": { "keyCount": 2, ..., "latencies": { ... } } } }
+ * </pre>
+ *
+ * @author david
+ */
+class StatsJson {
+
+    private StatsJson() {
+    }
+
+    static String of(ReadOnlyStore store) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        append(sb, store, store.getMetrics());
+        sb.append(",\"buckets\":{");
+        boolean first = true;
+        for (Map.Entry<String, ReadOnlyBucket> e : new TreeMap<String, ReadOnlyBucket>(store.buckets).entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            string(sb, e.getKey());
+            sb.append(":{");
+            append(sb, e.getValue(), e.getValue().getMetrics());
+            sb.append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, StatsMBean stats, Metrics metrics) {
+        sb.append("\"keyCount\":").append(stats.getKeyCount());
+        sb.append(",\"bufferSize\":").append(stats.getBufferSize());
+        sb.append(",\"liveBytes\":").append(stats.getLiveBytes());
+        sb.append(",\"deadBytes\":").append(stats.getDeadBytes());
+        sb.append(",\"segmentCount\":").append(stats.getSegmentCount());
+        sb.append(",\"latencies\":{");
+        for (Metrics.Op op : Metrics.Op.values()) {
+            Histogram h = metrics.get(op);
+            if (op.ordinal() > 0) {
+                sb.append(',');
+            }
+            string(sb, op.label());
+            sb.append(":{\"count\":").append(h.getCount());
+            sb.append(",\"meanMicros\":").append(h.getMeanMicros());
+            sb.append(",\"p50Micros\":").append(h.get50thPercentileMicros());
+            sb.append(",\"p90Micros\":").append(h.get90thPercentileMicros());
+            sb.append(",\"p99Micros\":").append(h.get99thPercentileMicros());
+            sb.append(",\"p999Micros\":").append(h.get999thPercentileMicros());
+            sb.append(",\"maxMicros\":").append(h.getMaxMicros());
+            sb.append('}');
+        }
+        sb.append('}');
+    }
+
+    private static void string(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+}
@@ -0,0 +1,35 @@
+package kevlar;
+
+/**
+ * The size of a bucket, or of a whole store, as exposed through JMX.
+ *
+ * @author david
+ */
+public interface StatsMBean {
+
+    /**
+     * @return the number of keys
+     */
+    public int getKeyCount();
+
+    /**
+     * @return the bytes of puts waiting to be written
+     */
+    public long getBufferSize();
+
+    /**
+     * @return the bytes of the records that the index points at
+     */
+    public long getLiveBytes();
+
+    /**
+     * @return the bytes of replaced records, which compaction reclaims
+     */
+    public long getDeadBytes();
+
+    /**
+     * @return the number of segment files
+     */
+    public int getSegmentCount();
+
+}
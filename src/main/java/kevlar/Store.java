@@ -1,6 +1,10 @@
 package kevlar;
 
+import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
 
 /**
  * A high-performance key-value store.
@@ -17,6 +21,25 @@ public interface Store {
      */
     public byte[] get(String bucket, String key);
 
+    /**
+     * Gets the value of a mapping without copying it from the data file.
+     * @param bucket the bucket
+     * @param key the key
+     * @return the corresponding value of key, or null if the mapping doesn't exist.
+     */
+    public MappedValue getValue(String bucket, String key);
+
+    /**
+     * Gets the values of several mappings without copying them from the data
+     * files. The mappings are read in the order they are stored, so the
+     * mapped pages are touched sequentially.
+     * @param bucket the bucket
+     * @param keys the keys
+     * @return the values of the keys that have a mapping, in the order they
+     * are stored.
+     */
+    public Map<String, MappedValue> getAll(String bucket, Collection<String> keys);
+
     /**
      * Gets the timestamp of a mapping.
      * @param bucket the bucket
@@ -35,6 +58,35 @@ public interface Store {
      */
     public void put(String bucket, String key, byte[] value);
 
+    /**
+     * Create a new mapping whose value is read from a stream. The value is
+     * written as it is read, without being held in memory, and the mapping
+     * is only created once all of it has been written. If the bucket doesn't
+     * exist, it will be created.
+     * @param bucket the bucket
+     * @param key the key
+     * @param in the value
+     * @param length the number of bytes of the value
+     */
+    public void put(String bucket, String key, InputStream in, int length);
+
+    /**
+     * Create several mappings at once. If the bucket doesn't exist, it will
+     * be created.
+     * @param bucket the bucket
+     * @param values the values, keyed by key
+     */
+    public void putAll(String bucket, Map<String, byte[]> values);
+
+    /**
+     * Removes a mapping. The removal is written as a tombstone, and the space
+     * of the mapping is reclaimed by compaction.
+     * @param bucket the bucket
+     * @param key the key
+     * @return true if the mapping existed
+     */
+    public boolean delete(String bucket, String key);
+
     /**
      * @return the size of all key-value mappings in the store.
      */
@@ -49,8 +101,51 @@ public interface Store {
     public boolean contains(String bucket, String key);
 
     /**
-     * @return a list of all keys in the store
+     * @return all keys in the store as <code>bucket/key</code>, in order. The
+     * collection is a view, whose iterator reads the keys of one bucket after
+     * another as it advances and is weakly consistent.
      */
     public Collection<String> keys();
 
+    /**
+     * Traverses all keys in the store as <code>bucket/key</code>, without
+     * copying them and without holding up puts. The traversal is weakly
+     * consistent: it sees every key that existed when it started and was
+     * not deleted, and may or may not see keys added since. It splits by
+     * bucket, and then within buckets, for parallel consumption.
+     * @return the keys, in no particular order
+     */
+    public Spliterator<String> keySpliterator();
+
+    /**
+     * Traverses the keys of a bucket, see {@link #keySpliterator()}.
+     * @param bucket the bucket
+     * @return the keys, in no particular order
+     */
+    public Spliterator<String> keySpliterator(String bucket);
+
+    /**
+     * Traverses the keys and values of a bucket, see
+     * {@link #keySpliterator()}. Values are read as the traversal advances,
+     * without being copied from the data files.
+     * @param bucket the bucket
+     * @return the entries, in no particular order
+     */
+    public Spliterator<Map.Entry<String, MappedValue>> entrySpliterator(String bucket);
+
+    /**
+     * Lists the keys of a bucket in order, a page at a time. The first listing
+     * of a bucket sorts all of its keys, reading them back from the data
+     * files with a {@link IndexType#HASH_ONLY} index. From then on, the cost
+     * depends on the size of the page, not on the number of keys in the
+     * bucket.
+     * @param bucket the bucket
+     * @param prefix only keys starting with prefix, or null for all keys
+     * @param startAfter only keys after this one, e.g. the last key of the
+     * previous page, or null for the first page
+     * @param limit the maximum number of keys
+     * @return the keys in order
+     */
+    public List<String> keys(String bucket, String prefix, String startAfter, int limit);
+
 }
@@ -0,0 +1,56 @@
+package kevlar;
+
+/**
+ * A token bucket that limits the rate of bytes copied by compaction. Bytes
+ * are paid for after they have been copied, so the copy itself never waits
+ * while holding a lock: the bucket may go into debt, and the next caller
+ * sleeps until it is paid off. Up to one second worth of unused bytes is
+ * saved up for bursts.
+ *
+ * @author david
+ */
+class Throttle {
+
+    private final long bytesPerSecond;
+
+    /**
+     * Bytes that may be copied right away, negative while in debt.
+     */
+    private long tokens;
+    private long refilled;
+
+    /**
+     * @param bytesPerSecond the rate, or 0 for no limit
+     */
+    Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Pays for bytes copied, waiting until the rate allows them.
+     */
+    void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long elapsed = now - refilled;
+            if (elapsed >= (bytesPerSecond - tokens) * 1000000000L / bytesPerSecond) {
+                tokens = bytesPerSecond;
+            } else {
+                tokens += elapsed * bytesPerSecond / 1000000000L;
+            }
+            refilled = now;
+            tokens -= bytes;
+            wait = tokens >= 0 ? 0 : -tokens * 1000000000L / bytesPerSecond;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+}
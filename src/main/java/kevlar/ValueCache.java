@@ -0,0 +1,75 @@
+package kevlar;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of decompressed values, shared by the buckets of a store.
+ * Values are keyed by where their record is stored, so a new version of a
+ * value never hits the old one, and values of compacted records simply age
+ * out. The least recently used values are evicted first.
+ *
+ * @author david
+ */
+class ValueCache {
+
+    private final long capacity;
+    private long size = 0;
+
+    private final LinkedHashMap<Key, byte[]> values = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+    /**
+     * @param capacity the total size of the cached values in bytes
+     */
+    ValueCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized byte[] get(Object bucket, int segment, long offset) {
+        return values.get(new Key(bucket, segment, offset));
+    }
+
+    synchronized void put(Object bucket, int segment, long offset, byte[] value) {
+        if (value.length > capacity) {
+            return;
+        }
+        byte[] replaced = values.put(new Key(bucket, segment, offset), value);
+        size += value.length - (replaced == null ? 0 : replaced.length);
+
+        Iterator<Map.Entry<Key, byte[]>> it = values.entrySet().iterator();
+        while (size > capacity) {
+            size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    private static final class Key {
+
+        private final Object bucket;
+        private final int segment;
+        private final long offset;
+
+        Key(Object bucket, int segment, long offset) {
+            this.bucket = bucket;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(bucket) * 31 + segment) * 31 + (int) (offset ^ (offset >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return bucket == k.bucket && segment == k.segment && offset == k.offset;
+        }
+
+    }
+
+}
@@ -2,202 +2,1411 @@ package kevlar;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
- * A writable bucket.
+ * A writable bucket. Puts are appended to the newest segment, which is
+ * sealed and replaced by a new one when it reaches the segment size.
  *
  * @author david
  */
 class WritableBucket extends ReadOnlyBucket {
 
-    private static final int DEFAULT_BUFFER_LIMIT = 4096;
+    /**
+     * Bytes of a segment migrated per hold of the flush lock during
+     * compaction.
+     */
+    private static final int COMPACTION_BATCH_SIZE = 1024 * 1024;
 
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Bytes of a streamed value copied per write.
+     */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
 
+    /**
+     * Bytes of records a flush serializes before writing them. Larger values
+     * are written straight from the put, in the same gathering write.
+     */
+    private static final int STAGING_BUFFER_SIZE = 256 * 1024;
+
+    private File dir;
+
+    private FileChannel lockChannel;
+
+    /**
+     * The segment being appended to, and a channel positioned at its end.
+     */
+    private Segment active;
     private FileChannel dataChannel;
 
-    private Map<String, byte[]> buffer = new HashMap<String, byte[]>();
-    private int bufferSize = 0;
-    private int bufferLimit = DEFAULT_BUFFER_LIMIT;
+    private long segmentSize = Options.DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * Limits the rate at which compaction copies records, or null.
+     */
+    private Throttle throttle;
+
+    /**
+     * Serializes flush and compact, so its holder is the only writer of the
+     * active segment. Puts only queue records for it, so they never wait for
+     * a force.
+     */
+    private final Object flushLock = new Object();
+
+    private final Object compactLock = new Object();
+
+    /**
+     * Sealed segments waiting for their hint files, which are written
+     * outside the flush lock.
+     */
+    private final Queue<Segment> unhinted = new ConcurrentLinkedQueue<Segment>();
+    private final Object hintLock = new Object();
+
+    /**
+     * The newest put of each key not yet written or being written. Reads
+     * check it before the index, so buffered puts are visible right away. A
+     * flush drops a put only after the index points at its record, and only
+     * if no newer put of the key has replaced it meanwhile.
+     */
+    private final ConcurrentHashMap<String, BufferedPut> memtable = new ConcurrentHashMap<String, BufferedPut>();
+
+    /**
+     * Puts in the order they were made, waiting for the flush lock holder to
+     * write them. Producers only add to the queue and the memtable, so they
+     * never wait for each other or for a flush.
+     */
+    private final Queue<BufferedPut> queue = new ConcurrentLinkedQueue<BufferedPut>();
+
+    /**
+     * Serializes records for the flush, so a batch goes out in few writes.
+     * Only used under the flush lock.
+     */
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_BUFFER_SIZE);
 
-    public WritableBucket(File dataFile, int bufferLimit) {
-        this(dataFile);
-        this.bufferLimit = bufferLimit;
+    /**
+     * Puts drained by a flush that failed, in the order they were made. The
+     * next flush writes them before the queue. Only used under the flush
+     * lock.
+     */
+    private List<BufferedPut> unwritten = new ArrayList<BufferedPut>();
+
+    /**
+     * Entries found expired by reads, dropped from the index by the next
+     * flush.
+     */
+    private final Map<String, Index.Entry> expired = new ConcurrentHashMap<String, Index.Entry>();
+
+    /**
+     * Bytes the queued puts take on disk.
+     */
+    private final AtomicLong bufferSize = new AtomicLong();
+    private int bufferLimit = Options.DEFAULT_BUFFER_LIMIT;
+
+    private Durability durability = Durability.OS;
+
+    /**
+     * Compresses the values of puts, or null.
+     */
+    private Codec codec;
+    private long commitInterval;
+    private long streamTimeout;
+    private long expiryInterval = Options.DEFAULT_EXPIRY_INTERVAL;
+
+    /**
+     * When the index was last scanned for expired entries.
+     */
+    private volatile long lastExpiryScan;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * The commit of the puts queued since the last flush started.
+     */
+    private final AtomicReference<Commit> pending = new AtomicReference<Commit>(new Commit());
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush(true);
+        }
+    };
+
+    public WritableBucket(File dir, int bufferLimit) {
+        this(dir, new Options().setBufferLimit(bufferLimit), null);
     }
 
-    public WritableBucket(File dataFile) {
-        FileOutputStream fos = null;
+    public WritableBucket(File dir) {
+        this(dir, new Options(), null);
+    }
+
+    public WritableBucket(File dir, Options options, ScheduledExecutorService scheduler) {
+        this(dir, options, scheduler, null, new Metrics());
+    }
+
+    /**
+     * @param dir the bucket directory, created if missing
+     * @param options the options of the store
+     * @param scheduler runs group commits
+     * @param cache caches decompressed values, or null
+     * @param metrics records the latencies of the operations on the bucket
+     */
+    public WritableBucket(File dir, Options options, ScheduledExecutorService scheduler, ValueCache cache,
+            Metrics metrics) {
+        this(dir, dir.getName(), options, scheduler, cache, metrics);
+    }
+
+    /**
+     * @param name the bucket whose options apply, which differs from the
+     *        name of dir for the partitions of a bucket
+     */
+    WritableBucket(File dir, String name, Options options, ScheduledExecutorService scheduler, ValueCache cache,
+            Metrics metrics) {
+        this.cache = cache;
+        this.metrics = metrics;
         try {
 
-            this.dataFile = dataFile;
+            this.dir = dir;
+            this.durability = options.getDurability();
+            this.commitInterval = options.getCommitInterval();
+            this.segmentSize = options.getSegmentSize();
+            this.streamTimeout = options.getStreamTimeout();
+            this.expiryInterval = options.getExpiryInterval();
+            this.bufferLimit = options.getBufferLimit();
+            this.codec = options.getCodec(name);
+            this.ttl = options.getTtl(name);
+            this.scheduler = scheduler;
 
-            if (!dataFile.exists()) {
-                dataFile.createNewFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
             }
 
-            fos = new FileOutputStream(dataFile, true);
-            dataChannel = fos.getChannel();
-            dataChannel.lock();
+            lockChannel = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel();
+            lockChannel.lock();
 
-            // Read index entries
-            index = new Index(dataFile);
+            open(dir, options.getIndexType());
 
-            // Memory map dataFile
-            mmap();
+            if (segments.isEmpty()) {
+                createSegment(0);
+            } else {
+                openSegment(segments.lastEntry().getValue());
+            }
+
+            // Hint files lost in a crash
+            for (Segment segment : segments.headMap(active.getId()).values()) {
+                if (!HintFile.of(segment).exists()) {
+                    unhinted.add(segment);
+                }
+            }
+            writeHints();
 
         } catch (Exception x) {
             throw new RuntimeException(x);
+        }
+    }
+
+    protected WritableBucket() {
+
+    }
+
+    /**
+     * Buffers a put. The value is visible to reads right away.
+     *
+     * @return a future that is done when the put has been written, and
+     *         forced to disk unless the durability mode is
+     *         {@link Durability#OS}.
+     */
+    public Future<Void> put(String key, byte[] value) {
+        long start = System.nanoTime();
+        try {
+            return buffer(new BufferedPut[] { new BufferedPut(key, value, codec) });
         } finally {
-            // Util.close(fos);
+            metrics.record(Metrics.Op.PUT, start);
         }
     }
 
-    @Override
-    public byte[] get(String key) {
+    /**
+     * Buffers several puts at once, so they usually share a flush.
+     *
+     * @return a future that is done when the puts have been written, and
+     *         forced to disk unless the durability mode is
+     *         {@link Durability#OS}.
+     */
+    public Future<Void> putAll(Map<String, byte[]> values) {
+        long start = System.nanoTime();
         try {
-            lock.readLock().lock();
-            return super.get(key);
+            BufferedPut[] puts = new BufferedPut[values.size()];
+            int i = 0;
+            for (Map.Entry<String, byte[]> e : values.entrySet()) {
+                puts[i++] = new BufferedPut(e.getKey(), e.getValue(), codec);
+            }
+            return buffer(puts);
         } finally {
-            lock.readLock().unlock();
+            metrics.record(Metrics.Op.PUT, start);
         }
     }
 
-    @Override
-    public void mmap() {
+    /**
+     * Buffers a delete, written as a tombstone record. The key is gone for
+     * reads right away.
+     *
+     * @return a future that is done when the tombstone has been written, and
+     *         forced to disk unless the durability mode is
+     *         {@link Durability#OS}.
+     */
+    public Future<Void> delete(String key) {
+        long start = System.nanoTime();
         try {
-            lock.writeLock().lock();
-            super.mmap();
+            return buffer(new BufferedPut[] { new BufferedPut(key, null, null) });
         } finally {
-            lock.writeLock().unlock();
+            metrics.record(Metrics.Op.DELETE, start);
         }
     }
 
-    public synchronized void put(String key, byte[] value) {
+    /**
+     * Writes a value of known length straight from a stream into the active
+     * segment, without buffering it in memory. See {@link #beginPut}. The
+     * value of a compressed bucket is read into memory and compressed
+     * instead, then written right away.
+     */
+    public void put(String key, InputStream in, int length) {
+        if (codec != null) {
+            checkRecordSize(BufferedPut.keyBytes(key), length);
+            try {
+                byte[] value = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    int n = in.read(value, read, length - read);
+                    if (n < 0) {
+                        throw new EOFException("Expected " + length + " bytes, got " + read);
+                    }
+                    read += n;
+                }
+                put(key, value);
+                flush(durability != Durability.OS);
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+            return;
+        }
+        StreamingPut put = beginPut(key, length);
         try {
-            buffer.put(key, value);
-            bufferSize += Header.SIZE + key.getBytes("utf8").length + value.length;
+            byte[] bytes = new byte[Math.min(length, STREAM_BUFFER_SIZE)];
+            while (put.remaining() > 0) {
+                int read = in.read(bytes, 0, (int) Math.min(bytes.length, put.remaining()));
+                if (read < 0) {
+                    throw new EOFException("Expected " + length + " bytes, got " + (length - put.remaining()));
+                }
+                put.write(bytes, 0, read);
+            }
+            put.commit();
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        } finally {
+            put.abort();
+        }
+    }
 
-            if (bufferSize > bufferLimit) {
-                flush();
+    /**
+     * Starts a put whose value of known length is written as it arrives.
+     * Room for the record is reserved in the active segment, so puts and
+     * flushes carry on while the value is written. The index points at the
+     * record only once all of the value has been written and the put is
+     * committed. If the put is aborted instead, the reserved room is left as
+     * garbage and the previous value of key is kept. The value is written as
+     * is, even if the bucket is compressed, see {@link #isCompressed()}.
+     *
+     * A put that receives none of its value for
+     * {@link Options#getStreamTimeout()} is aborted, so a stalled client
+     * doesn't keep the segment from being compacted.
+     *
+     * @throws TooLargeException if the record wouldn't fit in a segment
+     */
+    StreamingPut beginPut(String key, int length) {
+        byte[] keyBytes = BufferedPut.keyBytes(key);
+        checkRecordSize(keyBytes, length);
+        Header header = new Header(keyBytes, length);
+        int size = Header.SIZE + keyBytes.length + length;
+
+        synchronized (flushLock) {
+            try {
+                long position = reserve(size);
+
+                // Mark the record pending until the value is complete, and
+                // leave a hole for the value
+                writeFully(new ByteBuffer[] { header.toPendingByteBuffer(), ByteBuffer.wrap(keyBytes) });
+                if (length > 0) {
+                    dataChannel.write(ByteBuffer.wrap(new byte[1]), position + size - 1);
+                }
+                dataChannel.position(position + size);
+
+                FileChannel channel;
+                try {
+                    channel = new RandomAccessFile(active.getFile(), "rw").getChannel();
+                } catch (IOException x) {
+                    active.addDeadBytes(size);
+                    throw x;
+                }
+                active.beginWrite();
+                StreamingPut put = new StreamingPut(key, header, active, position, size, channel);
+                if (scheduler != null && streamTimeout > 0) {
+                    put.checkTimeout(streamTimeout);
+                }
+                return put;
+            } catch (IOException x) {
+                throw new RuntimeException(x);
             }
+        }
+    }
 
-        } catch (Exception x) {
-            throw new RuntimeException(x);
+    /**
+     * Rejects a value that is negative in length, or whose record wouldn't
+     * fit in a segment or in the int sizes of the record format.
+     */
+    private void checkRecordSize(byte[] keyBytes, int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length " + length);
+        }
+        long size = (long) Header.SIZE + keyBytes.length + length;
+        if (size > Math.min(segmentSize, Integer.MAX_VALUE)) {
+            throw new TooLargeException("Value of " + length + " bytes is larger than a segment");
         }
     }
 
-    public synchronized void compact() {
-        FileInputStream fis = null;
-        FileOutputStream fos = null;
-        FileChannel source = null;
-        FileChannel target = null;
-        try {
+    /**
+     * Queues puts for the next flush. A put is queued and made the newest of
+     * its key in one step, so the puts of a key are queued in the order the
+     * memtable sees them.
+     */
+    private Future<Void> buffer(BufferedPut[] puts) {
+        long size = 0;
+        for (final BufferedPut put : puts) {
+            memtable.compute(put.key, new BiFunction<String, BufferedPut, BufferedPut>() {
+                @Override
+                public BufferedPut apply(String key, BufferedPut replaced) {
+                    queue.add(put);
+                    return put;
+                }
+            });
+            size += put.size();
+        }
+
+        // Read after queueing: a flush swaps the commit before it drains the
+        // queue, so the commit never completes before the puts are written
+        Commit commit = pending.get();
+
+        boolean flush = durability == Durability.SYNC || bufferSize.addAndGet(size) > bufferLimit;
+        boolean schedule = !flush && durability == Durability.GROUP_COMMIT && flushScheduled.compareAndSet(false, true);
+
+        if (flush) {
+            flush(durability != Durability.OS);
+        } else if (schedule) {
+            scheduler.schedule(scheduledFlush, commitInterval, TimeUnit.MILLISECONDS);
+        }
+
+        return commit;
+    }
+
+    /**
+     * @return the newest buffered put of key, or null
+     */
+    private BufferedPut buffered(String key) {
+        return memtable.get(key);
+    }
+
+    /**
+     * @return true if put is a tombstone, or has expired
+     */
+    private boolean isGone(BufferedPut put) {
+        return put.isDeleted() || isExpired(put.header.getTimestamp());
+    }
+
+    @Override
+    protected MappedValue getValue(String key, boolean counted) {
+        BufferedPut put = buffered(key);
+        if (put != null) {
+            return isGone(put) ? null : put.toMappedValue();
+        }
+        return super.getValue(key, counted);
+    }
 
+    @Override
+    protected Map<String, MappedValue> readAll(Collection<String> keys) {
+        Map<String, MappedValue> values = new LinkedHashMap<String, MappedValue>();
+        List<String> unbuffered = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            BufferedPut put = buffered(key);
+            if (put != null) {
+                if (!isGone(put)) {
+                    values.put(key, put.toMappedValue());
+                }
+            } else {
+                unbuffered.add(key);
+            }
+        }
+        values.putAll(super.readAll(unbuffered));
+        return values;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        BufferedPut put = buffered(key);
+        if (put != null) {
+            return !isGone(put);
+        }
+        return super.contains(key);
+    }
+
+    @Override
+    public long getTimestamp(String key) {
+        BufferedPut put = buffered(key);
+        if (put != null) {
+            return isGone(put) ? -1 : put.header.getTimestamp();
+        }
+        return super.getTimestamp(key);
+    }
+
+    @Override
+    public int size() {
+        int size = index.size();
+        for (String key : bufferedKeys()) {
+            BufferedPut put = buffered(key);
+            if (put == null) {
+                continue;
+            }
+            if (put.isDeleted() && index.containsKey(key)) {
+                --size;
+            } else if (!put.isDeleted() && !index.containsKey(key)) {
+                ++size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Spliterator<String> keySpliterator() {
+        // Buffered keys are taken before the index is traversed, so a flush
+        // meanwhile can't hide them, and are skipped in the index, where
+        // their entries may be older or expired
+        List<String> buffered = new ArrayList<String>();
+        final Set<String> skipped = new HashSet<String>();
+        for (String key : bufferedKeys()) {
+            BufferedPut put = buffered(key);
+            if (put != null) {
+                skipped.add(key);
+                if (!isGone(put)) {
+                    buffered.add(key);
+                }
+            }
+        }
+        Spliterator<String> keys = super.keySpliterator();
+        if (!skipped.isEmpty()) {
+            keys = KeySpliterators.map(keys, new Function<String, String>() {
+                @Override
+                public String apply(String key) {
+                    return skipped.contains(key) ? null : key;
+                }
+            });
+        }
+        final Spliterator<String> indexed = keys;
+        if (buffered.isEmpty()) {
+            return indexed;
+        }
+
+        List<Supplier<Spliterator<String>>> sources = new ArrayList<Supplier<Spliterator<String>>>();
+        sources.add(new Supplier<Spliterator<String>>() {
+            @Override
+            public Spliterator<String> get() {
+                return indexed;
+            }
+        });
+        final Spliterator<String> unflushed = buffered.spliterator();
+        sources.add(new Supplier<Spliterator<String>>() {
+            @Override
+            public Spliterator<String> get() {
+                return unflushed;
+            }
+        });
+        return KeySpliterators.concat(sources);
+    }
+
+    @Override
+    public Iterator<String> keys(String prefix, String startAfter) {
+        // Puts waiting for a flush are few, as the buffer is bounded
+        TreeSet<String> buffered = new TreeSet<String>();
+        final Set<String> deleted = new HashSet<String>();
+        for (String key : bufferedKeys()) {
+            if ((prefix == null || key.startsWith(prefix))
+                    && (startAfter == null || key.compareTo(startAfter) > 0)) {
+                BufferedPut put = buffered(key);
+                if (put != null && isGone(put)) {
+                    deleted.add(key);
+                } else {
+                    buffered.add(key);
+                }
+            }
+        }
+        Iterator<String> keys = super.keys(prefix, startAfter);
+        if (!deleted.isEmpty()) {
+            keys = SortedKeys.skip(keys, new Predicate<String>() {
+                @Override
+                public boolean test(String key) {
+                    return deleted.contains(key);
+                }
+            });
+        }
+        if (buffered.isEmpty()) {
+            return keys;
+        }
+        return SortedKeys.merge(keys, buffered.iterator());
+    }
+
+    private Set<String> bufferedKeys() {
+        return new HashSet<String>(memtable.keySet());
+    }
+
+    /**
+     * Leaves dropping an expired entry to the next flush, which journals it.
+     */
+    @Override
+    protected void expire(String key, Index.Entry entry) {
+        expired.put(key, entry);
+    }
+
+    /**
+     * @return true if callers of put should wait for the commit before the
+     *         put is acknowledged.
+     */
+    boolean isAcknowledgedOnCommit() {
+        return durability == Durability.SYNC || durability == Durability.GROUP_COMMIT;
+    }
+
+    /**
+     * @return true if the values of puts are compressed, which
+     *         {@link #beginPut(String, int)} doesn't do
+     */
+    boolean isCompressed() {
+        return codec != null;
+    }
+
+    /**
+     * @param throttle limits the rate at which compaction copies records, or
+     *        null
+     */
+    void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return true if the bucket has a TTL, its oldest entry can have
+     *         expired, and it hasn't been scanned for expired entries for
+     *         {@link Options#getExpiryInterval()}
+     */
+    boolean isExpiryDue() {
+        long now = System.currentTimeMillis();
+        return ttl > 0 && oldestTimestamp <= now - ttl && now - lastExpiryScan >= expiryInterval;
+    }
+
+    /**
+     * Drops the expired entries from the index, so the space of their
+     * records counts as dead.
+     */
+    void dropExpired() {
+        if (ttl > 0) {
+            findExpired();
             flush();
+        }
+    }
+
+    /**
+     * Finds the expired entries not read since they expired, for the next
+     * flush to drop, and the oldest entry left.
+     */
+    private void findExpired() {
+        lastExpiryScan = System.currentTimeMillis();
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<String, Index.Entry> e : index.entrySet()) {
+            long timestamp = e.getValue().getTimestamp();
+            if (isExpired(timestamp)) {
+                expired.put(e.getKey(), e.getValue());
+            } else {
+                oldest = Math.min(oldest, timestamp);
+            }
+        }
+        oldestTimestamp = oldest;
+    }
+
+    /**
+     * Reclaims the space taken by dead records. See {@link #compact(double)}.
+     */
+    public void compact() {
+        compact(0);
+    }
+
+    /**
+     * Reclaims the space taken by dead records in segments whose garbage
+     * ratio exceeds minGarbageRatio. The active segment is sealed first if it
+     * holds any garbage. The live records of each sealed segment are then
+     * appended to the active segment in small batches, after which the
+     * segment is deleted. Puts and reads carry on throughout, and flushes
+     * are only held up for one batch at a time. Copying is throttled to the
+     * compaction rate of the store, if any.
+     *
+     * @param minGarbageRatio the fraction of a segment that must be dead
+     *        before it is compacted
+     */
+    public void compact(double minGarbageRatio) {
+        long start = System.nanoTime();
+        synchronized (compactLock) {
+            try {
 
-            fis = new FileInputStream(dataFile);
-            source = fis.getChannel();
-
-            File newDataFile = File.createTempFile(dataFile.getName(), null, dataFile.getParentFile());
-            fos = new FileOutputStream(newDataFile);
-            target = fos.getChannel();
-            target.lock();
-
-            Map<String, Index.Entry> indices = new HashMap<String, Index.Entry>(index.size());
-
-            while (source.position() < source.size()) {
-                long position = source.position();
-                Header header = new Header(source);
-                long count = Header.SIZE + header.getKeyLength() + header.getValueLength();
-                String key = header.readKey(source);
-                boolean active = index.get(key).getOffset() == position;
-                if (active) {
-                    indices.put(key, new Index.Entry(header.getTimestamp(), target.position()));
-                    long transferred = 0;
-                    while (transferred < count) {
-                        transferred += source.transferTo(position + transferred, count - transferred, target);
+                if (ttl > 0) {
+                    findExpired();
+                }
+
+                synchronized (flushLock) {
+                    flush();
+                    if (active.getDeadBytes() > 0 && active.getGarbageRatio() > minGarbageRatio) {
+                        roll();
                     }
                 }
-                source.position(position + count);
-            }
 
-            target.force(true);
+                List<Segment> candidates = new ArrayList<Segment>();
+                for (Segment segment : segments.values()) {
+                    if (segment != active && !segment.hasPendingWrites() && segment.getDeadBytes() > 0
+                            && segment.getGarbageRatio() > minGarbageRatio) {
+                        candidates.add(segment);
+                    }
+                }
 
-            lock.writeLock().lock();
+                // Most garbage first
+                Collections.sort(candidates, new Comparator<Segment>() {
+                    @Override
+                    public int compare(Segment a, Segment b) {
+                        return Double.compare(b.getGarbageRatio(), a.getGarbageRatio());
+                    }
+                });
 
-            dataFile.delete();
-            newDataFile.renameTo(dataFile);
+                // Hot records of all segments first, so they end up on the
+                // same pages
+                if (!heat.isEmpty()) {
+                    for (Segment segment : candidates) {
+                        move(segment, true);
+                    }
+                }
+                for (Segment segment : candidates) {
+                    compact(segment);
+                }
 
-            dataChannel.close();
-            dataChannel = target;
-            target = null;
+                writeHints();
 
-            index.clear();
-            index.putAll(indices);
-            index.save();
+            } catch (Exception x) {
+                throw new RuntimeException(x);
+            } finally {
+                metrics.record(Metrics.Op.COMPACT, start);
+            }
+        }
+    }
 
-            mmap();
+    /**
+     * Moves the live records of a sealed segment to the active segment, then
+     * deletes it.
+     */
+    private void compact(Segment segment) throws IOException, InterruptedException {
+        move(segment, false);
+
+        // Nothing in the index points at the segment any more. Readers that
+        // looked it up before it was removed keep their mappings.
+        segments.remove(segment.getId());
+        index.release(segment.getId());
+        synchronized (hintLock) {
+            HintFile.of(segment).delete();
+        }
+        if (!segment.getFile().delete()) {
+            throw new IOException("Failed to delete " + segment.getFile());
+        }
+    }
+
+    /**
+     * Moves the live records of a sealed segment to the active segment.
+     * Expired records are dropped from the index instead. Tombstones are
+     * moved as well, unless the key has been put again since or the segment
+     * is the oldest, so an older record of the key can't come back when the
+     * index is rebuilt from the segments.
+     *
+     * @param hotOnly move only the records of keys that are read often
+     */
+    private void move(Segment segment, boolean hotOnly) throws IOException, InterruptedException {
+        FileInputStream fis = new FileInputStream(segment.getFile());
+        FileChannel source = fis.getChannel();
+        try {
+
+            long position = 0;
+            long end = segment.getSize();
+            while (position < end) {
+                long copied = 0;
+                synchronized (flushLock) {
+                    Map<String, Index.Entry> moved = new HashMap<String, Index.Entry>();
+                    long batchEnd = position + COMPACTION_BATCH_SIZE;
+                    while (position < end && position < batchEnd) {
+                        source.position(position);
+                        Header header = new Header(source);
+                        String key = header.readKey(source);
+                        int size = header.getRecordSize();
+                        Index.Entry current = index.get(key);
+                        if (header.isDeleted()) {
+                            if (!hotOnly && current == null && segment.getId() != segments.firstKey()) {
+                                transfer(source, position, size);
+                                active.addDeadBytes(size);
+                                copied += size;
+                            }
+                        } else if (current != null && current.getSegment() == segment.getId()
+                                && current.getOffset() == position) {
+                            if (isExpired(header.getTimestamp())) {
+                                moved.put(key, null);
+                            } else if (!hotOnly || heat.isHot(key)) {
+                                long target = transfer(source, position, size);
+                                copied += size;
+                                moved.put(key, new Index.Entry(header.getTimestamp(), active.getId(), target,
+                                        size));
+                            }
+                        }
+                        position += size;
+                    }
+                    if (copied > 0) {
+                        force(dataChannel, true);
+                    }
+                    if (!moved.isEmpty()) {
+                        commit(moved, true);
+                    }
+                }
+
+                // Paid for outside the flush lock, so flushes don't wait
+                if (throttle != null) {
+                    throttle.acquire(copied);
+                }
+            }
 
-        } catch (Exception x) {
-            throw new RuntimeException(x);
         } finally {
-            Util.close(target, source);
+            Util.close(source);
             Util.close(fis);
-            Util.close(fos);
-            lock.writeLock().unlock();
         }
+    }
+
+    /**
+     * Copies a record to the active segment.
+     *
+     * @return the offset of the copy
+     */
+    private long transfer(FileChannel source, long position, int size) throws IOException {
+        long target = reserve(size);
+        long transferred = 0;
+        while (transferred < size) {
+            transferred += source.transferTo(position + transferred, size - transferred, dataChannel);
+        }
+        return target;
+    }
 
+    /**
+     * Writes buffered puts and forces them to disk.
+     */
+    public void flush() {
+        flush(true);
     }
 
-    public synchronized void flush() {
+    void flush(boolean force) {
+        long start = System.nanoTime();
+        synchronized (flushLock) {
+
+            // Puts queued from here on complete with the next commit
+            Commit commit = pending.getAndSet(new Commit());
+
+            // The newest queued put of each key, in the order they were made
+            Map<String, BufferedPut> batch = new LinkedHashMap<String, BufferedPut>();
+            List<BufferedPut> drained = unwritten;
+            unwritten = new ArrayList<BufferedPut>();
+            BufferedPut put;
+            while ((put = queue.poll()) != null) {
+                drained.add(put);
+            }
+            for (BufferedPut p : drained) {
+                batch.remove(p.key);
+                batch.put(p.key, p);
+            }
+
+            try {
+                write(batch, force);
+                commit.complete(null);
+            } catch (Exception x) {
+                // Keep the puts readable, and write them with the next flush
+                unwritten = drained;
+                commit.complete(x);
+                throw new RuntimeException(x);
+            } finally {
+                metrics.record(Metrics.Op.FLUSH, start);
+            }
+
+            for (BufferedPut p : drained) {
+                bufferSize.addAndGet(-p.size());
+                memtable.remove(p.key, p);
+            }
+        }
+
+        writeHints();
+    }
+
+    /**
+     * Writes the hint files of segments sealed since the last call.
+     */
+    private void writeHints() {
+        if (unhinted.isEmpty()) {
+            return;
+        }
+        synchronized (hintLock) {
+            try {
+                Segment segment;
+                while ((segment = unhinted.poll()) != null) {
+                    // Skip segments compacted away in the meantime. Segments
+                    // still being streamed into are queued again when done.
+                    if (segments.get(segment.getId()) == segment && !segment.hasPendingWrites()) {
+                        HintFile.write(segment);
+                    }
+                }
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+    }
+
+    private void write(Map<String, BufferedPut> batch, boolean force) throws Exception {
+        Segment first = active;
+        long start = active.getSize();
+        Map<String, Index.Entry> indices;
         try {
+            indices = writeBatch(batch, force);
+        } catch (Exception x) {
+            rewind(first, start, x);
+            throw x;
+        }
+
+        // Once indexed, the records are recovered by a restart even if the
+        // journal fails
+        if (!indices.isEmpty()) {
+            commit(indices, force);
+        }
+    }
+
+    /**
+     * Drops the records of a failed flush, so the next one writes from where
+     * it started and a restart doesn't scan them. Records in segments sealed
+     * meanwhile count as dead.
+     */
+    private void rewind(Segment first, long start, Exception failure) {
+        staging.clear();
+        if (first != active) {
+            first.addDeadBytes(first.getSize() - start);
+            for (Segment segment : segments.subMap(first.getId() + 1, active.getId()).values()) {
+                segment.addDeadBytes(segment.getSize());
+            }
+            start = 0;
+        }
+        active.setSize(start);
+        try {
+            dataChannel.truncate(start);
+            dataChannel.position(start);
+        } catch (IOException x) {
+            failure.addSuppressed(x);
+        }
+    }
+
+    /**
+     * @return the index entries of the records written
+     */
+    private Map<String, Index.Entry> writeBatch(Map<String, BufferedPut> batch, boolean force) throws Exception {
+
+        Map<String, Index.Entry> indices = new HashMap<String, Index.Entry>(batch.size());
+
+        for (Map.Entry<String, BufferedPut> e : batch.entrySet()) {
+
+            String key = e.getKey();
+            BufferedPut put = e.getValue();
+            if (put.cancelled || (put.isDeleted() && !index.containsKey(key))) {
+                // Replaced by a streamed put, or nothing to delete
+                continue;
+            }
+            Header header = put.header;
+            byte[] value = put.stored;
+            int size = put.size();
+
+            long position = reserve(size);
+            boolean large = value.length > staging.capacity() / 2;
+            if (staging.remaining() < (large ? size - value.length : size)) {
+                writeStaged();
+            }
+            header.write(staging);
+            staging.put(put.keyBytes);
+            if (large) {
+                // Not worth copying, written along with what is staged
+                staging.flip();
+                writeFully(new ByteBuffer[] { staging, ByteBuffer.wrap(value) });
+                staging.clear();
+            } else {
+                staging.put(value);
+            }
+
+            if (put.isDeleted()) {
+                active.addDeadBytes(size);
+                indices.put(key, null);
+            } else {
+                indices.put(key, new Index.Entry(header.getTimestamp(), active.getId(), position, size));
+            }
+        }
+
+        writeStaged();
+
+        for (Iterator<Map.Entry<String, Index.Entry>> it = expired.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Index.Entry> e = it.next();
+            it.remove();
+            if (!indices.containsKey(e.getKey()) && e.getValue().equals(index.get(e.getKey()))) {
+                indices.put(e.getKey(), null);
+            }
+        }
+
+        if (force) {
+            force(dataChannel, true);
+        }
+
+        return indices;
+    }
+
+    /**
+     * Writes the staged records to the active segment.
+     */
+    private void writeStaged() throws IOException {
+        if (staging.position() > 0) {
+            staging.flip();
+            writeFully(new ByteBuffer[] { staging });
+            staging.clear();
+        }
+    }
+
+    /**
+     * Writes buffers to the active segment in as few gathering writes as
+     * the channel allows.
+     */
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            dataChannel.write(buffers);
+        }
+    }
+
+    /**
+     * Makes room for a record in the active segment, rolling over to a new
+     * segment if it would grow past the segment size.
+     *
+     * @return the offset of the record in the active segment
+     */
+    private long reserve(int size) throws IOException {
+        if (active.getSize() > 0 && active.getSize() + size > segmentSize) {
+            roll();
+        }
+        long position = active.getSize();
+        active.setSize(position + size);
+        return position;
+    }
+
+    /**
+     * Maps written records and then points the index at them, so a reader
+     * never finds an entry beyond the mapped data.
+     *
+     * @param forced true if the records have been forced to disk, in which
+     *        case so is the journal
+     */
+    private void commit(Map<String, Index.Entry> indices, boolean forced) {
+        remap(active);
+        for (Index.Entry entry : indices.values()) {
+            if (entry != null && entry.getTimestamp() < oldestTimestamp) {
+                oldestTimestamp = entry.getTimestamp();
+            }
+        }
+        for (Index.Entry replaced : index.append(indices, forced)) {
+            Segment segment = segments.get(replaced.getSegment());
+            if (segment != null) {
+                segment.addDeadBytes(replaced.getSize());
+            }
+        }
+    }
+
+    private void force(FileChannel channel, boolean metaData) throws IOException {
+        long start = System.nanoTime();
+        channel.force(metaData);
+        metrics.record(Metrics.Op.FSYNC, start);
+    }
+
+    @Override
+    public long getBufferSize() {
+        return bufferSize.get();
+    }
 
-            Map<String, Index.Entry> indices = new HashMap<String, Index.Entry>(buffer.size());
+    /**
+     * {@inheritDoc}
+     *
+     * Releases the lock of the bucket. Buffered puts must have been flushed.
+     */
+    @Override
+    void close() {
+        super.close();
+        synchronized (flushLock) {
+            Util.close(dataChannel);
+        }
+        Util.close(lockChannel);
+    }
+
+    /**
+     * Seals the active segment and starts a new one. The hint file of the
+     * sealed segment is written once the flush lock is released.
+     */
+    private void roll() throws IOException {
+        writeStaged();
+        force(dataChannel, true);
+        Util.close(dataChannel);
+        remap(active);
+        unhinted.add(active);
+        createSegment(active.getId() + 1);
+    }
 
-            for (Map.Entry<String, byte[]> e : buffer.entrySet()) {
+    private void createSegment(int id) throws IOException {
+        File file = new File(dir, Segment.fileName(id));
+        file.createNewFile();
+        Segment segment = new Segment(id, file);
+        segments.put(id, segment);
+        openSegment(segment);
+    }
+
+    private void openSegment(Segment segment) throws IOException {
+        dataChannel = new RandomAccessFile(segment.getFile(), "rw").getChannel();
+
+        // Drop a record torn by a crash
+        if (dataChannel.size() > segment.getSize()) {
+            dataChannel.truncate(segment.getSize());
+        }
+        dataChannel.position(segment.getSize());
+        active = segment;
+    }
 
-                String key = e.getKey();
-                byte[] value = e.getValue();
+    /**
+     * A put whose value is written into its reserved record as it arrives.
+     * A put must be either committed or aborted. Aborting a committed put
+     * does nothing.
+     */
+    final class StreamingPut {
 
-                if (key.length() > Byte.MAX_VALUE) {
-                    throw new IllegalArgumentException("Max length of key is " + Byte.MAX_VALUE + ". Was "
-                            + key.length());
+        private final String key;
+        private final Header header;
+        private final Segment segment;
+        private final long position;
+        private final int size;
+        private final FileChannel channel;
+
+        private final long valuePosition;
+        private long written = 0;
+        private boolean done = false;
+
+        /**
+         * When the last bytes of the value arrived, and if the put has been
+         * aborted for taking too long since.
+         */
+        private volatile long lastWrite = System.currentTimeMillis();
+        private volatile boolean timedOut = false;
+
+        private StreamingPut(String key, Header header, Segment segment, long position, int size,
+                FileChannel channel) {
+            this.key = key;
+            this.header = header;
+            this.segment = segment;
+            this.position = position;
+            this.size = size;
+            this.channel = channel;
+            this.valuePosition = position + size - header.getValueLength();
+        }
+
+        /**
+         * @return the number of value bytes still to be written
+         */
+        long remaining() {
+            return header.getValueLength() - written;
+        }
+
+        /**
+         * Writes the next bytes of the value.
+         */
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            if (timedOut) {
+                throw new IOException("Put of " + key + " timed out");
+            }
+            lastWrite = System.currentTimeMillis();
+            if (length > remaining()) {
+                throw new IllegalArgumentException("Value longer than " + header.getValueLength() + " bytes");
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes, offset, length);
+            while (buf.hasRemaining()) {
+                written += channel.write(buf, valuePosition + written);
+            }
+        }
+
+        /**
+         * Points the index at the record. The value is forced to disk first,
+         * unless the durability mode is {@link Durability#OS}. Only the
+         * commit counts towards the put latency, not the time the value
+         * took to arrive.
+         */
+        void commit() throws IOException {
+            long start = System.nanoTime();
+            if (timedOut) {
+                throw new IOException("Put of " + key + " timed out");
+            }
+            if (done) {
+                throw new IllegalStateException("Put of " + key + " is done");
+            }
+            if (remaining() > 0) {
+                throw new EOFException("Expected " + header.getValueLength() + " bytes, got " + written);
+            }
+            if (durability != Durability.OS) {
+                force(channel, false);
+            }
+
+            synchronized (flushLock) {
+                if (timedOut) {
+                    throw new IOException("Put of " + key + " timed out");
+                }
+                channel.write(header.toByteBuffer(), position);
+                if (durability != Durability.OS) {
+                    force(channel, false);
                 }
 
-                if (value.length > Integer.MAX_VALUE) {
-                    throw new IllegalArgumentException("Max length of value is " + Integer.MAX_VALUE + " bytes. Was "
-                            + value.length);
+                // An older buffered put of key must not be written over the
+                // streamed value. It is the newest queued put of key, so
+                // the flush skips the key.
+                BufferedPut replaced = memtable.remove(key);
+                if (replaced != null) {
+                    replaced.cancelled = true;
                 }
 
-                byte[] keyBytes = key.getBytes("utf8");
-                Header header = new Header(keyBytes, value);
+                remap(segment);
+                Map<String, Index.Entry> indices = new HashMap<String, Index.Entry>();
+                indices.put(key, new Index.Entry(header.getTimestamp(), segment.getId(), position, size));
+                WritableBucket.this.commit(indices, durability != Durability.OS);
+                finish(true);
+            }
+            writeHints();
+            metrics.record(Metrics.Op.PUT, start);
+        }
 
-                indices.put(key, new Index.Entry(System.currentTimeMillis(), dataChannel.position()));
+        /**
+         * Commits the put on the commit thread of the store, for callers
+         * that must not block on the forces of {@link #commit()}.
+         *
+         * @return a commit that completes when the put has been committed,
+         *         or failed to be
+         */
+        Commit commitAsync() {
+            final Commit commit = new Commit();
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        commit();
+                        commit.complete(null);
+                    } catch (Exception x) {
+                        commit.complete(x);
+                    }
+                }
+            };
+            if (scheduler == null) {
+                task.run();
+                return commit;
+            }
+            try {
+                scheduler.execute(task);
+            } catch (RejectedExecutionException x) {
+                // The store is closed
+                commit.complete(x);
+            }
+            return commit;
+        }
 
-                dataChannel.write(header.toByteBuffer());
-                dataChannel.write(ByteBuffer.wrap(keyBytes));
-                dataChannel.write(ByteBuffer.wrap(value));
+        /**
+         * Gives up the put, unless it has been committed.
+         */
+        void abort() {
+            synchronized (flushLock) {
+                if (done) {
+                    return;
+                }
+                finish(false);
             }
+            writeHints();
+        }
 
-            dataChannel.force(true);
+        /**
+         * Aborts the put once it has gone timeout milliseconds without
+         * receiving any of its value.
+         */
+        private void checkTimeout(final long timeout) {
+            long delay = lastWrite + timeout - System.currentTimeMillis();
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (flushLock) {
+                        if (done) {
+                            return;
+                        }
+                        if (System.currentTimeMillis() - lastWrite < timeout) {
+                            checkTimeout(timeout);
+                            return;
+                        }
+                        timedOut = true;
+                        finish(false);
+                    }
+                    writeHints();
+                }
+            }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
 
-            index.putAll(indices);
-            index.save();
+        private void finish(boolean committed) {
+            done = true;
+            Util.close(channel);
+            if (!committed) {
+                segment.addDeadBytes(size);
+            }
+            segment.endWrite();
+            if (segment != active) {
+                unhinted.add(segment);
+            }
+        }
 
-            mmap();
+    }
 
-            buffer.clear();
-            bufferSize = 0;
+    /**
+     * Thrown when a value is too large to be stored.
+     */
+    @SuppressWarnings("serial")
+    static class TooLargeException extends IllegalArgumentException {
 
-        } catch (Exception x) {
-            throw new RuntimeException(x);
+        TooLargeException(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * A put waiting in the memtable. The header is created with the put, so
+     * its timestamp is the one that ends up on disk. The value is compressed
+     * by the thread making the put, rather than by the flush.
+     */
+    private static class BufferedPut {
+
+        final String key;
+        final byte[] keyBytes;
+        final byte[] value;
+        final Header header;
+
+        /**
+         * The value as written, compressed or not.
+         */
+        final byte[] stored;
+
+        /**
+         * Set when a streamed put of the key replaces this one before it is
+         * written.
+         */
+        volatile boolean cancelled;
+
+        /**
+         * @param value the value, or null for a tombstone
+         */
+        BufferedPut(String key, byte[] value, Codec codec) {
+            this.key = key;
+            this.keyBytes = keyBytes(key);
+            this.value = value;
+
+            byte[] compressed = codec == null || value == null ? null : Codecs.encode(codec, value);
+            if (compressed == null) {
+                this.stored = value == null ? new byte[0] : value;
+                this.header = new Header(keyBytes, value);
+            } else {
+                this.stored = compressed;
+                this.header = new Header(keyBytes, compressed, codec.getId());
+            }
+        }
+
+        /**
+         * @return the encoded key, if it is not too long
+         */
+        static byte[] keyBytes(String key) {
+            byte[] keyBytes;
+            try {
+                keyBytes = key.getBytes("utf8");
+            } catch (UnsupportedEncodingException x) {
+                throw new RuntimeException(x);
+            }
+
+            if (keyBytes.length > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("Max length of key is " + Byte.MAX_VALUE + " bytes. Was "
+                        + keyBytes.length);
+            }
+            return keyBytes;
+        }
+
+        boolean isDeleted() {
+            return value == null;
+        }
+
+        /**
+         * @return the size of the record on disk
+         */
+        int size() {
+            return header.getSize() + keyBytes.length + stored.length;
+        }
+
+        MappedValue toMappedValue() {
+            long timestamp = header.getTimestamp();
+            return new MappedValue(new ByteBuffer[] { ByteBuffer.wrap(value).asReadOnlyBuffer() }, timestamp,
+                    MappedValue.etag(this, timestamp));
         }
 
     }
@@ -0,0 +1,233 @@
+package kevlar;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A writable bucket split into partitions by key hash, see
+ * {@link Partitions}. Each partition is a writable bucket of its own, with
+ * its own segments, index, locks and flushes, so puts to one hot bucket are
+ * written and forced in parallel.
+ *
+ * @author david
+ */
+class WritablePartitionedBucket extends WritableBucket {
+
+    private final Partitions partitions;
+
+    /**
+     * Opens a partitioned bucket, creating it with
+     * {@link Options#getPartitions(String)} partitions if it doesn't exist.
+     *
+     * @param dir the bucket directory
+     * @param options the options of the store
+     * @param scheduler runs group commits
+     * @param cache caches decompressed values, or null
+     * @param metrics records the latencies of the operations on the bucket
+     */
+    WritablePartitionedBucket(File dir, Options options, ScheduledExecutorService scheduler, ValueCache cache,
+            Metrics metrics) {
+        this.cache = cache;
+        this.metrics = metrics;
+        String name = dir.getName();
+        if (!Partitions.exist(dir)) {
+            Partitions.writeCount(dir, options.getPartitions(name));
+        }
+        ReadOnlyBucket[] buckets = new ReadOnlyBucket[Partitions.readCount(dir)];
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = new WritableBucket(Partitions.dir(dir, i), name, options, scheduler, cache,
+                    new Metrics(metrics));
+        }
+        partitions = new Partitions(buckets);
+        setTtl(options.getTtl(name));
+    }
+
+    private WritableBucket partition(String key) {
+        return (WritableBucket) partitions.get(key);
+    }
+
+    @Override
+    public Future<Void> put(String key, byte[] value) {
+        return partition(key).put(key, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The puts of each partition are buffered together.
+     */
+    @Override
+    public Future<Void> putAll(Map<String, byte[]> values) {
+        Map<ReadOnlyBucket, Map<String, byte[]>> split = partitions.split(values);
+        List<Commit> commits = new ArrayList<Commit>(split.size());
+        for (Map.Entry<ReadOnlyBucket, Map<String, byte[]>> e : split.entrySet()) {
+            commits.add((Commit) ((WritableBucket) e.getKey()).putAll(e.getValue()));
+        }
+        return commits.size() == 1 ? commits.get(0) : Commit.all(commits);
+    }
+
+    @Override
+    public Future<Void> delete(String key) {
+        return partition(key).delete(key);
+    }
+
+    @Override
+    public void put(String key, InputStream in, int length) {
+        partition(key).put(key, in, length);
+    }
+
+    @Override
+    StreamingPut beginPut(String key, int length) {
+        return partition(key).beginPut(key, length);
+    }
+
+    @Override
+    protected MappedValue getValue(String key, boolean counted) {
+        return partitions.get(key).getValue(key, counted);
+    }
+
+    @Override
+    protected Map<String, MappedValue> readAll(Collection<String> keys) {
+        return partitions.readAll(keys);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return partitions.get(key).contains(key);
+    }
+
+    @Override
+    public long getTimestamp(String key) {
+        return partitions.get(key).getTimestamp(key);
+    }
+
+    @Override
+    public int size() {
+        return partitions.size();
+    }
+
+    @Override
+    public Spliterator<String> keySpliterator() {
+        return partitions.keySpliterator();
+    }
+
+    @Override
+    public Iterator<String> keys(String prefix, String startAfter) {
+        return partitions.keys(prefix, startAfter);
+    }
+
+    @Override
+    void setTtl(long ttl) {
+        super.setTtl(ttl);
+        partitions.setTtl(ttl);
+    }
+
+    @Override
+    boolean isAcknowledgedOnCommit() {
+        return ((WritableBucket) partitions.all()[0]).isAcknowledgedOnCommit();
+    }
+
+    @Override
+    boolean isCompressed() {
+        return ((WritableBucket) partitions.all()[0]).isCompressed();
+    }
+
+    @Override
+    void setThrottle(Throttle throttle) {
+        for (ReadOnlyBucket partition : partitions.all()) {
+            ((WritableBucket) partition).setThrottle(throttle);
+        }
+    }
+
+    @Override
+    boolean isExpiryDue() {
+        for (ReadOnlyBucket partition : partitions.all()) {
+            if (((WritableBucket) partition).isExpiryDue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only the partitions due for expiry are scanned.
+     */
+    @Override
+    void dropExpired() {
+        for (ReadOnlyBucket partition : partitions.all()) {
+            if (((WritableBucket) partition).isExpiryDue()) {
+                ((WritableBucket) partition).dropExpired();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The partitions are compacted one after another.
+     */
+    @Override
+    public void compact(double minGarbageRatio) {
+        for (ReadOnlyBucket partition : partitions.all()) {
+            ((WritableBucket) partition).compact(minGarbageRatio);
+        }
+    }
+
+    @Override
+    void flush(boolean force) {
+        for (ReadOnlyBucket partition : partitions.all()) {
+            ((WritableBucket) partition).flush(force);
+        }
+    }
+
+    @Override
+    void saveHeat() {
+        partitions.saveHeat();
+    }
+
+    @Override
+    void close() {
+        partitions.close();
+    }
+
+    @Override
+    long warm(long maxBytes, long bytesPerSecond) throws InterruptedException {
+        return partitions.warm(maxBytes, bytesPerSecond);
+    }
+
+    @Override
+    public long getBufferSize() {
+        return partitions.getBufferSize();
+    }
+
+    @Override
+    public long getLiveBytes() {
+        return partitions.getLiveBytes();
+    }
+
+    @Override
+    public long getDeadBytes() {
+        return partitions.getDeadBytes();
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return partitions.getSegmentCount();
+    }
+
+    @Override
+    Collection<Segment> segments() {
+        return partitions.segments();
+    }
+
+}
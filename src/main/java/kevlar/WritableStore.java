@@ -1,9 +1,19 @@
 package kevlar;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A store that supports adding key-value mappings.
@@ -13,12 +23,83 @@ import java.util.concurrent.ConcurrentMap;
 public class WritableStore extends ReadOnlyStore {
 
     /**
-     * Creates a new writable store.
+     * Milliseconds between saves of how often keys are read.
+     */
+    private static final long HEAT_SAVE_INTERVAL = 60 * 1000;
+
+    /**
+     * Milliseconds {@link #close()} waits for compactions to finish.
+     */
+    private static final long CLOSE_TIMEOUT = 60 * 1000;
+
+    private static final Logger log = LoggerFactory.getLogger(WritableStore.class);
+
+    /**
+     * Runs group commits, periodic flushes and the timeouts of streamed
+     * puts, so that they never wait behind slower background work.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Saves heat and schedules compactions.
+     */
+    private final ScheduledExecutorService maintenance;
+
+    /**
+     * Compacts buckets in the background, and the names of the buckets it
+     * is compacting.
+     */
+    private ExecutorService compactor;
+    private final Set<String> compacting = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Limits the rate at which all compactions copy records together.
+     */
+    private final Throttle throttle;
+
+    /**
+     * Creates a new writable store where the operating system decides when
+     * written data reaches the disk.
      *
      * @param dir path to the directory where files should be stored.
      */
     public WritableStore(File dir) {
+        this(dir, new Options());
+    }
+
+    /**
+     * Creates a new writable store.
+     *
+     * @param dir path to the directory where files should be stored.
+     * @param durability when written data is forced to disk.
+     */
+    public WritableStore(File dir, Durability durability) {
+        this(dir, new Options().setDurability(durability));
+    }
+
+    /**
+     * Creates a new writable store.
+     *
+     * @param dir path to the directory where files should be stored.
+     * @param durability when written data is forced to disk.
+     * @param commitInterval milliseconds between forces in
+     *            {@link Durability#PERIODIC} mode, or to wait for more puts
+     *            to share a force in {@link Durability#GROUP_COMMIT} mode.
+     */
+    public WritableStore(File dir, Durability durability, long commitInterval) {
+        this(dir, new Options().setDurability(durability).setCommitInterval(commitInterval));
+    }
+
+    /**
+     * Creates a new writable store.
+     *
+     * @param dir path to the directory where files should be stored.
+     * @param options the options
+     */
+    public WritableStore(File dir, Options options) {
         this.dir = dir;
+        this.options = options;
+        this.cache = options.getCacheSize() > 0 ? new ValueCache(options.getCacheSize()) : null;
 
         if (!dir.exists()) {
             dir.mkdirs();
@@ -28,19 +109,180 @@ public class WritableStore extends ReadOnlyStore {
             throw new IllegalArgumentException("Not a directory: " + dir);
         }
 
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "kevlar-commit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "kevlar-maintenance");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        throttle = new Throttle(options.getCompactionRate());
+
         buckets = new ConcurrentHashMap<String, ReadOnlyBucket>();
-        readBuckets(false);
+        readBuckets();
+        register(null, this, metrics);
+
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                saveHeat();
+            }
+        }, HEAT_SAVE_INTERVAL, HEAT_SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        if (options.getCompactionInterval() > 0) {
+            compactor = Executors.newFixedThreadPool(Math.max(1, options.getCompactionThreads()),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "kevlar-compact");
+                            thread.setDaemon(true);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+            long interval = options.getCompactionInterval();
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    compactGarbage();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        if (options.getDurability() == Durability.PERIODIC) {
+            long interval = options.getCommitInterval();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
      * {@inheritDoc}
+     *
+     * In {@link Durability#SYNC} and {@link Durability#GROUP_COMMIT} mode,
+     * this method returns when the mapping has been forced to disk.
      */
     public void put(String bucket, String key, byte[] value) {
-        if (!buckets.containsKey(bucket)) {
-            File dataFile = new File(dir, bucket + ".dat");
-            ((ConcurrentMap<String, ReadOnlyBucket>) buckets).putIfAbsent(bucket, new WritableBucket(dataFile));
+        WritableBucket writableBucket = bucket(bucket);
+        Future<Void> commit = writableBucket.put(key, value);
+        if (writableBucket.isAcknowledgedOnCommit()) {
+            ((Commit) commit).await();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The value bypasses the buffer. This method returns when the mapping
+     * has been created, and forced to disk unless the durability mode is
+     * {@link Durability#OS}.
+     */
+    public void put(String bucket, String key, InputStream in, int length) {
+        bucket(bucket).put(key, in, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The mappings are buffered together, so they share one flush. In
+     * {@link Durability#SYNC} and {@link Durability#GROUP_COMMIT} mode, this
+     * method returns when the mappings have been forced to disk.
+     */
+    public void putAll(String bucket, Map<String, byte[]> values) {
+        WritableBucket writableBucket = bucket(bucket);
+        Future<Void> commit = writableBucket.putAll(values);
+        if (writableBucket.isAcknowledgedOnCommit()) {
+            ((Commit) commit).await();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * In {@link Durability#SYNC} and {@link Durability#GROUP_COMMIT} mode,
+     * this method returns when the tombstone has been forced to disk.
+     */
+    public boolean delete(String bucket, String key) {
+        Commit commit = deleteAcknowledged(bucket, key);
+        if (commit == null) {
+            return false;
         }
-        ((WritableBucket) buckets.get(bucket)).put(key, value);
+        commit.await();
+        return true;
+    }
+
+    /**
+     * Removes a mapping without blocking.
+     *
+     * @return a commit that completes when {@link #delete(String, String)}
+     *         would have returned, or null if the mapping doesn't exist
+     */
+    Commit deleteAcknowledged(String bucket, String key) {
+        ReadOnlyBucket b = buckets.get(bucket);
+        if (b == null || !b.contains(key)) {
+            return null;
+        }
+        WritableBucket writableBucket = (WritableBucket) b;
+        Future<Void> commit = writableBucket.delete(key);
+        return writableBucket.isAcknowledgedOnCommit() ? (Commit) commit : Commit.completed();
+    }
+
+    /**
+     * Creates several mappings without blocking.
+     *
+     * @return a commit that completes when {@link #putAll(String, Map)}
+     *         would have returned
+     */
+    Commit putAllAcknowledged(String bucket, Map<String, byte[]> values) {
+        WritableBucket writableBucket = bucket(bucket);
+        Future<Void> commit = writableBucket.putAll(values);
+        return writableBucket.isAcknowledgedOnCommit() ? (Commit) commit : Commit.completed();
+    }
+
+    /**
+     * @return true if the values put to bucket are compressed, so they must
+     *         be buffered rather than streamed with
+     *         {@link #beginPut(String, String, int)}
+     */
+    boolean isCompressed(String bucket) {
+        return bucket(bucket).isCompressed();
+    }
+
+    /**
+     * Starts a mapping whose value is written as it arrives, see
+     * {@link WritableBucket#beginPut(String, int)}.
+     */
+    WritableBucket.StreamingPut beginPut(String bucket, String key, int length) {
+        return bucket(bucket).beginPut(key, length);
+    }
+
+    /**
+     * Creates a new mapping without waiting for it to be written. If the
+     * bucket doesn't exist, it will be created.
+     *
+     * @param bucket the bucket
+     * @param key the key
+     * @param value the value
+     * @return a future that is done when the mapping has been written, and
+     *         forced to disk unless the durability is {@link Durability#OS}.
+     */
+    public Future<Void> putAsync(String bucket, String key, byte[] value) {
+        return bucket(bucket).put(key, value);
     }
 
     /**
@@ -53,12 +295,171 @@ public class WritableStore extends ReadOnlyStore {
     }
 
     /**
-     * Reclaims free space from the data files
+     * Reclaims free space from the segment files of every bucket, one bucket
+     * after another. Buckets are also compacted in the background once they
+     * hold enough garbage, see {@link Options#getCompactionInterval()}.
      */
     public void compact() {
         for (Map.Entry<String, ReadOnlyBucket> e : buckets.entrySet()) {
-            ((WritableBucket) e.getValue()).compact();
+            WritableBucket bucket = (WritableBucket) e.getValue();
+            bucket.compact();
+
+            // Compacted records were copied to new, cold pages
+            bucket.saveHeat();
+            warm(e.getKey(), bucket);
+        }
+    }
+
+    /**
+     * Compacts the buckets whose garbage ratio exceeds
+     * {@link Options#getCompactionGarbageRatio()} in the background, at most
+     * {@link Options#getCompactionThreads()} at a time. Buckets due for
+     * expiry first drop their expired entries, see
+     * {@link WritableBucket#isExpiryDue()}. A bucket still being compacted
+     * since the last call is skipped.
+     */
+    void compactGarbage() {
+        final double ratio = options.getCompactionGarbageRatio();
+        for (Map.Entry<String, ReadOnlyBucket> e : buckets.entrySet()) {
+            final String name = e.getKey();
+            final WritableBucket bucket = (WritableBucket) e.getValue();
+            final boolean expire = bucket.isExpiryDue();
+            if ((!expire && bucket.getGarbageRatio() <= ratio) || !compacting.add(name)) {
+                continue;
+            }
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (expire) {
+                            bucket.dropExpired();
+                        }
+                        if (bucket.getGarbageRatio() > ratio) {
+                            long start = System.nanoTime();
+                            long dead = bucket.getDeadBytes();
+                            bucket.compact(ratio);
+                            log.info("Compacted {} dead bytes of bucket {} in {} ms", new Object[] {
+                                    dead - bucket.getDeadBytes(), name, (System.nanoTime() - start) / 1000000 });
+
+                            bucket.saveHeat();
+                            warm(name, bucket);
+                        }
+                    } catch (RuntimeException x) {
+                        log.warn("Failed to compact bucket " + name, x);
+                    } finally {
+                        compacting.remove(name);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Saves how often the keys of each bucket have been read, so the most
+     * read records can be warmed up when the store is opened again.
+     */
+    public void saveHeat() {
+        for (Map.Entry<String, ReadOnlyBucket> e : buckets.entrySet()) {
+            try {
+                e.getValue().saveHeat();
+            } catch (RuntimeException x) {
+                log.warn("Failed to save heat of bucket " + e.getKey(), x);
+            }
+        }
+    }
+
+    /**
+     * Stops compacting, flushes every bucket, saves heat, and releases the
+     * threads, bucket locks and MBeans of the store. A compaction in progress is
+     * waited for. The store can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        maintenance.shutdownNow();
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                if (!compactor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    log.warn("Closing {} before compactions finished", dir);
+                }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Completes the commits of buffered puts, so the commit thread has
+        // nothing left to do
+        flush();
+        scheduler.shutdownNow();
+        saveHeat();
+
+        super.close();
+    }
+
+    /**
+     * @return the durability mode of the store
+     */
+    public Durability getDurability() {
+        return options.getDurability();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A bucket written before segments were introduced is moved into a
+     * directory of its own as the first segment. The index still applies, as
+     * its entries point into segment 0.
+     *
+     * A new bucket is split into {@link Options#getPartitions(String)}
+     * partitions. An existing bucket keeps the partitions it was created
+     * with.
+     */
+    @Override
+    protected WritableBucket openBucket(File file) {
+        if (file.isFile()) {
+            String name = file.getName();
+            File bucketDir = new File(dir, name.substring(0, name.length() - 4));
+            if (!bucketDir.mkdir() || !file.renameTo(new File(bucketDir, Segment.fileName(0)))) {
+                throw new RuntimeException("Failed to move " + file + " to " + bucketDir);
+            }
+            file = bucketDir;
+        }
+        WritableBucket bucket;
+        if (Partitions.exist(file) || (!file.exists() && options.getPartitions(file.getName()) > 1)) {
+            bucket = new WritablePartitionedBucket(file, options, scheduler, cache, new Metrics(metrics));
+        } else {
+            bucket = new WritableBucket(file, options, scheduler, cache, new Metrics(metrics));
+        }
+        bucket.setThrottle(throttle);
+        return bucket;
+    }
+
+    /**
+     * @return bucket, if it names a directory of its own in the store
+     * @throws IllegalArgumentException otherwise
+     */
+    static String checkBucketName(String bucket) {
+        if (bucket.isEmpty() || bucket.equals(".") || bucket.equals("..") || bucket.indexOf('/') >= 0
+                || bucket.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Invalid bucket name: " + bucket);
+        }
+        return bucket;
+    }
+
+    private WritableBucket bucket(String bucket) {
+        ReadOnlyBucket b = buckets.get(bucket);
+        if (b == null) {
+            checkBucketName(bucket);
+            synchronized (buckets) {
+                b = buckets.get(bucket);
+                if (b == null) {
+                    b = openBucket(new File(dir, bucket));
+                    buckets.put(bucket, b);
+                    register(bucket, b, b.getMetrics());
+                }
+            }
         }
+        return (WritableBucket) b;
     }
 
 }
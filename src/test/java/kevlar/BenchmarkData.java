@@ -0,0 +1,82 @@
+package kevlar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Reproducible keys and values for the benchmarks. The same seed always
+ * gives the same data.
+ *
+ * @author david
+ */
+class BenchmarkData {
+
+    static final long SEED = 0x4B45564C4152L;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return key number i
+     */
+    static String key(int i) {
+        return String.format("key%010d", i);
+    }
+
+    /**
+     * @return count keys, in order
+     */
+    static String[] keys(int count) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; ++i) {
+            keys[i] = key(i);
+        }
+        return keys;
+    }
+
+    /**
+     * @return size pseudo-random bytes
+     */
+    static byte[] value(Random random, int size) {
+        byte[] value = new byte[size];
+        random.nextBytes(value);
+        return value;
+    }
+
+    /**
+     * @return a random generator seeded with {@link #SEED}
+     */
+    static Random random() {
+        return new Random(SEED);
+    }
+
+    /**
+     * @return indices into [0, bound) in a reproducible random order
+     */
+    static int[] accessPattern(int count, int bound) {
+        Random random = random();
+        int[] indices = new int[count];
+        for (int i = 0; i < count; ++i) {
+            indices[i] = random.nextInt(bound);
+        }
+        return indices;
+    }
+
+    static File createDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, null);
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles()) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+}
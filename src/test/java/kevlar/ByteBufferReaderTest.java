@@ -1,6 +1,7 @@
 package kevlar;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
 import junit.framework.Assert;
@@ -79,4 +80,50 @@ public class ByteBufferReaderTest {
         }
 
     }
+
+    @Test
+    public void testSlice() {
+        byte v = 0;
+        ByteBuffer[] bufArr = new ByteBuffer[3];
+        for (int i = 0; i < bufArr.length; ++i) {
+            bufArr[i] = ByteBuffer.allocate(20);
+            while (bufArr[i].hasRemaining()) {
+                bufArr[i].put(v++);
+            }
+        }
+
+        ByteBufferReader bbr = new ByteBufferReader(bufArr, 5);
+        ByteBuffer[] slices = bbr.slice(10);
+        Assert.assertEquals(1, slices.length);
+        Assert.assertTrue(slices[0].isReadOnly());
+        Assert.assertEquals(5, slices[0].get(0));
+
+        // Spans all three buffers
+        slices = bbr.slice(30);
+        Assert.assertEquals(3, slices.length);
+        byte expected = 15;
+        for (ByteBuffer slice : slices) {
+            while (slice.hasRemaining()) {
+                Assert.assertEquals(expected++, slice.get());
+            }
+        }
+
+        MappedValue value = new MappedValue(new ByteBufferReader(bufArr, 15).slice(30));
+        Assert.assertEquals(30, value.getLength());
+        byte[] bytes = value.toByteArray();
+        for (int i = 0; i < bytes.length; ++i) {
+            Assert.assertEquals(15 + i, bytes[i]);
+        }
+
+        // Within one buffer, and across all three
+        bytes = value.slice(1, 3).toByteArray();
+        Assert.assertTrue(Arrays.equals(new byte[] { 16, 17, 18 }, bytes));
+        MappedValue slice = value.slice(2, 26);
+        Assert.assertEquals(3, slice.getBuffers().length);
+        bytes = slice.toByteArray();
+        for (int i = 0; i < bytes.length; ++i) {
+            Assert.assertEquals(17 + i, bytes[i]);
+        }
+        Assert.assertEquals(0, value.slice(30, 0).getLength());
+    }
 }
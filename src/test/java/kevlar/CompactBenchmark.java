@@ -0,0 +1,79 @@
+package kevlar;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to {@link WritableBucket#compact()} a bucket of 64 MB where the given
+ * fraction of the records are dead.
+ *
+ * @author david
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompactBenchmark {
+
+    private static final int RECORDS = 65536;
+    private static final int VALUE_SIZE = 1000;
+
+    @Param({ "0.1", "0.5", "0.9" })
+    double garbageRatio;
+
+    private File dir;
+    private WritableBucket bucket;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        dir = BenchmarkData.createDir("compactBenchmark");
+        bucket = new WritableBucket(new File(dir, "bucket"), 1024 * 1024);
+
+        int dead = (int) (RECORDS * garbageRatio);
+        int live = RECORDS - dead;
+        String[] keys = BenchmarkData.keys(live);
+        Random random = BenchmarkData.random();
+
+        // Older versions first, so they are dead once the live ones are
+        // written
+        for (int i = 0; i < dead; ++i) {
+            bucket.put(keys[i % live], BenchmarkData.value(random, VALUE_SIZE));
+            if (i % live == live - 1) {
+                bucket.flush();
+            }
+        }
+        bucket.flush();
+        for (String key : keys) {
+            bucket.put(key, BenchmarkData.value(random, VALUE_SIZE));
+        }
+        bucket.flush();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public void compact() {
+        bucket.compact();
+    }
+
+}
@@ -0,0 +1,72 @@
+package kevlar;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to write, force and index a buffer of puts with
+ * {@link WritableBucket#flush()}.
+ *
+ * @author david
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushBenchmark {
+
+    @Param({ "1", "100", "1000" })
+    int batchSize;
+
+    @Param({ "100", "4096" })
+    int valueSize;
+
+    private File dir;
+    private WritableBucket bucket;
+    private String[] keys;
+    private byte[] value;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = BenchmarkData.createDir("flushBenchmark");
+        bucket = new WritableBucket(new File(dir, "bucket"), Integer.MAX_VALUE);
+        keys = BenchmarkData.keys(batchSize);
+        Random random = BenchmarkData.random();
+        value = BenchmarkData.value(random, valueSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        for (String key : keys) {
+            bucket.put(key, value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public void flush() {
+        bucket.flush();
+    }
+
+}
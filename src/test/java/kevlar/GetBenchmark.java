@@ -0,0 +1,91 @@
+package kevlar;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of {@link ReadOnlyStore#get(String, String)}.
+ *
+ * <ul>
+ * <li><b>hot</b> reads cycle over 1000 keys, so records and index entries
+ * stay in the CPU caches.</li>
+ * <li><b>cold</b> reads are spread uniformly over a bucket of about 256 MB.
+ * The data is still in the page cache; drop it between runs for truly cold
+ * reads.</li>
+ * <li>A chunk size of 64 KB makes most large values span two mappings.</li>
+ * </ul>
+ *
+ * @author david
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetBenchmark {
+
+    private static final long BUCKET_SIZE = 256L * 1024 * 1024;
+    private static final int HOT_KEYS = 1000;
+
+    @Param({ "100", "100000" })
+    int valueSize;
+
+    @Param({ "hot", "cold" })
+    String access;
+
+    @Param({ "1073741824", "65536" })
+    int chunkSize;
+
+    private File dir;
+    private ReadOnlyStore store;
+    private String[] keys;
+    private int[] pattern;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = BenchmarkData.createDir("getBenchmark");
+
+        int count = (int) Math.min(1000000, BUCKET_SIZE / valueSize);
+        keys = BenchmarkData.keys(count);
+
+        WritableStore writableStore = new WritableStore(dir);
+        Random random = BenchmarkData.random();
+        for (String key : keys) {
+            writableStore.put("bucket", key, BenchmarkData.value(random, valueSize));
+        }
+        writableStore.flush();
+
+        System.setProperty(MappedFile.CHUNK_SIZE_PROPERTY, String.valueOf(chunkSize));
+        store = new ReadOnlyStore(dir);
+
+        pattern = BenchmarkData.accessPattern(1 << 20, "hot".equals(access) ? HOT_KEYS : count);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.clearProperty(MappedFile.CHUNK_SIZE_PROPERTY);
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return store.get("bucket", keys[pattern[next++ & (pattern.length - 1)]]);
+    }
+
+}
@@ -67,9 +67,9 @@ public class HeaderTest {
 
     @Test
     public void testGetTimestamp() {
-        long before = System.nanoTime();
+        long before = System.currentTimeMillis();
         Header header = createHeader("key", "value");
-        long after = System.nanoTime();
+        long after = System.currentTimeMillis();
         Assert.assertTrue(header.getTimestamp() >= before);
         Assert.assertTrue(header.getTimestamp() <= after);
     }
@@ -103,6 +103,26 @@ public class HeaderTest {
 
     }
 
+    @Test
+    public void testCodec() throws UnsupportedEncodingException {
+        byte[] key = "key".getBytes("utf8");
+        Header header = new Header(key, new byte[20], Lz4Codec.ID);
+        Assert.assertEquals(Header.MAX_SIZE, header.getSize());
+        Assert.assertEquals(Header.MAX_SIZE + 3 + 20, header.getRecordSize());
+
+        ByteBuffer buf = header.toByteBuffer();
+        Assert.assertEquals(Header.MAX_SIZE, buf.remaining());
+        header = new Header(new ByteBufferReader(new ByteBuffer[] { buf }, 0));
+        Assert.assertEquals(3, header.getKeyLength());
+        Assert.assertEquals(20, header.getValueLength());
+        Assert.assertEquals(Lz4Codec.ID, header.getCodec());
+
+        // Values stored as they are keep the plain header
+        header = new Header(key, new byte[20], 0);
+        Assert.assertEquals(Header.SIZE, header.toByteBuffer().remaining());
+        Assert.assertEquals(0, header.getCodec());
+    }
+
     @Test
     public void testFileChannel() throws IOException {
 
@@ -0,0 +1,50 @@
+package kevlar;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue(expected + " != " + actual, Math.abs(expected - actual) <= expected / 16);
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.percentile(50));
+        for (long i = 1; i <= 10000; ++i) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(10000, histogram.count());
+        Assert.assertEquals(5000500, histogram.mean());
+        Assert.assertEquals(10000000, histogram.max());
+        assertClose(5000000, histogram.percentile(50));
+        assertClose(9900000, histogram.percentile(99));
+        assertClose(9990000, histogram.percentile(99.9));
+        Assert.assertEquals(10000000, histogram.percentile(100));
+
+        // Small values are exact, huge ones are clamped
+        histogram = new Histogram();
+        histogram.record(7);
+        Assert.assertEquals(7, histogram.percentile(50));
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(Long.MAX_VALUE, histogram.max());
+        Assert.assertTrue(histogram.percentile(100) > 1L << 40);
+    }
+
+    @Test
+    public void testParent() {
+        Histogram store = new Histogram();
+        Histogram a = new Histogram(store);
+        Histogram b = new Histogram(store);
+        a.record(1000);
+        b.record(3000);
+        Assert.assertEquals(1, a.count());
+        Assert.assertEquals(2, store.count());
+        Assert.assertEquals(2, store.getMeanMicros());
+        Assert.assertEquals(3, store.getMaxMicros());
+    }
+
+}
@@ -0,0 +1,71 @@
+package kevlar;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to load an index checkpoint with {@link Index#load()}, and to write
+ * one with {@link Index#save()}.
+ *
+ * @author david
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class IndexBenchmark {
+
+    @Param({ "1000000", "10000000" })
+    int keys;
+
+    @Param({ "HEAP", "OFF_HEAP" })
+    IndexType indexType;
+
+    private File dir;
+    private Index index;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = BenchmarkData.createDir("indexBenchmark");
+        index = new Index(new File(dir, "bucket"), new ConcurrentSkipListMap<Integer, Segment>(), indexType);
+        for (int i = 0; i < keys; ++i) {
+            index.put(BenchmarkData.key(i), new Index.Entry(i, i >>> 20, (i & 0xFFFFF) * 64L, 64));
+        }
+        index.save();
+    }
+
+    @TearDown
+    public void tearDown() {
+        index.clear();
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public Index load() {
+        index.load();
+        return index;
+    }
+
+    @Benchmark
+    public Index save() {
+        index.save();
+        return index;
+    }
+
+}
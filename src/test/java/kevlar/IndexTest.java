@@ -1,10 +1,17 @@
 package kevlar;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import junit.framework.Assert;
 
@@ -121,4 +128,195 @@ public class IndexTest {
         Assert.assertEquals(0, index.size());
     }
 
+    @Test
+    public void testAppend() throws IOException {
+        File file = File.createTempFile("indexAppendTest", null);
+        try {
+            Index index = new Index(file);
+            Map<String, Index.Entry> m = new HashMap<String, Index.Entry>();
+            for (int i = 0; i < 3; ++i) {
+                m.put("key" + i, new Index.Entry(i, i));
+            }
+            index.append(m);
+
+            index = new Index(file);
+            Assert.assertEquals(3, index.size());
+
+            index.save();
+            m.clear();
+            m.put("key2", new Index.Entry(20, 20));
+            m.put("key3", new Index.Entry(3, 3));
+            index.append(m);
+
+            index = new Index(file);
+            Assert.assertEquals(4, index.size());
+            Assert.assertEquals(20, index.get("key2").getOffset());
+            Assert.assertEquals(3, index.get("key3").getOffset());
+
+            index.delete();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTornJournal() throws IOException {
+        File file = File.createTempFile("indexTornTest", null);
+        File journalFile = new File(file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 4)
+                + ".journal");
+        try {
+            Index index = new Index(file);
+            Map<String, Index.Entry> m = new HashMap<String, Index.Entry>();
+            m.put("key0", new Index.Entry(0, 0));
+            index.append(m);
+
+            // Simulate a crash in the middle of writing an entry
+            FileOutputStream fos = new FileOutputStream(journalFile, true);
+            fos.write(new byte[] { 0, 4, 'k', 'e' });
+            fos.close();
+
+            index = new Index(file);
+            Assert.assertEquals(1, index.size());
+
+            m.clear();
+            m.put("key1", new Index.Entry(1, 1));
+            index.append(m);
+
+            index = new Index(file);
+            Assert.assertEquals(2, index.size());
+
+            index.delete();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        File file = File.createTempFile("indexScanTest", null);
+        System.setProperty(MappedFile.CHUNK_SIZE_PROPERTY, "64");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            for (int i = 0; i < 10; ++i) {
+                byte[] key = ("key" + i).getBytes("utf8");
+                byte[] value = ("value" + i).getBytes("utf8");
+                fos.write(new Header(key, value).toByteBuffer().array());
+                fos.write(key);
+                fos.write(value);
+            }
+            long validSize = file.length();
+
+            // Simulate a crash in the middle of writing a record
+            fos.write(new Header("key10".getBytes("utf8"), new byte[100]).toByteBuffer().array());
+            fos.write("key10".getBytes("utf8"));
+            fos.close();
+
+            SortedMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+            segments.put(0, new Segment(0, file));
+            Index index = new Index(new File(file.getAbsolutePath() + ".scan"), segments, IndexType.HEAP);
+
+            // Records span the 64 byte chunks, and every one is found
+            Assert.assertEquals(10, index.size());
+            for (int i = 0; i < 10; ++i) {
+                Index.Entry entry = index.get("key" + i);
+                Assert.assertEquals(i * 23, entry.getOffset());
+                Assert.assertEquals(23, entry.getSize());
+            }
+            Assert.assertEquals(validSize, segments.get(0).getSize());
+
+            index.delete();
+        } finally {
+            System.clearProperty(MappedFile.CHUNK_SIZE_PROPERTY);
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testJournalPastSegment() throws IOException {
+        File file = File.createTempFile("indexTornTest", null);
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            for (int i = 0; i < 2; ++i) {
+                byte[] key = ("key" + i).getBytes("utf8");
+                byte[] value = ("value" + i).getBytes("utf8");
+                fos.write(new Header(key, value).toByteBuffer().array());
+                fos.write(key);
+                fos.write(value);
+            }
+            fos.close();
+
+            // The journal reached the disk, the last record did not
+            Index index = new Index(file);
+            Map<String, Index.Entry> m = new HashMap<String, Index.Entry>();
+            for (int i = 0; i < 3; ++i) {
+                m.put("key" + i, new Index.Entry(i, 0, i * 23, 23));
+            }
+            index.append(m);
+
+            index = new Index(file);
+            Assert.assertEquals(2, index.size());
+            Assert.assertNull(index.get("key2"));
+
+            index.delete();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testOffHeapSortedKeys() throws IOException {
+        File file = File.createTempFile("indexTest", null);
+        try {
+            Index index = new Index(file, IndexType.OFF_HEAP);
+            for (int i = 0; i < 10000; ++i) {
+                index.put(String.format("key%05d", i), new Index.Entry(i, i));
+            }
+
+            // The sorted keys live off the heap once built
+            Iterator<String> keys = index.keys("key", "key00099");
+            Assert.assertEquals("key00100", keys.next());
+            Assert.assertEquals("key00101", keys.next());
+            Assert.assertEquals(0, index.getSortedKeys().getHeapKeyCount());
+
+            // Enough changes to merge them into new off-heap keys
+            for (int i = 0; i < 10000; i += 2) {
+                index.remove(String.format("key%05d", i));
+            }
+            index.put("key\u00e5", new Index.Entry(1, 1));
+            List<String> listed = new ArrayList<String>();
+            keys = index.keys(null, null);
+            while (keys.hasNext()) {
+                listed.add(keys.next());
+            }
+            Assert.assertEquals(5001, listed.size());
+            Assert.assertEquals("key00001", listed.get(0));
+            Assert.assertEquals("key09999", listed.get(4999));
+            Assert.assertEquals("key\u00e5", listed.get(5000));
+
+            // Only the changes since the merge are on the heap
+            Assert.assertTrue(index.getSortedKeys().getHeapKeyCount() < 1000);
+            index.delete();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testOffHeapSortedKeysInRuns() {
+        // Several chunks sorted apart, then merged
+        int count = 2 * SortedKeys.BUILD_CHUNK_SIZE + 1;
+        Set<String> source = new HashSet<String>();
+        for (int i = 0; i < count; ++i) {
+            source.add(String.format("key%07d", i));
+        }
+        SortedKeys sortedKeys = new SortedKeys(source, true);
+
+        Iterator<String> keys = sortedKeys.iterator(null, null);
+        for (int i = 0; i < count; ++i) {
+            Assert.assertEquals(String.format("key%07d", i), keys.next());
+        }
+        Assert.assertFalse(keys.hasNext());
+        Assert.assertEquals(0, sortedKeys.getHeapKeyCount());
+    }
+
 }
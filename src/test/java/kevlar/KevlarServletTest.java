@@ -0,0 +1,269 @@
+package kevlar;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KevlarServletTest {
+
+    File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("kevlarServletTest", null);
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void deleteDir() {
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles()) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return an instance of type whose methods return the value in answers
+     *         under their name, or else null, false or 0
+     */
+    private static <T> T fake(Class<T> type, final Map<String, Object> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (answers.containsKey(method.getName())) {
+                            return answers.get(method.getName());
+                        }
+                        Class<?> returnType = method.getReturnType();
+                        if (returnType == boolean.class) {
+                            return false;
+                        }
+                        if (returnType.isPrimitive() && returnType != void.class) {
+                            return 0;
+                        }
+                        return null;
+                    }
+                }));
+    }
+
+    /**
+     * A request body that is all available at once.
+     */
+    private static class Body extends ServletInputStream {
+
+        private final ByteArrayInputStream in;
+        ReadListener listener;
+
+        Body(byte[] bytes) {
+            in = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, len);
+        }
+
+    }
+
+    /**
+     * Posts body to path with a Content-Length, reads it all in, and waits
+     * for the request to complete.
+     *
+     * @return the error status sent, or 0 if none
+     */
+    private static int post(KevlarServlet servlet, String path, byte[] body) throws Exception {
+        return post(servlet, path, body, new String[1]);
+    }
+
+    /**
+     * @param completer set to the name of the thread that completed the
+     *        request
+     */
+    private static int post(KevlarServlet servlet, String path, byte[] body, final String[] completer)
+            throws Exception {
+        final int[] status = { 0 };
+        final HttpServletResponse res = (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("sendError")) {
+                            status[0] = (Integer) args[0];
+                        }
+                        return null;
+                    }
+                });
+        final CountDownLatch completed = new CountDownLatch(1);
+        AsyncContext ctx = (AsyncContext) Proxy.newProxyInstance(AsyncContext.class.getClassLoader(),
+                new Class<?>[] { AsyncContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getResponse")) {
+                            return res;
+                        }
+                        if (method.getName().equals("complete")) {
+                            completer[0] = Thread.currentThread().getName();
+                            completed.countDown();
+                        }
+                        return null;
+                    }
+                });
+
+        Body in = new Body(body);
+        Map<String, Object> requestAnswers = new HashMap<String, Object>();
+        requestAnswers.put("getPathInfo", path);
+        requestAnswers.put("getServletPath", "");
+        requestAnswers.put("getContentLength", body.length);
+        requestAnswers.put("getInputStream", in);
+        requestAnswers.put("startAsync", ctx);
+        HttpServletRequest req = fake(HttpServletRequest.class, requestAnswers);
+
+        servlet.doPost(req, res);
+        if (in.listener != null) {
+            in.listener.onDataAvailable();
+            in.listener.onAllDataRead();
+            Assert.assertTrue(completed.await(10, TimeUnit.SECONDS));
+        }
+        return status[0];
+    }
+
+    @Test
+    public void testPutCompressed() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setCodec("zipped", Codecs.DEFLATE)
+                .setJmxEnabled(false));
+        KevlarServlet servlet = new KevlarServlet(store);
+        byte[] value = new byte[64 * 1024];
+        Arrays.fill(value, (byte) 'a');
+
+        Assert.assertEquals(0, post(servlet, "/zipped/key", value));
+        Assert.assertEquals(0, post(servlet, "/plain/key", value));
+        store.flush();
+
+        // Only the value put to the compressed bucket is stored compressed
+        Assert.assertTrue(store.buckets.get("zipped").getLiveBytes() < value.length / 10);
+        Assert.assertTrue(store.buckets.get("plain").getLiveBytes() > value.length);
+        Assert.assertTrue(Arrays.equals(value, store.get("zipped", "key")));
+        Assert.assertTrue(Arrays.equals(value, store.get("plain", "key")));
+    }
+
+    private static void assertRanges(String header, long length, long... expected) {
+        List<long[]> ranges = KevlarServlet.ranges(header, length);
+        Assert.assertEquals(expected.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); ++i) {
+            Assert.assertEquals(expected[2 * i], ranges.get(i)[0]);
+            Assert.assertEquals(expected[2 * i + 1], ranges.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void testRanges() {
+        assertRanges("bytes=0-99", 1000, 0, 99);
+        assertRanges("bytes=500-", 1000, 500, 999);
+        assertRanges("bytes=-100", 1000, 900, 999);
+        assertRanges("bytes=-2000", 1000, 0, 999);
+        assertRanges("bytes=900-2000", 1000, 900, 999);
+        assertRanges("bytes=0-0, 10-19,-1", 1000, 0, 0, 10, 19, 999, 999);
+
+        // Unsatisfiable ranges are dropped
+        assertRanges("bytes=1000-, 5-6", 1000, 5, 6);
+        assertRanges("bytes=1000-1999", 1000);
+        assertRanges("bytes=-0", 1000);
+        assertRanges("bytes=0-", 0);
+    }
+
+    @Test
+    public void testIgnoredRanges() {
+        Assert.assertNull(KevlarServlet.ranges(null, 1000));
+        Assert.assertNull(KevlarServlet.ranges("items=0-1", 1000));
+        Assert.assertNull(KevlarServlet.ranges("bytes=5", 1000));
+        Assert.assertNull(KevlarServlet.ranges("bytes=9-5", 1000));
+        Assert.assertNull(KevlarServlet.ranges("bytes=a-b", 1000));
+
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= KevlarServlet.MAX_RANGES; ++i) {
+            header.append(",").append(i).append("-").append(i);
+        }
+        Assert.assertNull(KevlarServlet.ranges(header.toString(), 1000));
+    }
+
+    @Test
+    public void testPutTooLarge() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setSegmentSize(4096).setJmxEnabled(false));
+        KevlarServlet servlet = new KevlarServlet(store);
+        Assert.assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                post(servlet, "/bucket/key", new byte[8192]));
+        Assert.assertEquals(0, post(servlet, "/bucket/key", new byte[1024]));
+        Assert.assertEquals(1024, store.get("bucket", "key").length);
+    }
+
+    @Test
+    public void testStreamedPutCommittedOffContainerThread() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setDurability(Durability.SYNC)
+                .setJmxEnabled(false));
+        KevlarServlet servlet = new KevlarServlet(store);
+        String[] completer = new String[1];
+        Assert.assertEquals(0, post(servlet, "/bucket/key", new byte[1024], completer));
+        Assert.assertEquals("kevlar-commit", completer[0]);
+        Assert.assertEquals(1024, store.get("bucket", "key").length);
+    }
+
+    @Test
+    public void testPutBadBucket() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setJmxEnabled(false));
+        KevlarServlet servlet = new KevlarServlet(store);
+        for (String path : new String[] { "/../key", "/./key", "//key", "/a\\b/key" }) {
+            Assert.assertEquals(path, HttpServletResponse.SC_BAD_REQUEST, post(servlet, path, new byte[10]));
+        }
+        Assert.assertFalse(new File(dir, "lock").exists());
+        Assert.assertFalse(new File(dir.getParentFile(), "lock").exists());
+    }
+
+}
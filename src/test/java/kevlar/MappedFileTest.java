@@ -0,0 +1,65 @@
+package kevlar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileTest {
+
+    File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("mappedFileTest", null);
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testRemap() throws IOException {
+        MappedFile mappedFile = new MappedFile(file, 16);
+        mappedFile.remap();
+        Assert.assertEquals(1, mappedFile.chunks().length);
+
+        append(0, 40);
+        mappedFile.remap();
+        ByteBuffer[] chunks = mappedFile.chunks();
+        Assert.assertEquals(3, chunks.length);
+        Assert.assertEquals(8, chunks[2].limit());
+
+        append(40, 30);
+        mappedFile.remap();
+        ByteBuffer[] newChunks = mappedFile.chunks();
+        Assert.assertEquals(5, newChunks.length);
+
+        // Full chunks are reused, the partial tail is remapped
+        Assert.assertSame(chunks[0], newChunks[0]);
+        Assert.assertSame(chunks[1], newChunks[1]);
+        Assert.assertNotSame(chunks[2], newChunks[2]);
+
+        ByteBufferReader reader = new ByteBufferReader(newChunks, 0);
+        byte[] bytes = reader.getBytes(70);
+        for (int i = 0; i < bytes.length; ++i) {
+            Assert.assertEquals(i, bytes[i]);
+        }
+    }
+
+    private void append(int first, int count) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file, true);
+        for (int i = 0; i < count; ++i) {
+            fos.write(first + i);
+        }
+        fos.close();
+    }
+
+}
@@ -0,0 +1,119 @@
+package kevlar;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class OffHeapIndexMapTest {
+
+    @Test
+    public void testFullMode() {
+        verify(new OffHeapIndexMap(), new HashMap<Long, String>());
+    }
+
+    @Test
+    public void testHashOnlyMode() {
+        // Each entry's offset identifies its key, like a record on disk
+        final Map<Long, String> disk = new HashMap<Long, String>();
+        OffHeapIndexMap map = new OffHeapIndexMap(new OffHeapIndexMap.KeyReader() {
+            @Override
+            public byte[] readKey(int segment, long offset) {
+                try {
+                    return disk.get(offset).getBytes("utf8");
+                } catch (Exception x) {
+                    throw new RuntimeException(x);
+                }
+            }
+        });
+        verify(map, disk);
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final OffHeapIndexMap map = new OffHeapIndexMap();
+        for (int i = 0; i < 1000; ++i) {
+            map.put("key" + i, new Index.Entry(i, 0, i, i));
+        }
+
+        // Readers never miss a key or see an entry of another key, while a
+        // writer updates the keys and resizes the table
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    Random rand = new Random();
+                    while (!done.get()) {
+                        int i = rand.nextInt(1000);
+                        Index.Entry entry = map.get("key" + i);
+                        if (entry == null || entry.getOffset() % 1000 != i) {
+                            error.set("key" + i + ": " + entry);
+                        }
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (int i = 1000; i < 200000; ++i) {
+            map.put("key" + (i % 1000), new Index.Entry(i, 0, i, i));
+            map.put("new" + i, new Index.Entry(i, 0, i, i));
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertNull(error.get(), error.get());
+        Assert.assertEquals(200000, map.size());
+    }
+
+    private void verify(OffHeapIndexMap map, Map<Long, String> disk) {
+        Map<String, Index.Entry> expected = new HashMap<String, Index.Entry>();
+        Random rand = new Random(42);
+        long offset = 0;
+
+        for (int i = 0; i < 20000; ++i) {
+            String key = "key" + rand.nextInt(10000);
+            if (rand.nextInt(10) == 0) {
+                Assert.assertEquals(expected.remove(key) != null, map.remove(key) != null);
+            } else {
+                ++offset;
+                disk.put(offset, key);
+                Index.Entry entry = new Index.Entry(i, i % 3, offset, i);
+                Assert.assertEquals(expected.put(key, entry) != null, map.put(key, entry) != null);
+            }
+        }
+
+        Assert.assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, Index.Entry> e : expected.entrySet()) {
+            Index.Entry entry = map.get(e.getKey());
+            Assert.assertNotNull(entry);
+            Assert.assertEquals(e.getValue().getTimestamp(), entry.getTimestamp());
+            Assert.assertEquals(e.getValue().getOffset(), entry.getOffset());
+            Assert.assertEquals(e.getValue().getSegment(), entry.getSegment());
+            Assert.assertEquals(e.getValue().getSize(), entry.getSize());
+        }
+        Assert.assertNull(map.get("xxx"));
+
+        Set<String> keys = new HashSet<String>(map.keySet());
+        Assert.assertEquals(expected.keySet(), keys);
+
+        map.clear();
+        Assert.assertEquals(0, map.size());
+        Assert.assertFalse(map.containsKey("key1"));
+    }
+
+}
@@ -0,0 +1,77 @@
+package kevlar;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to open a {@link ReadOnlyStore} of many buckets, either from the
+ * index checkpoints and journals or by scanning every segment.
+ *
+ * @author david
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OpenBenchmark {
+
+    private static final int BUCKETS = 100;
+    private static final int KEYS = 10000;
+
+    @Param({ "index", "scan" })
+    String recovery;
+
+    @Param({ "1", "4" })
+    int loadThreads;
+
+    private File dir;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = BenchmarkData.createDir("openBenchmark");
+        WritableStore store = new WritableStore(dir);
+        String[] keys = BenchmarkData.keys(KEYS);
+        Random random = BenchmarkData.random();
+        for (int b = 0; b < BUCKETS; ++b) {
+            for (String key : keys) {
+                store.put("bucket" + b, key, BenchmarkData.value(random, 100));
+            }
+        }
+        store.flush();
+
+        if ("scan".equals(recovery)) {
+            for (File file : dir.listFiles()) {
+                if (file.isFile()) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public ReadOnlyStore open() throws Exception {
+        return new ReadOnlyStore(dir, new Options().setLoadThreads(loadThreads));
+    }
+
+}
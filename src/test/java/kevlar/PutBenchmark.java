@@ -0,0 +1,72 @@
+package kevlar;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link WritableBucket#put(String, byte[])}, flushing
+ * whenever the buffer limit is reached.
+ *
+ * @author david
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutBenchmark {
+
+    private static final int KEYS = 100000;
+
+    @Param({ "4096", "65536", "1048576" })
+    int bufferLimit;
+
+    @Param({ "100", "4096" })
+    int valueSize;
+
+    private File dir;
+    private WritableBucket bucket;
+    private String[] keys;
+    private byte[][] values;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = BenchmarkData.createDir("putBenchmark");
+        bucket = new WritableBucket(new File(dir, "bucket"), bufferLimit);
+        keys = BenchmarkData.keys(KEYS);
+        Random random = BenchmarkData.random();
+        values = new byte[16][];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = BenchmarkData.value(random, valueSize);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public Future<Void> put() {
+        int i = next++;
+        return bucket.put(keys[i % KEYS], values[i & 15]);
+    }
+
+}
@@ -0,0 +1,28 @@
+package kevlar;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ThrottleTest {
+
+    @Test
+    public void testAcquire() throws Exception {
+        Throttle throttle = new Throttle(1 << 20);
+
+        // One second worth of bytes is saved up
+        long start = System.nanoTime();
+        throttle.acquire(1 << 20);
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 < 100);
+
+        // Then the rate applies
+        throttle.acquire(1 << 18);
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 >= 200);
+
+        // No limit
+        start = System.nanoTime();
+        new Throttle(0).acquire(1L << 40);
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 < 100);
+    }
+
+}
@@ -0,0 +1,1056 @@
+package kevlar;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WritableStoreTest {
+
+    File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("writableStoreTest", null);
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void deleteDir() {
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles()) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    private int count(String bucket, String suffix) {
+        int count = 0;
+        for (String name : new File(dir, bucket).list()) {
+            if (name.endsWith(suffix)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private long bucketSize(String bucket) {
+        long size = 0;
+        for (File file : new File(dir, bucket).listFiles()) {
+            if (Segment.parseId(file.getName()) >= 0) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        WritableStore store = new WritableStore(dir, Durability.SYNC);
+        store.put("bucket", "key", "value".getBytes("utf8"));
+        Assert.assertTrue(store.contains("bucket", "key"));
+
+        Future<Void> commit = store.putAsync("bucket", "key2", "value2".getBytes("utf8"));
+        Assert.assertTrue(commit.isDone());
+        Assert.assertTrue(store.contains("bucket", "key2"));
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        WritableStore store = new WritableStore(dir, Durability.GROUP_COMMIT, 10);
+        List<Future<Void>> commits = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 100; ++i) {
+            commits.add(store.putAsync("bucket", "key" + i, ("value" + i).getBytes("utf8")));
+        }
+        for (Future<Void> commit : commits) {
+            commit.get();
+        }
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertTrue(store.contains("bucket", "key" + i));
+        }
+
+        store.put("bucket", "key100", "value100".getBytes("utf8"));
+        Assert.assertTrue(store.contains("bucket", "key100"));
+    }
+
+    @Test
+    public void testOs() throws Exception {
+        WritableStore store = new WritableStore(dir, Durability.OS);
+        Future<Void> commit = store.putAsync("bucket", "key", "value".getBytes("utf8"));
+        Assert.assertFalse(commit.isDone());
+        store.flush();
+        Assert.assertTrue(commit.isDone());
+        Assert.assertTrue(store.contains("bucket", "key"));
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        WritableStore store = new WritableStore(dir, Durability.OS);
+        for (int i = 0; i < 1000; ++i) {
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+        for (int i = 0; i < 1000; ++i) {
+            Assert.assertEquals("value" + i, new String(store.get("bucket", "key" + i), "utf8"));
+        }
+        Assert.assertNull(store.get("bucket", "xxx"));
+    }
+
+    @Test
+    public void testHashOnlyIndex() throws Exception {
+        Options options = new Options().setIndexType(IndexType.HASH_ONLY);
+        WritableStore store = new WritableStore(dir, options);
+        for (int i = 0; i < 100; ++i) {
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir, options);
+        Assert.assertEquals(100, readOnlyStore.size());
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertEquals("value" + i, new String(readOnlyStore.get("bucket", "key" + i), "utf8"));
+        }
+        Assert.assertFalse(readOnlyStore.contains("bucket", "xxx"));
+    }
+
+    @Test
+    public void testCompactWhileWriting() throws Exception {
+        final WritableStore store = new WritableStore(dir, Durability.OS);
+        for (int i = 0; i < 1000; ++i) {
+            store.put("bucket", "key" + i, ("old" + i).getBytes("utf8"));
+        }
+        store.flush();
+        for (int i = 0; i < 1000; ++i) {
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+        long sizeBefore = bucketSize("bucket");
+
+        Thread compaction = new Thread() {
+            @Override
+            public void run() {
+                store.compact();
+            }
+        };
+        compaction.start();
+        for (int i = 0; i < 1000; i += 2) {
+            store.put("bucket", "key" + i, ("new" + i).getBytes("utf8"));
+        }
+        compaction.join();
+        store.flush();
+
+        Assert.assertTrue(bucketSize("bucket") < sizeBefore);
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir);
+        for (Store s : new Store[] { store, readOnlyStore }) {
+            Assert.assertEquals(1000, s.size());
+            for (int i = 0; i < 1000; ++i) {
+                String expected = (i % 2 == 0 ? "new" : "value") + i;
+                Assert.assertEquals(expected, new String(s.get("bucket", "key" + i), "utf8"));
+            }
+        }
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setSegmentSize(4096));
+        for (int i = 0; i < 1000; ++i) {
+            store.put("bucket", "key" + (i % 100), ("value" + i).getBytes("utf8"));
+            if (i % 100 == 99) {
+                store.flush();
+            }
+        }
+        int segmentsBefore = count("bucket", ".dat");
+        Assert.assertTrue(segmentsBefore > 2);
+
+        store.compact();
+        Assert.assertTrue(count("bucket", ".dat") < segmentsBefore);
+
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir);
+        for (Store s : new Store[] { store, readOnlyStore }) {
+            Assert.assertEquals(100, s.size());
+            for (int i = 900; i < 1000; ++i) {
+                Assert.assertEquals("value" + i, new String(s.get("bucket", "key" + (i % 100)), "utf8"));
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyBucket() throws Exception {
+        WritableStore store = new WritableStore(dir);
+        for (int i = 0; i < 100; ++i) {
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+
+        // Lay the bucket out as a single data file
+        File bucketDir = new File(dir, "bucket");
+        new File(bucketDir, Segment.fileName(0)).renameTo(new File(dir, "bucket.dat"));
+        delete(bucketDir);
+
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir);
+        Assert.assertEquals("value1", new String(readOnlyStore.get("bucket", "key1"), "utf8"));
+
+        store = new WritableStore(dir);
+        Assert.assertFalse(new File(dir, "bucket.dat").exists());
+        Assert.assertEquals(100, store.size());
+        store.put("bucket", "key1", "value".getBytes("utf8"));
+        store.flush();
+        Assert.assertEquals("value", new String(store.get("bucket", "key1"), "utf8"));
+        Assert.assertEquals("value99", new String(store.get("bucket", "key99"), "utf8"));
+    }
+
+    @Test
+    public void testOpenManyBuckets() throws Exception {
+        WritableStore store = new WritableStore(dir);
+        for (int b = 0; b < 20; ++b) {
+            for (int i = 0; i < 10; ++i) {
+                store.put("bucket" + b, "key" + i, ("value" + b + "/" + i).getBytes("utf8"));
+            }
+        }
+        store.flush();
+
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir, new Options().setLoadThreads(4));
+        Assert.assertEquals(200, readOnlyStore.size());
+        for (int b = 0; b < 20; ++b) {
+            Assert.assertEquals("value" + b + "/9", new String(readOnlyStore.get("bucket" + b, "key9"), "utf8"));
+        }
+    }
+
+    @Test
+    public void testHintFiles() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setSegmentSize(4096));
+        for (int i = 0; i < 1000; ++i) {
+            store.put("bucket", "key" + (i % 100), ("value" + i).getBytes("utf8"));
+            if (i % 100 == 99) {
+                store.flush();
+            }
+        }
+
+        // Every sealed segment has a hint file
+        Assert.assertEquals(count("bucket", ".dat") - 1, count("bucket", ".hint"));
+
+        // Rebuild the index from the hint files and the active segment
+        new File(dir, "bucket.index").delete();
+        new File(dir, "bucket.journal").delete();
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir);
+        Assert.assertEquals(100, readOnlyStore.size());
+        for (int i = 900; i < 1000; ++i) {
+            Assert.assertEquals("value" + i, new String(readOnlyStore.get("bucket", "key" + (i % 100)), "utf8"));
+        }
+
+        // A corrupt hint file is ignored and its segment scanned instead
+        File hintFile = new File(new File(dir, "bucket"), "00000000.hint");
+        RandomAccessFile raf = new RandomAccessFile(hintFile, "rw");
+        raf.seek(20);
+        raf.write(~raf.read());
+        raf.close();
+        readOnlyStore = new ReadOnlyStore(dir);
+        Assert.assertEquals(100, readOnlyStore.size());
+        Assert.assertEquals("value999", new String(readOnlyStore.get("bucket", "key99"), "utf8"));
+    }
+
+    @Test
+    public void testReadBufferedPuts() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setBufferLimit(1024 * 1024));
+        store.put("bucket", "key", "old".getBytes("utf8"));
+        store.flush();
+        long timestamp = store.getTimestamp("bucket", "key");
+
+        Thread.sleep(2);
+        store.put("bucket", "key", "new".getBytes("utf8"));
+        store.put("bucket", "key2", "value2".getBytes("utf8"));
+        Assert.assertEquals("new", new String(store.get("bucket", "key"), "utf8"));
+        Assert.assertEquals("value2", new String(store.get("bucket", "key2"), "utf8"));
+        Assert.assertTrue(store.contains("bucket", "key2"));
+        Assert.assertEquals(2, store.size());
+        Assert.assertEquals(2, store.keys().size());
+
+        // The timestamp of a buffered put is the one written to disk
+        long bufferedTimestamp = store.getTimestamp("bucket", "key");
+        Assert.assertTrue(bufferedTimestamp > timestamp);
+        store.flush();
+        Assert.assertEquals(bufferedTimestamp, store.getTimestamp("bucket", "key"));
+        Assert.assertEquals("new", new String(store.get("bucket", "key"), "utf8"));
+    }
+
+    @Test
+    public void testFailedFlush() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setBufferLimit(1024 * 1024));
+        store.put("bucket", "key", "old".getBytes("utf8"));
+        store.flush();
+        store.put("bucket", "key", "new".getBytes("utf8"));
+        store.put("bucket", "key2", "value2".getBytes("utf8"));
+
+        // Make the next write fail
+        Field field = WritableBucket.class.getDeclaredField("dataChannel");
+        field.setAccessible(true);
+        WritableBucket bucket = (WritableBucket) store.buckets.get("bucket");
+        Object channel = field.get(bucket);
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "broken"), "rw");
+        file.close();
+        field.set(bucket, file.getChannel());
+        try {
+            store.flush();
+            Assert.fail();
+        } catch (RuntimeException x) {
+        }
+
+        // The puts stay readable, and the next flush writes them
+        Assert.assertEquals("new", new String(store.get("bucket", "key"), "utf8"));
+        Assert.assertTrue(bucket.getBufferSize() > 0);
+        field.set(bucket, channel);
+        store.flush();
+        Assert.assertEquals(0, bucket.getBufferSize());
+
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir);
+        Assert.assertEquals("new", new String(readOnlyStore.get("bucket", "key"), "utf8"));
+        Assert.assertEquals("value2", new String(readOnlyStore.get("bucket", "key2"), "utf8"));
+    }
+
+    @Test
+    public void testFailedForce() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setBufferLimit(1024 * 1024));
+        store.put("bucket", "key", "old".getBytes("utf8"));
+        store.flush();
+        long size = bucketSize("bucket");
+        store.put("bucket", "key", new byte[10000]);
+
+        // Write the records, then fail to force them
+        Field field = WritableBucket.class.getDeclaredField("dataChannel");
+        field.setAccessible(true);
+        WritableBucket bucket = (WritableBucket) store.buckets.get("bucket");
+        FileChannel channel = (FileChannel) field.get(bucket);
+        field.set(bucket, new FailingChannel(channel));
+        try {
+            store.flush();
+            Assert.fail();
+        } catch (RuntimeException x) {
+        }
+
+        // The records are dropped from the file, not just skipped
+        Assert.assertEquals(size, bucketSize("bucket"));
+        Assert.assertEquals("old", new String(new ReadOnlyStore(dir).get("bucket", "key"), "utf8"));
+
+        field.set(bucket, channel);
+        store.flush();
+        Assert.assertEquals(10000, new ReadOnlyStore(dir).get("bucket", "key").length);
+    }
+
+    /**
+     * A channel that fails to force.
+     */
+    private static class FailingChannel extends FileChannel {
+
+        private final FileChannel channel;
+
+        FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            throw new IOException("Failed to force");
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    @Test
+    public void testGetAllPutAll() throws Exception {
+        WritableStore store = new WritableStore(dir, Durability.SYNC);
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i = 0; i < 100; ++i) {
+            values.put("key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.putAll("bucket", values);
+        store.put("bucket", "key50", "new".getBytes("utf8"));
+
+        List<String> keys = new ArrayList<String>();
+        for (int i = 99; i >= 0; i -= 10) {
+            keys.add("key" + i);
+        }
+        keys.add("xxx");
+
+        for (Store s : new Store[] { store, new ReadOnlyStore(dir) }) {
+            Map<String, MappedValue> result = s.getAll("bucket", keys);
+            Assert.assertEquals(10, result.size());
+            Assert.assertFalse(result.containsKey("xxx"));
+            for (int i = 9; i < 100; i += 10) {
+                Assert.assertEquals("value" + i, new String(result.get("key" + i).toByteArray(), "utf8"));
+            }
+
+            // The last put comes last in the data file
+            result = s.getAll("bucket", Arrays.asList("key50", "key49"));
+            Assert.assertEquals(Arrays.asList("key49", "key50"), new ArrayList<String>(result.keySet()));
+            Assert.assertEquals("new", new String(result.get("key50").toByteArray(), "utf8"));
+        }
+    }
+
+    @Test
+    public void testStreamingPut() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setBufferLimit(1024 * 1024));
+        byte[] value = BenchmarkData.value(BenchmarkData.random(), 200000);
+        store.put("bucket", "key", "old".getBytes("utf8"));
+        store.put("bucket", "big", new ByteArrayInputStream(value), value.length);
+
+        // The streamed value replaces the buffered one
+        Assert.assertTrue(Arrays.equals(value, store.get("bucket", "big")));
+        store.put("bucket", "key", new ByteArrayInputStream("new".getBytes("utf8")), 3);
+        store.flush();
+        Assert.assertEquals("new", new String(store.get("bucket", "key"), "utf8"));
+
+        // A stream that ends early leaves the previous value
+        try {
+            store.put("bucket", "key", new ByteArrayInputStream(value, 0, 1000), value.length);
+            Assert.fail("Expected a short stream to fail");
+        } catch (RuntimeException x) {
+            // Expected
+        }
+        Assert.assertEquals("new", new String(store.get("bucket", "key"), "utf8"));
+        store.put("bucket", "after", "after".getBytes("utf8"));
+        store.flush();
+
+        ReadOnlyStore readOnly = new ReadOnlyStore(dir);
+        Assert.assertEquals(3, readOnly.size());
+        Assert.assertTrue(Arrays.equals(value, readOnly.get("bucket", "big")));
+        Assert.assertEquals("new", new String(readOnly.get("bucket", "key"), "utf8"));
+        Assert.assertEquals("after", new String(readOnly.get("bucket", "after"), "utf8"));
+
+        // The aborted record is garbage
+        store.compact();
+        Assert.assertEquals(3, store.size());
+        Assert.assertTrue(Arrays.equals(value, store.get("bucket", "big")));
+        Assert.assertEquals("new", new String(store.get("bucket", "key"), "utf8"));
+    }
+
+    @Test
+    public void testStreamingPutLimits() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setSegmentSize(64 * 1024).setStreamTimeout(100));
+        try {
+            store.beginPut("bucket", "key", -1);
+            Assert.fail("Expected a negative length to fail");
+        } catch (IllegalArgumentException x) {
+            // Expected
+        }
+        try {
+            store.beginPut("bucket", "key", Integer.MAX_VALUE);
+            Assert.fail("Expected a value larger than a segment to fail");
+        } catch (WritableBucket.TooLargeException x) {
+            // Expected
+        }
+
+        // A stalled put is aborted, and no longer holds up compaction
+        WritableBucket.StreamingPut put = store.beginPut("bucket", "key", 10);
+        put.write(new byte[5], 0, 5);
+        Segment segment = store.buckets.get("bucket").segments().iterator().next();
+        Assert.assertTrue(segment.hasPendingWrites());
+        Thread.sleep(500);
+        Assert.assertFalse(segment.hasPendingWrites());
+        try {
+            put.write(new byte[5], 0, 5);
+            put.commit();
+            Assert.fail("Expected a timed out put to fail");
+        } catch (IOException x) {
+            // Expected
+        }
+        Assert.assertFalse(store.contains("bucket", "key"));
+    }
+
+    @Test
+    public void testETag() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setBufferLimit(1024 * 1024));
+        store.put("bucket", "key", "value".getBytes("utf8"));
+        MappedValue buffered = store.getValue("bucket", "key");
+        Assert.assertEquals(store.getTimestamp("bucket", "key"), buffered.getTimestamp());
+        Assert.assertEquals(buffered.getETag(), store.getValue("bucket", "key").getETag());
+
+        store.flush();
+        MappedValue stored = store.getValue("bucket", "key");
+        Assert.assertEquals(buffered.getTimestamp(), stored.getTimestamp());
+        Assert.assertEquals(stored.getETag(), new ReadOnlyStore(dir).getValue("bucket", "key").getETag());
+
+        // A new version gets a new tag
+        store.put("bucket", "key", "value".getBytes("utf8"));
+        store.flush();
+        Assert.assertFalse(stored.getETag().equals(store.getValue("bucket", "key").getETag()));
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        Options options = new Options().setSegmentSize(16 * 1024).setCodec(Codecs.DEFLATE)
+                .setCodec("fast", Codecs.LZ4).setCodec("raw", null).setCacheSize(1024 * 1024);
+
+        WritableStore store = new WritableStore(dir, options);
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 50; ++i) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"value\"},");
+        }
+        byte[] random = BenchmarkData.value(BenchmarkData.random(), 1000);
+        for (String bucket : new String[] { "bucket", "fast", "raw" }) {
+            for (int i = 0; i < 100; ++i) {
+                store.put(bucket, "key" + i, (json.toString() + i).getBytes("utf8"));
+            }
+            store.put(bucket, "random", random);
+            store.put(bucket, "short", "short".getBytes("utf8"));
+            store.flush();
+        }
+        Assert.assertTrue(bucketSize("bucket") * 3 < bucketSize("raw"));
+        Assert.assertTrue(bucketSize("fast") * 3 < bucketSize("raw"));
+
+        // Compressed values survive compaction, and rebuilding the index
+        // from hint files
+        for (int i = 0; i < 50; ++i) {
+            store.put("bucket", "key" + i, (json.toString() + i).getBytes("utf8"));
+        }
+        store.compact();
+        new File(dir, "bucket.index").delete();
+        new File(dir, "bucket.journal").delete();
+
+        for (Store s : new Store[] { store, new ReadOnlyStore(dir, options), new ReadOnlyStore(dir) }) {
+            for (String bucket : new String[] { "bucket", "fast", "raw" }) {
+                for (int i = 0; i < 100; ++i) {
+                    Assert.assertEquals(json.toString() + i, new String(s.get(bucket, "key" + i), "utf8"));
+                }
+                // Stored as they are, next to compressed values
+                Assert.assertTrue(Arrays.equals(random, s.get(bucket, "random")));
+                Assert.assertEquals("short", new String(s.get(bucket, "short"), "utf8"));
+            }
+            // Cached
+            Assert.assertEquals(json.toString() + 0, new String(s.get("bucket", "key0"), "utf8"));
+        }
+    }
+
+    @Test
+    public void testHeat() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setSegmentSize(4096));
+        for (int i = 0; i < 100; ++i) {
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+        for (int i = 0; i < 100; i += 2) {
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+        for (int i = 0; i < 100; ++i) {
+            store.get("bucket", "key99");
+        }
+
+        ReadOnlyBucket bucket = store.buckets.get("bucket");
+        Assert.assertTrue(bucket.heat.isHot("key99"));
+        Assert.assertFalse(bucket.heat.isHot("key1"));
+        Assert.assertTrue(bucket.warm(1024 * 1024, 1024 * 1024) > 0);
+
+        // Hot records are moved first, next to each other
+        store.compact();
+        Index.Entry hot = bucket.index.get("key99");
+        Index.Entry cold = bucket.index.get("key1");
+        Assert.assertEquals(cold.getSegment(), hot.getSegment());
+        Assert.assertTrue(hot.getOffset() < cold.getOffset());
+
+        // Saved next to the checkpoint
+        store.saveHeat();
+        Assert.assertTrue(new File(dir, "bucket.heat").exists());
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir);
+        Assert.assertTrue(readOnlyStore.buckets.get("bucket").heat.estimate("key99") >= 100);
+    }
+
+    @Test
+    public void testListKeys() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setBufferLimit(1024 * 1024));
+        for (int i = 0; i < 100; i += 2) {
+            store.put("bucket", String.format("a%03d", i), "value".getBytes("utf8"));
+        }
+        store.put("other", "a000", "value".getBytes("utf8"));
+        store.flush();
+        Assert.assertEquals(Arrays.asList("a000", "a002", "a004"), store.keys("bucket", null, null, 3));
+
+        // Keys added after the first listing, both flushed and buffered
+        for (int i = 0; i < 10000; ++i) {
+            store.put("bucket", String.format("b%05d", i), "value".getBytes("utf8"));
+        }
+        store.flush();
+        for (int i = 1; i < 100; i += 2) {
+            store.put("bucket", String.format("a%03d", i), "value".getBytes("utf8"));
+        }
+        store.put("bucket", "c", "value".getBytes("utf8"));
+
+        List<String> keys = new ArrayList<String>();
+        List<String> page = store.keys("bucket", "a", null, 7);
+        while (!page.isEmpty()) {
+            keys.addAll(page);
+            page = store.keys("bucket", "a", page.get(page.size() - 1), 7);
+        }
+        Assert.assertEquals(100, keys.size());
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertEquals(String.format("a%03d", i), keys.get(i));
+        }
+
+        Assert.assertEquals(Arrays.asList("b09999", "c"), store.keys("bucket", null, "b09998", 10));
+        Assert.assertEquals(Arrays.asList("b01000", "b01001"), store.keys("bucket", "b01", "a", 2));
+        Assert.assertTrue(store.keys("bucket", "d", null, 10).isEmpty());
+        Assert.assertTrue(store.keys("none", null, null, 10).isEmpty());
+
+        keys = new ArrayList<String>(store.keys());
+        Assert.assertEquals(store.size(), keys.size());
+        Assert.assertEquals("bucket/a000", keys.get(0));
+        Assert.assertEquals("other/a000", keys.get(keys.size() - 1));
+        List<String> sorted = new ArrayList<String>(keys);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted, keys);
+
+        store.flush();
+        Assert.assertEquals(keys, new ArrayList<String>(new ReadOnlyStore(dir).keys()));
+    }
+
+    @Test
+    public void testKeySpliterator() throws Exception {
+        for (IndexType type : IndexType.values()) {
+            File typeDir = new File(dir, type.name());
+            typeDir.mkdir();
+            WritableStore store = new WritableStore(typeDir, new Options().setIndexType(type).setBufferLimit(
+                    1024 * 1024));
+            Set<String> expected = new HashSet<String>();
+            for (int i = 0; i < 5000; ++i) {
+                String bucket = "bucket" + (i % 3);
+                store.put(bucket, "key" + i, ("value" + i).getBytes("utf8"));
+                expected.add(bucket + "/key" + i);
+                if (i == 3999) {
+                    store.flush();
+                }
+            }
+
+            // Split for parallel consumption, while puts carry on
+            Spliterator<String> keySpliterator = store.keySpliterator();
+            Spliterator<String> prefix = keySpliterator.trySplit();
+            Assert.assertNotNull(prefix);
+            store.put("bucket0", "new", "value".getBytes("utf8"));
+            List<String> seen = new ArrayList<String>();
+            seen.addAll(StreamSupport.stream(prefix, true).collect(Collectors.<String> toList()));
+            seen.addAll(StreamSupport.stream(keySpliterator, true).collect(Collectors.<String> toList()));
+            seen.remove("bucket0/new");
+            Assert.assertEquals(expected.size(), seen.size());
+            Assert.assertEquals(expected, new HashSet<String>(seen));
+
+            int count = 0;
+            Spliterator<Map.Entry<String, MappedValue>> entries = store.entrySpliterator("bucket1");
+            while (entries.tryAdvance(new Consumer<Map.Entry<String, MappedValue>>() {
+                @Override
+                public void accept(Map.Entry<String, MappedValue> e) {
+                    Assert.assertEquals("value" + e.getKey().substring(3), new String(e.getValue().toByteArray()));
+                }
+            })) {
+                ++count;
+            }
+            Assert.assertEquals(1667, count);
+            Assert.assertEquals(0, store.keySpliterator("none").estimateSize());
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setSegmentSize(4096));
+        for (int i = 0; i < 100; ++i) {
+            store.put("bucket", "key" + (i % 10), ("value" + i).getBytes("utf8"));
+        }
+        store.get("bucket", "key0");
+        store.get("bucket", "none");
+        store.compact();
+
+        ReadOnlyBucket bucket = store.buckets.get("bucket");
+        Metrics metrics = bucket.getMetrics();
+        Assert.assertEquals(100, metrics.get(Metrics.Op.PUT).count());
+        Assert.assertEquals(2, metrics.get(Metrics.Op.GET).count());
+        Assert.assertEquals(1, metrics.get(Metrics.Op.COMPACT).count());
+        Assert.assertTrue(metrics.get(Metrics.Op.FLUSH).count() > 0);
+        Assert.assertTrue(metrics.get(Metrics.Op.MMAP).count() > 0);
+        Assert.assertEquals(2, store.getMetrics().get(Metrics.Op.GET).count());
+
+        Assert.assertEquals(10, store.getKeyCount());
+        Assert.assertEquals(0, store.getDeadBytes());
+        Assert.assertEquals(bucketSize("bucket"), store.getLiveBytes());
+
+        String json = StatsJson.of(store);
+        Assert.assertTrue(json, json.startsWith("{\"keyCount\":10,"));
+        Assert.assertTrue(json, json.contains("\"buckets\":{\"bucket\":{\"keyCount\":10,"));
+        Assert.assertTrue(json, json.contains("\"get\":{\"count\":2,"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String scope = ",store=" + ObjectName.quote(dir.getAbsolutePath()) + ",bucket=" + ObjectName.quote("bucket");
+        Assert.assertEquals(10, server.getAttribute(new ObjectName("kevlar:type=Bucket" + scope), "KeyCount"));
+        Assert.assertEquals(100L, server.getAttribute(new ObjectName("kevlar:type=Latency" + scope + ",op=put"),
+                "Count"));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setBufferLimit(1024 * 1024));
+        store.put("bucket", "key", "value".getBytes("utf8"));
+        store.close();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String scope = ",store=" + ObjectName.quote(dir.getAbsolutePath());
+        Assert.assertFalse(server.isRegistered(new ObjectName("kevlar:type=Store" + scope)));
+        Assert.assertFalse(server.isRegistered(new ObjectName("kevlar:type=Bucket" + scope + ",bucket="
+                + ObjectName.quote("bucket"))));
+
+        // The buffered put was flushed, and the bucket lock released
+        store = new WritableStore(dir);
+        Assert.assertEquals("value", new String(store.get("bucket", "key"), "utf8"));
+        store.close();
+    }
+
+    @Test
+    public void testBucketNames() throws Exception {
+        WritableStore store = new WritableStore(dir);
+        for (String bucket : new String[] { "", ".", "..", "a/b", "a\\b" }) {
+            try {
+                store.put(bucket, "key", "value".getBytes("utf8"));
+                Assert.fail(bucket);
+            } catch (IllegalArgumentException x) {
+            }
+        }
+        store.put("a.b", "key", "value".getBytes("utf8"));
+        Assert.assertEquals(Arrays.asList("a.b"), Arrays.asList(dir.list()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPeriodicWithoutInterval() throws Exception {
+        new WritableStore(dir, Durability.PERIODIC, 0);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setSegmentSize(4096));
+        for (int i = 0; i < 100; ++i) {
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+        long size = bucketSize("bucket");
+
+        for (int i = 0; i < 100; i += 2) {
+            Assert.assertTrue(store.delete("bucket", "key" + i));
+        }
+        Assert.assertFalse(store.delete("bucket", "key0"));
+        Assert.assertFalse(store.delete("bucket", "none"));
+        Assert.assertFalse(store.contains("bucket", "key0"));
+        Assert.assertNull(store.get("bucket", "key0"));
+        Assert.assertEquals(50, store.size());
+        Assert.assertEquals(Arrays.asList("key1", "key11"), store.keys("bucket", null, null, 2));
+        store.flush();
+        Assert.assertEquals(50, store.size());
+        Assert.assertEquals("value1", new String(store.get("bucket", "key1"), "utf8"));
+
+        // Deletes survive a reopen from the journal, and a rebuild from the
+        // segments
+        Assert.assertEquals(50, new ReadOnlyStore(dir).size());
+        new File(dir, "bucket.index").delete();
+        new File(dir, "bucket.journal").delete();
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir);
+        Assert.assertEquals(50, readOnlyStore.size());
+        Assert.assertNull(readOnlyStore.get("bucket", "key0"));
+
+        // Compaction reclaims the deleted records
+        store.compact();
+        Assert.assertTrue(bucketSize("bucket") < size);
+        Assert.assertEquals(50, store.size());
+        Assert.assertNull(store.get("bucket", "key98"));
+        Assert.assertEquals("value99", new String(store.get("bucket", "key99"), "utf8"));
+
+        store.put("bucket", "key0", "again".getBytes("utf8"));
+        Assert.assertEquals("again", new String(store.get("bucket", "key0"), "utf8"));
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setTtl("cache", 200));
+        for (int i = 0; i < 10; ++i) {
+            store.put("cache", "key" + i, ("value" + i).getBytes("utf8"));
+            store.put("bucket", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+        Assert.assertEquals("value0", new String(store.get("cache", "key0"), "utf8"));
+
+        Thread.sleep(300);
+        Assert.assertNull(store.get("cache", "key0"));
+        Assert.assertFalse(store.contains("cache", "key1"));
+        Assert.assertTrue(store.keys("cache", null, null, 10).isEmpty());
+        Assert.assertEquals(0, StreamSupport.stream(store.keySpliterator("cache"), false).count());
+        Assert.assertEquals("value0", new String(store.get("bucket", "key0"), "utf8"));
+
+        // A put after expiry lists the key again, in both listings
+        store.put("cache", "key2", "again".getBytes("utf8"));
+        Assert.assertEquals(Arrays.asList("key2"), store.keys("cache", null, null, 10));
+        Assert.assertEquals(Arrays.asList("key2"),
+                StreamSupport.stream(store.keySpliterator("cache"), false).collect(Collectors.toList()));
+        Thread.sleep(300);
+
+        // Expired keys dropped from the index don't come back on a restart
+        store.flush();
+        ((WritableBucket) store.buckets.get("cache")).dropExpired();
+        Assert.assertEquals(0, store.buckets.get("cache").size());
+        Assert.assertEquals(0, new ReadOnlyStore(dir).buckets.get("cache").size());
+
+        // Compaction drops the expired records
+        store.compact();
+        Assert.assertEquals(0, store.buckets.get("cache").size());
+        Assert.assertEquals(10, store.buckets.get("bucket").size());
+        Assert.assertEquals(0, store.buckets.get("cache").getLiveBytes());
+    }
+
+    @Test
+    public void testCompactGarbage() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setSegmentSize(4096).setCompactionInterval(50)
+                .setCompactionGarbageRatio(0.3));
+        for (int i = 0; i < 1000; ++i) {
+            store.put("garbage", "key" + (i % 10), ("value" + i).getBytes("utf8"));
+            store.put("other", "key" + (i % 10), ("value" + i).getBytes("utf8"));
+        }
+        for (int i = 0; i < 100; ++i) {
+            store.put("clean", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+
+        // Compacted in the background, the bucket without garbage is left
+        // alone
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline
+                && (store.buckets.get("garbage").getGarbageRatio() > 0.3
+                        || store.buckets.get("other").getGarbageRatio() > 0.3)) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(store.buckets.get("garbage").getGarbageRatio() <= 0.3);
+        Assert.assertTrue(store.buckets.get("other").getGarbageRatio() <= 0.3);
+        Assert.assertEquals(0, store.buckets.get("clean").getMetrics().get(Metrics.Op.COMPACT).count());
+        Assert.assertEquals("value999", new String(store.get("garbage", "key9"), "utf8"));
+        Assert.assertEquals(10, store.buckets.get("other").size());
+    }
+
+    @Test
+    public void testConcurrentPuts() throws Exception {
+        final WritableStore store = new WritableStore(dir, new Options().setSegmentSize(64 * 1024));
+        final byte[] large = new byte[200 * 1024];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t) {
+            final int thread = t;
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; ++i) {
+                        String key = "key" + thread + "-" + (i % 50);
+                        store.put("bucket", key, (key + "=" + i).getBytes());
+                        if (i % 500 == 0) {
+                            store.put("bucket", "large" + thread, large);
+                        }
+                    }
+                }
+            };
+            writer.start();
+            threads.add(writer);
+        }
+        for (Thread writer : threads) {
+            writer.join();
+        }
+
+        // The last put of each key wins, before and after a flush, and when
+        // read back from disk
+        store.flush();
+        Assert.assertEquals(0, store.getBufferSize());
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir);
+        for (int t = 0; t < 4; ++t) {
+            for (int k = 0; k < 50; ++k) {
+                String key = "key" + t + "-" + k;
+                String expected = key + "=" + (1950 + k);
+                Assert.assertEquals(expected, new String(store.get("bucket", key)));
+                Assert.assertEquals(expected, new String(readOnlyStore.get("bucket", key)));
+            }
+            Assert.assertEquals(large.length, readOnlyStore.get("bucket", "large" + t).length);
+        }
+        Assert.assertEquals(204, readOnlyStore.size());
+    }
+
+    @Test
+    public void testPartitions() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setPartitions("hot", 4).setSegmentSize(4096));
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (int i = 0; i < 100; ++i) {
+            store.put("hot", "key" + i, ("value" + i).getBytes("utf8"));
+            values.put("batch" + i, ("batch" + i).getBytes("utf8"));
+        }
+        store.putAll("hot", values);
+        store.put("cold", "key", "value".getBytes("utf8"));
+        Assert.assertTrue(store.delete("hot", "key0"));
+        store.flush();
+
+        // Each partition is a bucket of its own
+        Assert.assertTrue(new File(dir, "hot/partitions").exists());
+        int size = 0;
+        for (int p = 0; p < 4; ++p) {
+            int partitionSize = new ReadOnlyBucket(new File(dir, "hot/p" + p)).size();
+            Assert.assertTrue(partitionSize > 0);
+            size += partitionSize;
+        }
+        Assert.assertEquals(199, size);
+        Assert.assertFalse(new File(dir, "cold/partitions").exists());
+
+        Assert.assertEquals(199, store.buckets.get("hot").size());
+        Assert.assertEquals("value1", new String(store.get("hot", "key1"), "utf8"));
+        Assert.assertFalse(store.contains("hot", "key0"));
+        Assert.assertEquals(3, store.getAll("hot", Arrays.asList("key1", "key2", "batch3", "none")).size());
+        Assert.assertEquals(Arrays.asList("key1", "key10", "key11"), store.keys("hot", "key", null, 3));
+        Assert.assertEquals(Arrays.asList("key99"), store.keys("hot", "key", "key98", 3));
+        Assert.assertEquals(199, StreamSupport.stream(store.keySpliterator("hot"), false).count());
+
+        // The partition count is kept on reopen, whatever the options say
+        ReadOnlyStore readOnlyStore = new ReadOnlyStore(dir, new Options().setPartitions(2));
+        Assert.assertFalse(readOnlyStore.buckets.get("hot") instanceof WritableBucket);
+        Assert.assertEquals(200, readOnlyStore.size());
+        Assert.assertEquals("batch50", new String(readOnlyStore.get("hot", "batch50"), "utf8"));
+        Assert.assertEquals(Arrays.asList("batch0", "batch1"), readOnlyStore.keys("hot", null, null, 2));
+
+        store.compact();
+        Assert.assertEquals(199, store.buckets.get("hot").size());
+        Assert.assertEquals("value99", new String(store.get("hot", "key99"), "utf8"));
+    }
+
+    @Test
+    public void testExpiryDue() throws Exception {
+        WritableStore store = new WritableStore(dir, new Options().setTtl("cache", 300).setExpiryInterval(0)
+                .setCompactionInterval(50));
+        for (int i = 0; i < 10; ++i) {
+            store.put("cache", "key" + i, ("value" + i).getBytes("utf8"));
+        }
+        store.flush();
+
+        // Nothing can have expired before the oldest entry does
+        WritableBucket bucket = (WritableBucket) store.buckets.get("cache");
+        Assert.assertFalse(bucket.isExpiryDue());
+        Assert.assertEquals(10, bucket.size());
+
+        // Then the expired entries are dropped in the background
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline && bucket.size() > 0) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, bucket.size());
+        Assert.assertFalse(bucket.isExpiryDue());
+    }
+
+}